@@ -0,0 +1,425 @@
+package Client;
+
+import Loggers.Protocol;
+import Tokenizer.*;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+
+/**
+ * Class which stores, loads and removes a file split into fixed size blocks.
+ * Each block is stored as a file of its own, named filename#N (N from 1), so the Controller picks the Dstores for each
+ * block as it would for any file, and the blocks of one large file are spread over the whole system. Several blocks
+ * are stored or loaded at once, each over its own connection to the Controller, so a large file is sent to and from
+ * many Dstores at once rather than R of them.
+ * Block 0 (filename#0) is a manifest holding the size of the file and of its blocks. It is stored after every other
+ * block and removed before any of them, and the Controller lists the file under its own name while the manifest is
+ * stored (see IndexManager.getListedName), so a file is only ever listed while all of it is stored.
+ */
+public class BlockedFile {
+
+    // First word of a manifest: BLOCKS filesize block_size
+    public static final String MANIFEST_TOKEN = "BLOCKS";
+    // Largest manifest read when loading one
+    private static final int MAX_MANIFEST_SIZE = 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final String filename;
+    private final int cport;
+    // Number of blocks stored, loaded or removed at once
+    private final int parallel;
+
+    /**
+     * Constructor
+     * @param filename : name of the file (also the local file read when storing and written when loading)
+     * @param cport : port of the Controller
+     * @param parallel : number of blocks stored, loaded or removed at once
+     */
+    public BlockedFile(String filename, int cport, int parallel) {
+        this.filename = filename;
+        this.cport = cport;
+        this.parallel = Math.max(1, parallel);
+    }
+
+    private String getBlockName(int block) {
+        return this.filename + Protocol.BLOCK_SEPARATOR + block;
+    }
+
+    private static int getBlockCount(long filesize, long blockSize) {
+        return (int) ((filesize + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * Method which stores the local file in blocks, then its manifest. If any block cannot be stored, the blocks
+     * already stored are removed again
+     * @param filesize : size of the file
+     * @param blockSize : size of every block but the last
+     * @return true if the whole file was stored
+     */
+    public boolean store(long filesize, long blockSize) {
+        int blocks = getBlockCount(filesize, blockSize);
+        System.out.println("STORING " + this.filename + " AS " + blocks + " BLOCKS OF " + blockSize + " BYTES");
+        boolean stored = this.forEachBlock(1, blocks, block -> {
+            long offset = (block - 1) * blockSize;
+            long length = Math.min(blockSize, filesize - offset);
+            try (FileChannel file = FileChannel.open(Paths.get(this.filename), StandardOpenOption.READ)) {
+                file.position(offset);
+                return this.storeBlock(this.getBlockName(block), length, Channels.newInputStream(file));
+            }
+        });
+        if (stored) {
+            byte[] manifest = (MANIFEST_TOKEN + " " + filesize + " " + blockSize + "\n").getBytes(StandardCharsets.UTF_8);
+            stored = this.storeBlock(this.getBlockName(0), manifest.length, new ByteArrayInputStream(manifest));
+        }
+        if (stored) {
+            System.out.println("STORE OF " + this.filename + " COMPLETE");
+        } else {
+            System.out.println("STORE OF " + this.filename + " FAILED");
+            //Every block is tried, as the blocks which were stored need not be the first ones
+            this.forEachBlock(1, blocks, block -> {
+                this.removeBlock(this.getBlockName(block));
+                return true;
+            });
+        }
+        return stored;
+    }
+
+    /**
+     * Method which loads every block of the file, writing each into its place in the local file as it arrives
+     * @return true if the whole file was loaded
+     */
+    public boolean load() {
+        long[] manifest = this.loadManifest();
+        boolean loaded = manifest != null && this.loadBytes(manifest, 0, manifest[0], true);
+        System.out.println("LOAD OF " + this.filename + (loaded ? " COMPLETE" : " FAILED"));
+        return loaded;
+    }
+
+    /**
+     * Method which loads part of the file. Only the blocks the part covers are loaded, and only the part of each
+     * that is covered. The part is written at the same offset in the local file, so parts loaded one after another
+     * fill in a local copy of the file
+     * @param offset : offset of the first byte to load
+     * @param length : number of bytes to load (fewer are loaded if the file ends first)
+     * @return true if the part was loaded
+     */
+    public boolean loadRange(long offset, long length) {
+        long[] manifest = this.loadManifest();
+        boolean loaded = manifest != null && offset <= manifest[0]
+                && this.loadBytes(manifest, offset, offset + Math.min(length, manifest[0] - offset), false);
+        System.out.println("LOAD_RANGE OF " + this.filename + (loaded ? " COMPLETE" : " FAILED"));
+        return loaded;
+    }
+
+    /**
+     * Loads the bytes from start to end of the file, from the blocks they are stored in, into the local file
+     * @param manifest : filesize and block size of the file
+     * @param wholeFile : true if the whole file is being loaded, in which case the local file is cut to its size
+     */
+    private boolean loadBytes(long[] manifest, long start, long end, boolean wholeFile) {
+        long filesize = manifest[0];
+        long blockSize = manifest[1];
+        try (RandomAccessFile out = new RandomAccessFile(this.filename, "rw")) {
+            if (wholeFile) {
+                out.setLength(filesize);
+            }
+            if (start >= end) {
+                return true;
+            }
+            FileChannel file = out.getChannel();
+            int first = (int) (start / blockSize) + 1;
+            int last = (int) ((end - 1) / blockSize) + 1;
+            return this.forEachBlock(first, last, block -> {
+                long blockStart = (block - 1) * blockSize;
+                long blockEnd = Math.min(blockStart + blockSize, filesize);
+                long from = Math.max(start, blockStart);
+                long to = Math.min(end, blockEnd);
+                //A whole block is loaded with LOAD, part of one with LOAD_RANGE
+                long offsetInBlock = from == blockStart && to == blockEnd ? -1 : from - blockStart;
+                return this.loadBlock(this.getBlockName(block), offsetInBlock, to - from, (in, size) -> {
+                    //Positional writes, so blocks can be written into the file at once
+                    byte[] chunk = new byte[CHUNK_SIZE];
+                    long received = 0;
+                    while (received < size) {
+                        int read = in.read(chunk, 0, (int) Math.min(chunk.length, size - received));
+                        if (read == -1) {
+                            break;
+                        }
+                        ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+                        while (buffer.hasRemaining()) {
+                            file.write(buffer, from + received + buffer.position());
+                        }
+                        received += read;
+                    }
+                    return size == to - from && received == size;
+                });
+            });
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not write " + this.filename + " : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Method which removes the file's manifest, so it is no longer listed or loaded, then each of its blocks
+     * @return true if the manifest and every block were removed
+     */
+    public boolean remove() {
+        long[] manifest = this.loadManifest();
+        if (manifest == null || !this.removeBlock(this.getBlockName(0))) {
+            System.out.println("REMOVE OF " + this.filename + " FAILED");
+            return false;
+        }
+        boolean removed = this.forEachBlock(1, getBlockCount(manifest[0], manifest[1]),
+                block -> this.removeBlock(this.getBlockName(block)));
+        System.out.println("REMOVE OF " + this.filename + (removed ? " COMPLETE" : " FAILED (SOME BLOCKS REMAIN)"));
+        return removed;
+    }
+
+    /**
+     * @return filesize and block size from the file's manifest, or null if it has none
+     */
+    private long[] loadManifest() {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        boolean loaded = this.loadBlock(this.getBlockName(0), -1, 0, (in, size) -> {
+            if (size > MAX_MANIFEST_SIZE) {
+                return false;
+            }
+            manifest.reset();
+            return Client.copy(in, manifest, size) == size;
+        });
+        if (!loaded) {
+            return null;
+        }
+        StringTokenizer words = new StringTokenizer(manifest.toString(StandardCharsets.UTF_8));
+        try {
+            if (words.countTokens() == 3 && words.nextToken().equals(MANIFEST_TOKEN)) {
+                long filesize = Long.parseLong(words.nextToken());
+                long blockSize = Long.parseLong(words.nextToken());
+                if (filesize >= 0 && blockSize > 0) {
+                    return new long[]{filesize, blockSize};
+                }
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        System.out.println("### ERROR ###   Manifest of " + this.filename + " is malformed");
+        return null;
+    }
+
+    /**
+     * Stores a single block through the Controller, sending it to all of its Dstores at once
+     * @param name : name of the block
+     * @param length : size of the block
+     * @param source : stream to read the block from
+     * @return true once the Controller has said the block is stored
+     */
+    private boolean storeBlock(String name, long length, InputStream source) {
+        try (ControllerSession controller = new ControllerSession(this.cport)) {
+            String reply = controller.request(Protocol.STORE_TOKEN + " " + name + " " + length);
+            Token t = reply == null ? null : Tokenizer.getToken(reply);
+            boolean sent;
+            if (t instanceof StoreFragmentsToken) {
+                StoreFragmentsToken fragments = (StoreFragmentsToken) t;
+                sent = new FragmentUpload(name, length, fragments.dataFragments, fragments.ports).run(source);
+            } else if (t instanceof StoreToToken) {
+                sent = new FanOutUpload(name, length, ((StoreToToken) t).ports).run(source);
+            } else {
+                return false;
+            }
+            String complete = controller.receive();
+            return sent && complete != null && Tokenizer.getToken(complete) instanceof StoreCompleteToken;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not store " + name + " : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Interface for whatever reads a block as it arrives from a Dstore
+     */
+    private interface BlockReader {
+        /**
+         * @param in : stream the block arrives on
+         * @param size : number of bytes to read (the size of the block as given by the Controller, or of the part
+         *             of it asked for)
+         * @return true if the whole block was read
+         */
+        boolean read(InputStream in, long size) throws IOException;
+    }
+
+    /**
+     * Loads a single block, or part of one, through the Controller, trying each Dstore storing it in turn (by RELOAD)
+     * until one of them sends it all
+     * @param name : name of the block
+     * @param offset : offset of the part of the block to load, or -1 to load the whole block
+     * @param length : length of the part of the block to load (ignored if loading the whole block)
+     * @param reader : reads the block as it arrives
+     * @return true if the block was read
+     */
+    private boolean loadBlock(String name, long offset, long length, BlockReader reader) {
+        String range = offset < 0 ? "" : " " + offset + " " + length;
+        try (ControllerSession controller = new ControllerSession(this.cport)) {
+            String reply = controller.request((offset < 0 ? Protocol.LOAD_TOKEN : Protocol.LOAD_RANGE_TOKEN) + " "
+                    + name + range);
+            Token fragments = reply == null ? null : Tokenizer.getToken(reply);
+            if (fragments instanceof LoadFragmentsToken) {
+                return this.loadBlockFragments(name, offset, length, (LoadFragmentsToken) fragments, reader);
+            }
+            while (true) {
+                Token t = reply == null ? null : Tokenizer.getToken(reply);
+                if (!(t instanceof LoadFromToken)) {
+                    return false;
+                }
+                LoadFromToken from = (LoadFromToken) t;
+                try (Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), from.port)) {
+                    PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
+                    outText.println((offset < 0 ? Protocol.LOAD_DATA_TOKEN : Protocol.LOAD_DATA_RANGE_TOKEN) + " "
+                            + name + range);
+                    outText.flush();
+                    long size = offset < 0 ? from.filesize : Math.max(0, Math.min(length, from.filesize - offset));
+                    //A whole block is checked against its checksum as it is read, and loaded again if it does not match
+                    CheckedInputStream in = new CheckedInputStream(dStoreSocket.getInputStream(), new CRC32C());
+                    if (reader.read(in, size) && (offset >= 0
+                            || Client.checksumMatches(name, from.port, in.getChecksum().getValue(), from.checksum))) {
+                        return true;
+                    }
+                } catch (IOException e) {
+                    System.out.println("### ERROR ###   Could not load " + name + " from " + from.port + " : " + e);
+                }
+                reply = controller.request(Protocol.RELOAD_TOKEN + " " + name);
+            }
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Cannot reach controller : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Loads a single block, or part of one, from an erasure coded cluster, rebuilding it from k of its fragments
+     * (see FragmentDownload). A whole block is checked against its checksum as its last byte is rebuilt
+     * @param from : the Controller's LOAD_FRAGMENTS reply
+     * @return true if the block was read
+     */
+    private boolean loadBlockFragments(String name, long offset, long length, LoadFragmentsToken from,
+                                       BlockReader reader) {
+        if (offset > from.filesize) {
+            return false;
+        }
+        long size = offset < 0 ? from.filesize : Math.min(length, from.filesize - offset);
+        try (FragmentDownload download = new FragmentDownload(name, from)) {
+            return reader.read(download.open(Math.max(offset, 0)), size);
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not load " + name + " : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Removes a single block through the Controller
+     * @return true once the Controller has said the block is removed
+     */
+    private boolean removeBlock(String name) {
+        try (ControllerSession controller = new ControllerSession(this.cport)) {
+            String reply = controller.request(Protocol.REMOVE_TOKEN + " " + name);
+            return reply != null && Tokenizer.getToken(reply) instanceof RemoveCompleteToken;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not remove " + name + " : " + e);
+            return false;
+        }
+    }
+
+    /**
+     * Interface for an operation on a single block
+     */
+    private interface BlockOperation {
+        boolean apply(int block) throws IOException;
+    }
+
+    /**
+     * Method which runs an operation on blocks first to last, running up to parallel of them at once on daemon
+     * threads. Once one fails no more are started
+     * @return true if the operation succeeded on every block
+     */
+    private boolean forEachBlock(int first, int last, BlockOperation operation) {
+        AtomicInteger nextBlock = new AtomicInteger(first);
+        AtomicBoolean failed = new AtomicBoolean(false);
+        ArrayList<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < Math.min(this.parallel, last - first + 1); i++) {
+            Thread worker = new Thread(() -> {
+                int block;
+                while (!failed.get() && (block = nextBlock.getAndIncrement()) <= last) {
+                    try {
+                        if (!operation.apply(block)) {
+                            failed.set(true);
+                        }
+                    } catch (IOException e) {
+                        System.out.println("### ERROR ###   Block " + block + " of " + this.filename + " : " + e);
+                        failed.set(true);
+                    }
+                }
+            }, "block-" + this.filename + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !failed.get();
+    }
+
+    /**
+     * Class for a single connection to the Controller, used for the requests about one block
+     */
+    private static class ControllerSession implements Closeable {
+        private final Socket socket;
+        private final PrintWriter out;
+        private final BufferedReader in;
+
+        private ControllerSession(int cport) throws IOException {
+            this.socket = new Socket(InetAddress.getLocalHost(), cport);
+            this.out = new PrintWriter(new OutputStreamWriter(this.socket.getOutputStream()));
+            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+        }
+
+        /**
+         * Sends a request and waits for the reply
+         * @return reply, or null if the Controller closed the connection
+         */
+        private String request(String message) throws IOException {
+            this.out.println(message);
+            this.out.flush();
+            System.out.println("SENDING : " + message);
+            return this.receive();
+        }
+
+        private String receive() throws IOException {
+            String reply = this.in.readLine();
+            System.out.println("RECEIVED : " + reply);
+            return reply;
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.socket.close();
+        }
+    }
+}
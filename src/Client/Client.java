@@ -7,11 +7,57 @@ import Tokenizer.*;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.util.Arrays;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.InflaterInputStream;
 
 public class Client {
 
+    // Times the Dstores took to start sending files, shared by every Client in this process
+    private static final FirstByteLatencies FIRST_BYTE_LATENCIES = new FirstByteLatencies(TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("client.hedge.defaultDelay", 100)));
+
+    private static final int COPY_CHUNK_SIZE = 64 * 1024;
+    // Largest file that fits in a single array
+    private static final long MAX_IN_MEMORY_LOAD = Integer.MAX_VALUE - 8;
+
+    // If a LOAD asks for a second Dstore when the first is slow to start sending, and takes whichever finishes first
+    private final boolean hedge;
+    // Percentile of recent times to first byte waited for before asking for a second Dstore
+    private final double hedgePercentile;
+    // Largest file a LOAD is hedged for, as each of the two loads is held in memory until one finishes. Larger files
+    // are loaded without hedging
+    private final long hedgeMaxBytes;
+    // How a STORE sends the file to its Dstores: "sequential" sends it to each in turn, "parallel" sends it to all of
+    // them at once (see FanOutUpload), "chain" sends it once to the first, which passes it along the rest
+    private final String storeMode;
+    // Files larger than this are stored in blocks of this size (see BlockedFile), or 0 to never split files
+    private final long blockSize;
+    // Number of blocks stored or loaded at once
+    private final int blockParallel;
+    // If a LOAD asks the Dstore for the file as it is stored, compressed or not, and decompresses it here
+    private final boolean loadCompressed;
+    // Port of the Controller, set by run
+    private int cport;
+
+    public Client() {
+        this.hedge = Boolean.getBoolean("client.hedge");
+        this.hedgePercentile = Double.parseDouble(System.getProperty("client.hedge.percentile", "95"));
+        this.hedgeMaxBytes = Math.min(Long.getLong("client.hedge.maxBytes", 4L * 1024 * 1024), MAX_IN_MEMORY_LOAD);
+        this.storeMode = System.getProperty("client.store.mode", "sequential");
+        this.blockSize = Long.getLong("client.blockSize", 0L);
+        this.blockParallel = Integer.getInteger("client.block.parallel", 4);
+        this.loadCompressed = Boolean.getBoolean("client.load.compressed");
+    }
+
     public void run(String command, String portString) throws  IOException{
 
         /**Sets up variables needed for inputting/outputting
@@ -21,13 +67,20 @@ public class Client {
          * out - Output stream to server
          * in - Input stream from server
          */
-        Socket socket = new Socket(InetAddress.getLocalHost(), Integer.parseInt(portString));
+        this.cport = Integer.parseInt(portString);
+        Token t = Tokenizer.getToken(command);
+        //A file larger than the block size is stored as separate blocks, each through its own request
+        if (t instanceof StoreToken && this.blockSize > 0 && ((StoreToken) t).filesize > this.blockSize) {
+            new BlockedFile(((StoreToken) t).filename, this.cport, this.blockParallel)
+                    .store(((StoreToken) t).filesize, this.blockSize);
+            return;
+        }
+        Socket socket = new Socket(InetAddress.getLocalHost(), this.cport);
         Scanner s = new Scanner(System.in);
         PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream()));
         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
 
-        Token t = Tokenizer.getToken(command);
         out.println(command);
         out.flush();
         System.out.println("SENDING : " + command);
@@ -36,10 +89,16 @@ public class Client {
             this.store(command, t, in);
         } else if (t instanceof ListToken) {
             this.list(in);
+        } else if (t instanceof ListGenToken) {
+            this.list(in);
+        } else if (t instanceof ListPageToken) {
+            this.listPages((ListPageToken) t, in, out);
         } else if (t instanceof  RemoveToken) {
-            this.remove(in);
+            this.remove(((RemoveToken) t).filename, in);
         } else if (t instanceof LoadToken) {
             this.load(t,in,out);
+        } else if (t instanceof LoadRangeToken) {
+            this.loadRange((LoadRangeToken) t, in, out);
         } else {
             System.out.println("MALFORMED COMMAND");
         }
@@ -57,9 +116,38 @@ public class Client {
     }
 
 
-    private void remove(BufferedReader in) throws IOException {
+    /**
+     * Lists the files a page at a time, asking for each next page as soon as the last one is printed, until the
+     * Controller says there are no more pages. No more than one page is ever held in memory
+     * @param t : the first LIST_PAGE request, already sent
+     */
+    public void listPages(ListPageToken t, BufferedReader in, PrintWriter out) throws IOException {
+        while (true) {
+            String line = in.readLine();
+            System.out.println(line);
+            if (line == null) {
+                return;
+            }
+            Token page = Tokenizer.getToken(line);
+            if (!(page instanceof ListPageResultToken) || ((ListPageResultToken) page).next == null) {
+                return;
+            }
+            String command = Protocol.LIST_PAGE_TOKEN + " " + ((ListPageResultToken) page).next + " " + t.pageSize
+                    + (t.prefix.isEmpty() ? "" : " " + t.prefix);
+            out.println(command);
+            out.flush();
+            System.out.println("SENDING : " + command);
+        }
+    }
+
+
+    private void remove(String filename, BufferedReader in) throws IOException {
         String t = in.readLine();
         System.out.println("RECEIVED : " + t);
+        //The file may be stored in blocks, under its manifest's name
+        if (t != null && Tokenizer.getToken(t) instanceof FileNotExistToken) {
+            new BlockedFile(filename, this.cport, this.blockParallel).remove();
+        }
     }
 
     private void load(Token t, BufferedReader in, PrintWriter out) {
@@ -73,23 +161,31 @@ public class Client {
             return;
         }
         Token cToken = Tokenizer.getToken(command);
-        if (cToken instanceof LoadFromToken) {
-            int filesize = ((LoadFromToken)cToken).filesize;
+        if (cToken instanceof LoadFromToken && this.hedge && ((LoadFromToken) cToken).filesize <= this.hedgeMaxBytes) {
+            this.hedgedLoad(t, (LoadFromToken) cToken, in, out);
+        } else if (cToken instanceof LoadFromToken) {
+            long filesize = ((LoadFromToken)cToken).filesize;
             int port = ((LoadFromToken)cToken).port;
-            try {
-                Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), port);
+            long checksum = ((LoadFromToken)cToken).checksum;
+            try (Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), port);
+                 FileOutputStream w = new FileOutputStream(new File(filename))) {
                 PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
-                InputStream inData = dStoreSocket.getInputStream();
-                outText.println(Protocol.LOAD_DATA_TOKEN + " " + filename);
+                String request = (this.loadCompressed ? Protocol.LOAD_DATA_COMPRESSED_TOKEN : Protocol.LOAD_DATA_TOKEN)
+                        + " " + filename;
+                outText.println(request);
                 outText.flush();
-                System.out.println("SENDING : " + Protocol.LOAD_DATA_TOKEN + " " + filename);
-                byte[] data = inData.readNBytes(filesize);
-                System.out.println("RECEIVED : " + Arrays.toString(data));
-                if (data.length == filesize) {
-                    File f = new File(filename);
-                    FileOutputStream w = new FileOutputStream(f);
-                    w.write(data);
-                    w.close();
+                System.out.println("SENDING : " + request);
+                InputStream socketIn = new BufferedInputStream(dStoreSocket.getInputStream());
+                CheckedInputStream inData = new CheckedInputStream(
+                        this.loadCompressed ? openCompressed(socketIn) : socketIn, new CRC32C());
+                //The file is written out a chunk at a time as it arrives, so it is never held in memory whole, and
+                //its checksum is worked out on the way through
+                long received = copy(inData, w, filesize);
+                System.out.println("RECEIVED : " + received + " bytes");
+                if (received == filesize && !checksumMatches(filename, port, inData.getChecksum().getValue(), checksum)) {
+                    received = -1;
+                }
+                if (received == filesize) {
                     System.out.println("LOAD OF " + filename + " COMPLETE");
                 } else {
                     out.println(Protocol.RELOAD_TOKEN + " " + filename);
@@ -104,11 +200,200 @@ public class Client {
                 System.out.println("SENDING : " + Protocol.RELOAD_TOKEN + " " + filename);
                 this.load(t,in,out);
             }
+        } else if (cToken instanceof LoadFragmentsToken) {
+            this.loadFragments(filename, (LoadFragmentsToken) cToken);
+        } else if (cToken instanceof FileNotExistToken) {
+            //The file may be stored in blocks, under its manifest's name
+            new BlockedFile(filename, this.cport, this.blockParallel).load();
         } else {
             System.out.println("LOAD OF " + filename + " FAILED");
         }
     }
 
+    /**
+     * Loads an erasure coded file, rebuilding it from k of its fragments as they arrive. There is no RELOAD, as every
+     * Dstore storing a fragment is given at once and any that fail are passed over. The file's checksum is checked
+     * as its last byte is rebuilt
+     * @param from : the Controller's LOAD_FRAGMENTS reply
+     */
+    private void loadFragments(String filename, LoadFragmentsToken from) {
+        try (FragmentDownload download = new FragmentDownload(filename, from);
+             FileOutputStream w = new FileOutputStream(new File(filename))) {
+            long received = copy(download.open(0), w, from.filesize);
+            System.out.println("RECEIVED : " + received + " bytes");
+            if (received == from.filesize) {
+                System.out.println("LOAD OF " + filename + " COMPLETE");
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not load " + filename + " : " + e);
+        }
+        System.out.println("LOAD OF " + filename + " FAILED");
+    }
+
+    /**
+     * Loads part of a file, asking the Dstore for just that part, and writes it at the same offset in the local file
+     * (which is created if it does not exist, and otherwise left as it is around the part). If the Dstore fails, the
+     * next one is asked for with a RELOAD
+     * @param t : the LOAD_RANGE request, already sent
+     */
+    private void loadRange(LoadRangeToken t, BufferedReader in, PrintWriter out) {
+        String reply;
+        try {
+            reply = in.readLine();
+            System.out.println("RECEIVED : " + reply);
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Cannot read from controller");
+            return;
+        }
+        Token cToken = reply == null ? null : Tokenizer.getToken(reply);
+        if (cToken instanceof LoadFromToken) {
+            LoadFromToken from = (LoadFromToken) cToken;
+            if (t.offset > from.filesize) {
+                System.out.println("LOAD_RANGE OF " + t.filename + " FAILED : OFFSET PAST END OF FILE (" + from.filesize + " BYTES)");
+                return;
+            }
+            long length = Math.min(t.length, from.filesize - t.offset);
+            String request = Protocol.LOAD_DATA_RANGE_TOKEN + " " + t.filename + " " + t.offset + " " + length;
+            long received = -1;
+            try (Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), from.port);
+                 RandomAccessFile w = new RandomAccessFile(t.filename, "rw")) {
+                PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
+                outText.println(request);
+                outText.flush();
+                System.out.println("SENDING : " + request);
+                received = copy(dStoreSocket.getInputStream(),
+                        Channels.newOutputStream(w.getChannel().position(t.offset)), length);
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Could not load range from " + from.port + " : " + e);
+            }
+            if (received == length) {
+                System.out.println("LOAD_RANGE OF " + t.filename + " COMPLETE (" + length + " BYTES FROM OFFSET " + t.offset + ")");
+            } else {
+                out.println(Protocol.RELOAD_TOKEN + " " + t.filename);
+                out.flush();
+                System.out.println("SENDING : " + Protocol.RELOAD_TOKEN + " " + t.filename);
+                this.loadRange(t, in, out);
+            }
+        } else if (cToken instanceof LoadFragmentsToken) {
+            LoadFragmentsToken from = (LoadFragmentsToken) cToken;
+            if (t.offset > from.filesize) {
+                System.out.println("LOAD_RANGE OF " + t.filename + " FAILED : OFFSET PAST END OF FILE (" + from.filesize + " BYTES)");
+                return;
+            }
+            //The fragments can only be decoded from the start, so the file is rebuilt up to the end of the range
+            long length = Math.min(t.length, from.filesize - t.offset);
+            try (FragmentDownload download = new FragmentDownload(t.filename, from);
+                 RandomAccessFile w = new RandomAccessFile(t.filename, "rw")) {
+                if (copy(download.open(t.offset), Channels.newOutputStream(w.getChannel().position(t.offset)), length) == length) {
+                    System.out.println("LOAD_RANGE OF " + t.filename + " COMPLETE (" + length + " BYTES FROM OFFSET " + t.offset + ")");
+                    return;
+                }
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Could not load range of " + t.filename + " : " + e);
+            }
+            System.out.println("LOAD_RANGE OF " + t.filename + " FAILED");
+        } else if (cToken instanceof FileNotExistToken) {
+            //The file may be stored in blocks, under its manifest's name
+            new BlockedFile(t.filename, this.cport, this.blockParallel).loadRange(t.offset, t.length);
+        } else {
+            System.out.println("LOAD_RANGE OF " + t.filename + " FAILED");
+        }
+    }
+
+    /**
+     * Loads a file, racing a second Dstore against the first if the first has not started sending the file within the
+     * given percentile of recent times to first byte. The second Dstore is got from the Controller with a RELOAD.
+     * Whichever load finishes first is kept and the other is cancelled. If both fail, the next Dstore is tried as
+     * for an ordinary load
+     * @param t : the LOAD request
+     * @param from : the Controller's LOAD_FROM reply
+     */
+    private void hedgedLoad(Token t, LoadFromToken from, BufferedReader in, PrintWriter out) {
+        String filename = ((LoadToken)t).filename;
+        LoadAttempt primary = new LoadAttempt(filename, from.port, (int) from.filesize, from.checksum);
+        LoadAttempt backup = null;
+        primary.start();
+        try {
+            primary.getFirstByte().get(FIRST_BYTE_LATENCIES.getDelayNanos(this.hedgePercentile), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            //First Dstore is slow to start, so asks the Controller for another
+            out.println(Protocol.RELOAD_TOKEN + " " + filename);
+            out.flush();
+            System.out.println("SENDING : " + Protocol.RELOAD_TOKEN + " " + filename + " (hedging)");
+            try {
+                String reply = in.readLine();
+                System.out.println("RECEIVED : " + reply);
+                Token replyToken = reply == null ? null : Tokenizer.getToken(reply);
+                if (replyToken instanceof LoadFromToken) {
+                    backup = new LoadAttempt(filename, ((LoadFromToken) replyToken).port, (int) from.filesize, from.checksum);
+                    backup.start();
+                }
+            } catch (IOException ioException) {
+                System.out.println("### ERROR ###   Cannot read from controller");
+            }
+        } catch (ExecutionException ignored) {
+            //First Dstore failed straight away, handled below along with the result
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        byte[] data = this.firstToFinish(primary, backup);
+        primary.cancel();
+        if (backup != null) {
+            backup.cancel();
+        }
+        for (LoadAttempt attempt : new LoadAttempt[]{primary, backup}) {
+            if (attempt != null && attempt.getFirstByte().isDone() && !attempt.getFirstByte().isCompletedExceptionally()) {
+                FIRST_BYTE_LATENCIES.record(attempt.getFirstByte().join());
+            }
+        }
+        if (data != null) {
+            try (FileOutputStream w = new FileOutputStream(new File(filename))) {
+                w.write(data);
+                System.out.println("LOAD OF " + filename + " COMPLETE");
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Could not write " + filename + " : " + e);
+            }
+        } else {
+            out.println(Protocol.RELOAD_TOKEN + " " + filename);
+            out.flush();
+            System.out.println("SENDING : " + Protocol.RELOAD_TOKEN + " " + filename);
+            this.load(t, in, out);
+        }
+    }
+
+    /**
+     * Waits for the first of the loads to read the whole file
+     * @param primary : first load
+     * @param backup : second load (null if there is none)
+     * @return contents of the file, or null if every load failed
+     */
+    private byte[] firstToFinish(LoadAttempt primary, LoadAttempt backup) {
+        LoadAttempt[] attempts = backup == null ? new LoadAttempt[]{primary} : new LoadAttempt[]{primary, backup};
+        CompletableFuture<byte[]> winner = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger(0);
+        for (LoadAttempt attempt : attempts) {
+            attempt.getResult().whenComplete((data, e) -> {
+                if (e == null) {
+                    if (winner.complete(data)) {
+                        System.out.println("RECEIVED : " + data.length + " bytes from " + attempt.getPort());
+                    }
+                } else if (failed.incrementAndGet() == attempts.length) {
+                    winner.complete(null);
+                }
+            });
+        }
+        try {
+            return winner.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
     private void store(String input, Token token1, BufferedReader in) throws IOException {
         StoreToken outputtedT = (StoreToken)token1;
 
@@ -116,7 +401,29 @@ public class Client {
         System.out.println("RECEIVED  :  " + line);
         Token t = Tokenizer.getToken(line);
 
-        if (t instanceof StoreToToken) {
+        if (t instanceof StoreFragmentsToken) {
+            //Erasure coded cluster: each Dstore stores a different fragment of the file
+            StoreFragmentsToken fragments = (StoreFragmentsToken) t;
+            try (FileInputStream reader = new FileInputStream(outputtedT.filename)) {
+                new FragmentUpload(outputtedT.filename, outputtedT.filesize, fragments.dataFragments, fragments.ports)
+                        .run(reader);
+            }
+            line = in.readLine();
+            System.out.println("RECEIVED : " + line);
+        } else if (t instanceof StoreToToken && this.storeMode.equals("chain") && !((StoreToToken) t).ports.isEmpty()) {
+            this.storeChain(outputtedT, ((StoreToToken) t).ports);
+            line = in.readLine();
+            System.out.println("RECEIVED : " + line);
+        } else if (t instanceof StoreToToken && this.storeMode.equals("parallel")) {
+            long start = System.nanoTime();
+            try (FileInputStream reader = new FileInputStream(outputtedT.filename)) {
+                new FanOutUpload(outputtedT.filename, outputtedT.filesize, ((StoreToToken) t).ports).run(reader);
+            }
+            System.out.println("SENT FILE TO ALL DSTORES, TOOK "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            line = in.readLine();
+            System.out.println("RECEIVED : " + line);
+        } else if (t instanceof StoreToToken) {
             StoreToToken token = (StoreToToken) t;
             for (int port : token.ports) {
                 Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), port);
@@ -132,17 +439,14 @@ public class Client {
                 if (Tokenizer.getToken(ack) instanceof AckToken) {
                     StoreToken sentToken = outputtedT;
 
-                    //Gets file content
+                    //Sends file content, a chunk at a time
                     assert sentToken != null;
-                    File f = new File(sentToken.filename);
-                    FileInputStream reader = new FileInputStream(f);
                     System.out.println("FILESIZE : " + sentToken.filesize);
-                    byte[] fileContent = reader.readNBytes(sentToken.filesize);
-
-                    System.out.println("SENT FILE : " + fileContent + ", LENGTH : " + fileContent.length);
-                    outData.write(fileContent);
-                    outData.flush();
-                    reader.close();
+                    try (FileInputStream reader = new FileInputStream(new File(sentToken.filename))) {
+                        long sent = copy(reader, outData, sentToken.filesize);
+                        outData.flush();
+                        System.out.println("SENT FILE : LENGTH : " + sent);
+                    }
                 } else {
                     System.out.println("INCORRECT ACK RECEIVED AT CLIENT FROM DSTORE");
                 }
@@ -151,4 +455,152 @@ public class Client {
             System.out.println("RECEIVED : " + line);
         }
     }
+
+    /**
+     * Sends the file once, to the first Dstore to store it on, which passes it along the rest as it arrives (see
+     * STORE_CHAIN). The file is streamed from disk rather than read into memory whole
+     * @param sentToken : STORE request sent to the Controller
+     * @param ports : Dstores to store the file on, in the order the file is passed along them
+     */
+    private void storeChain(StoreToken sentToken, ArrayList<Integer> ports) throws IOException {
+        StringBuilder message = new StringBuilder(Protocol.STORE_CHAIN_TOKEN);
+        message.append(" ").append(sentToken.filename).append(" ").append(sentToken.filesize);
+        for (int port : ports.subList(1, ports.size())) {
+            message.append(" ").append(port);
+        }
+        try (Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), ports.get(0));
+             FileInputStream reader = new FileInputStream(sentToken.filename)) {
+            PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
+            BufferedReader inText = new BufferedReader(new InputStreamReader(dStoreSocket.getInputStream()));
+            OutputStream outData = dStoreSocket.getOutputStream();
+            System.out.println("SENDING : " + message);
+            outText.println(message);
+            outText.flush();
+
+            String ack = inText.readLine();
+            System.out.println("RECEIVED : " + ack);
+            if (Tokenizer.getToken(ack) instanceof AckToken) {
+                long sent = copy(reader, outData, sentToken.filesize);
+                outData.flush();
+                System.out.println("SENT FILE : LENGTH : " + sent);
+            } else {
+                System.out.println("INCORRECT ACK RECEIVED AT CLIENT FROM DSTORE");
+            }
+        }
+    }
+
+    /**
+     * Stream which ends after a set number of bytes of the stream it reads from
+     */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        private BoundedInputStream(InputStream in, long length) {
+            super(in);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int b = this.in.read();
+            if (b != -1) {
+                this.remaining -= 1;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (this.remaining <= 0) {
+                return -1;
+            }
+            int read = this.in.read(b, off, (int) Math.min(len, this.remaining));
+            if (read > 0) {
+                this.remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = this.in.skip(Math.min(n, this.remaining));
+            this.remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(this.in.available(), this.remaining);
+        }
+    }
+
+    /**
+     * Reads the Dstore's COMPRESSED reply to LOAD_DATA_COMPRESSED
+     * @param in : stream from the Dstore
+     * @return stream of the file's contents, decompressed as they arrive if the Dstore stores the file compressed
+     * @throws IOException if the Dstore did not reply (it does not have the file), or uses a codec not known here
+     */
+    private static InputStream openCompressed(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c == -1) {
+                throw new EOFException("Dstore closed connection before sending file");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        System.out.println("RECEIVED : " + line);
+        Token t = Tokenizer.getToken(line.toString());
+        if (!(t instanceof CompressedToken)) {
+            throw new IOException("expected COMPRESSED, received " + line);
+        }
+        String codec = ((CompressedToken) t).codec;
+        //Only the stored_size bytes the Dstore said it would send are read, whatever the codec makes of them
+        InputStream stored = new BoundedInputStream(in, ((CompressedToken) t).storedSize);
+        if (codec.equals(Protocol.CODEC_NONE)) {
+            return stored;
+        } else if (codec.equals(Protocol.CODEC_DEFLATE)) {
+            return new InflaterInputStream(stored);
+        } else {
+            throw new IOException("unknown codec " + codec);
+        }
+    }
+
+    /**
+     * Checks the checksum of a file loaded from a Dstore against the one the Controller gave
+     * @param checksum : checksum of what was loaded
+     * @param expected : checksum from the LOAD_FROM reply, or Protocol.NO_CHECKSUM if it gave none
+     * @return true if they match, or there was nothing to check against
+     */
+    static boolean checksumMatches(String filename, int port, long checksum, long expected) {
+        if (expected == Protocol.NO_CHECKSUM || checksum == expected) {
+            return true;
+        }
+        System.out.println("### ERROR ###   " + filename + " loaded from " + port + " has checksum "
+                + Tokenizer.checksumToString(checksum) + ", expected " + Tokenizer.checksumToString(expected));
+        return false;
+    }
+
+    /**
+     * Copies up to length bytes from one stream to another, a chunk at a time
+     * @return number of bytes copied (less than length if the input ended first)
+     */
+    static long copy(InputStream in, OutputStream out, long length) throws IOException {
+        byte[] chunk = new byte[COPY_CHUNK_SIZE];
+        long copied = 0;
+        while (copied < length) {
+            int read = in.read(chunk, 0, (int) Math.min(chunk.length, length - copied));
+            if (read == -1) {
+                break;
+            }
+            out.write(chunk, 0, read);
+            copied += read;
+        }
+        return copied;
+    }
 }
@@ -12,7 +12,10 @@ public class ClientMain {
         System.out.println("STORE filename filesize");
         System.out.println("REMOVE filename");
         System.out.println("LOAD filename");
+        System.out.println("LOAD_RANGE filename offset length");
         System.out.println("LIST");
+        System.out.println("LIST_PAGE ^ page_size [prefix]");
+        System.out.println("LIST_GEN generation");
         System.out.println("-------------------------------------");
         System.out.println("--- Enter commands below (to exit type QUIT) ---");
 
@@ -0,0 +1,204 @@
+package Client;
+
+import Loggers.Protocol;
+import Tokenizer.AckToken;
+import Tokenizer.Tokenizer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class which sends a file being stored to all of its Dstores at once.
+ * The file is read from disk once, a chunk at a time, into a small ring of buffers shared by every Dstore. Each Dstore
+ * is sent the file on its own thread, as fast as it will take it. A buffer is only refilled once every Dstore still
+ * being sent the file has sent it, so the fastest Dstore runs at most the whole ring ahead of the slowest, and memory
+ * used does not grow with the size of the file. A Dstore which fails is dropped and no longer holds the others up.
+ * The upload takes as long as the slowest Dstore, rather than as long as all of them one after another.
+ */
+public class FanOutUpload {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Number of chunks in the ring
+    private static final int RING_CHUNKS = 16;
+
+    private final String filename;
+    private final long filesize;
+    private final ArrayList<Integer> ports;
+    private final byte[][] ring;
+    // Number of bytes in each chunk of the ring
+    private final int[] ringLengths;
+    // Chunks read from the file so far, and whether the whole file has been read (or could not be)
+    private long chunksRead;
+    private boolean readFinished;
+    // Chunks sent to each Dstore so far, or -1 once a Dstore has finished or failed. Guarded by this object's monitor
+    private final long[] chunksSent;
+    // False once any Dstore has failed
+    private boolean sentToAll;
+
+    /**
+     * Constructor
+     * @param filename : name to store the file under
+     * @param filesize : size of the file
+     * @param ports : Dstores to store the file on
+     */
+    public FanOutUpload(String filename, long filesize, ArrayList<Integer> ports) {
+        this.filename = filename;
+        this.filesize = filesize;
+        this.ports = ports;
+        this.ring = new byte[RING_CHUNKS][(int) Math.max(1, Math.min(CHUNK_SIZE, filesize))];
+        this.ringLengths = new int[RING_CHUNKS];
+        this.chunksRead = 0;
+        this.readFinished = false;
+        this.chunksSent = new long[ports.size()];
+        this.sentToAll = true;
+    }
+
+    /**
+     * Method which sends the file to every Dstore, returning once every Dstore has been sent it or has failed
+     * The time each Dstore took is printed as it finishes
+     * @param reader : stream to read the file's contents from (only filesize bytes are read)
+     * @return true if every Dstore was sent the whole file
+     */
+    public boolean run(InputStream reader) throws IOException {
+        ArrayList<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < this.ports.size(); i++) {
+            int replica = i;
+            Thread sender = new Thread(() -> this.sendToReplica(replica), "store-" + this.ports.get(i));
+            sender.setDaemon(true);
+            senders.add(sender);
+            sender.start();
+        }
+        try {
+            this.readFile(reader);
+        } finally {
+            synchronized (this) {
+                this.readFinished = true;
+                this.notifyAll();
+            }
+            for (Thread sender : senders) {
+                try {
+                    sender.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        synchronized (this) {
+            return this.sentToAll;
+        }
+    }
+
+    /**
+     * Reads the file into the ring a chunk at a time, waiting for a free buffer before each chunk
+     */
+    private void readFile(InputStream reader) throws IOException {
+        long remaining = this.filesize;
+        while (remaining > 0) {
+            int slot;
+            synchronized (this) {
+                while (this.chunksRead - this.slowestSent() >= RING_CHUNKS) {
+                    try {
+                        this.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("store of " + this.filename + " interrupted");
+                    }
+                }
+                slot = (int) (this.chunksRead % RING_CHUNKS);
+            }
+            //The slot is free: every Dstore still being sent the file has already sent it
+            int read = reader.read(this.ring[slot], 0, (int) Math.min(this.ring[slot].length, remaining));
+            if (read == -1) {
+                throw new EOFException(this.filename + " is shorter than " + this.filesize + " bytes");
+            }
+            remaining -= read;
+            synchronized (this) {
+                this.ringLengths[slot] = read;
+                this.chunksRead += 1;
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return fewest chunks sent to any Dstore which has not failed (or chunksRead, if they all have)
+     */
+    private long slowestSent() {
+        long slowest = this.chunksRead;
+        for (long sent : this.chunksSent) {
+            if (sent >= 0) {
+                slowest = Math.min(slowest, sent);
+            }
+        }
+        return slowest;
+    }
+
+    /**
+     * Sends the file to one Dstore, chunk by chunk as they are read. Run on that Dstore's own thread
+     * @param replica : index of the Dstore in ports
+     */
+    private void sendToReplica(int replica) {
+        int port = this.ports.get(replica);
+        long start = System.nanoTime();
+        boolean succeeded = false;
+        try (Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), port)) {
+            PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
+            BufferedReader inText = new BufferedReader(new InputStreamReader(dStoreSocket.getInputStream()));
+            OutputStream outData = dStoreSocket.getOutputStream();
+            String message = Protocol.STORE_TOKEN + " " + this.filename + " " + this.filesize;
+            System.out.println("SENDING : " + message + " (to " + port + ")");
+            outText.println(message);
+            outText.flush();
+
+            String ack = inText.readLine();
+            System.out.println("RECEIVED : " + ack + " (from " + port + ")");
+            if (!(Tokenizer.getToken(ack) instanceof AckToken)) {
+                throw new IOException("INCORRECT ACK RECEIVED AT CLIENT FROM DSTORE");
+            }
+            long sent = 0;
+            long bytesSent = 0;
+            while (true) {
+                int slot;
+                synchronized (this) {
+                    while (sent == this.chunksRead && !this.readFinished) {
+                        this.wait();
+                    }
+                    if (sent == this.chunksRead) {
+                        break;
+                    }
+                    slot = (int) (sent % RING_CHUNKS);
+                }
+                //The slot cannot be refilled until this Dstore's count moves past it
+                outData.write(this.ring[slot], 0, this.ringLengths[slot]);
+                bytesSent += this.ringLengths[slot];
+                sent += 1;
+                synchronized (this) {
+                    this.chunksSent[replica] = sent;
+                    this.notifyAll();
+                }
+            }
+            outData.flush();
+            if (bytesSent < this.filesize) {
+                throw new IOException("only " + bytesSent + " of " + this.filesize + " bytes could be read");
+            }
+            System.out.println("SENT FILE TO " + port + " : LENGTH : " + this.filesize + ", TOOK "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+            succeeded = true;
+        } catch (IOException e) {
+            System.out.println("FAILED TO SEND FILE TO " + port + " AFTER "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms : " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (this) {
+                this.chunksSent[replica] = -1;
+                this.sentToAll &= succeeded;
+                this.notifyAll();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package Client;
+
+import java.util.Arrays;
+
+/**
+ * Class which keeps the most recent times Dstores took to start sending a file, shared by every load the client
+ * process makes, so a hedged load can wait for a percentile of them before asking for a second Dstore.
+ */
+public class FirstByteLatencies {
+
+    // Number of recent times kept
+    private static final int SAMPLES = 256;
+    // Fewer times than this are not enough to take a percentile from, and the default delay is used instead
+    private static final int MIN_SAMPLES = 10;
+
+    private final long[] nanos;
+    private int next;
+    private int count;
+    private final long defaultDelayNanos;
+
+    /**
+     * Constructor
+     * @param defaultDelayNanos : delay used until enough times have been recorded
+     */
+    public FirstByteLatencies(long defaultDelayNanos) {
+        this.nanos = new long[SAMPLES];
+        this.next = 0;
+        this.count = 0;
+        this.defaultDelayNanos = defaultDelayNanos;
+    }
+
+    public synchronized void record(long firstByteNanos) {
+        this.nanos[this.next] = firstByteNanos;
+        this.next = (this.next + 1) % SAMPLES;
+        this.count = Math.min(this.count + 1, SAMPLES);
+    }
+
+    /**
+     * @param percentile : percentile of the recent times to wait for (0 to 100)
+     * @return how long to wait for the first byte before hedging
+     */
+    public synchronized long getDelayNanos(double percentile) {
+        if (this.count < MIN_SAMPLES) {
+            return this.defaultDelayNanos;
+        }
+        long[] sorted = Arrays.copyOf(this.nanos, this.count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * this.count) - 1;
+        return sorted[Math.max(0, Math.min(this.count - 1, index))];
+    }
+}
@@ -0,0 +1,82 @@
+package Client;
+
+import Erasure.FragmentHeader;
+import Erasure.FragmentInputStream;
+import Erasure.FragmentSet;
+import Loggers.Protocol;
+import Tokenizer.LoadFragmentsToken;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Class which loads a file from an erasure coded cluster, rebuilding it from any k of its fragments.
+ * The Dstores given by the Controller are tried best first, and each one asked for its fragment, until k different
+ * fragments are arriving. All k are then read at once, a stripe at a time, so the file arrives from k Dstores in
+ * parallel and is rebuilt as it arrives (see FragmentInputStream). Dstores that cannot be reached, or send a fragment
+ * already being read, are passed over.
+ */
+public class FragmentDownload implements Closeable {
+
+    private final String filename;
+    private final LoadFragmentsToken from;
+    private final ArrayList<Socket> sockets;
+
+    /**
+     * Constructor
+     * @param filename : file to load
+     * @param from : the Controller's LOAD_FRAGMENTS reply
+     */
+    public FragmentDownload(String filename, LoadFragmentsToken from) {
+        this.filename = filename;
+        this.from = from;
+        this.sockets = new ArrayList<>();
+    }
+
+    /**
+     * Method which starts loading the file from k Dstores
+     * @param offset : number of bytes at the start of the file to skip
+     * @return stream of the file's contents from the offset on
+     * @throws IOException if k different fragments could not be loaded
+     */
+    public InputStream open(long offset) throws IOException {
+        FragmentSet fragments = new FragmentSet();
+        for (Integer port : this.from.ports) {
+            if (fragments.isComplete()) {
+                break;
+            }
+            try {
+                Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), port);
+                this.sockets.add(dStoreSocket);
+                PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
+                outText.println(Protocol.LOAD_DATA_TOKEN + " " + this.filename);
+                outText.flush();
+                System.out.println("SENDING : " + Protocol.LOAD_DATA_TOKEN + " " + this.filename + " (to " + port + ")");
+                InputStream in = new BufferedInputStream(dStoreSocket.getInputStream());
+                FragmentHeader header = FragmentHeader.read(in);
+                if (header.filesize != this.from.filesize || !fragments.add(header, in)) {
+                    dStoreSocket.close();
+                }
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Could not load fragment of " + this.filename + " from " + port
+                        + " : " + e);
+            }
+        }
+        if (!fragments.isComplete()) {
+            throw new IOException("fewer than " + this.from.dataFragments + " fragments of " + this.filename
+                    + " could be loaded");
+        }
+        InputStream in = new FragmentInputStream(fragments);
+        in.skipNBytes(offset);
+        return in;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Socket s : this.sockets) {
+            s.close();
+        }
+    }
+}
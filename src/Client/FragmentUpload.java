@@ -0,0 +1,140 @@
+package Client;
+
+import Erasure.FragmentEncoder;
+import Erasure.FragmentHeader;
+import Loggers.Protocol;
+import Tokenizer.AckToken;
+import Tokenizer.Tokenizer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+
+/**
+ * Class which stores a file on an erasure coded cluster, as k data fragments and m parity fragments, each on its own
+ * Dstore (see the Erasure package).
+ * Every Dstore is asked to store its fragment before any data is sent. The file is then read from disk once, a stripe
+ * at a time, and each stripe's chunks are sent to their Dstores as they are worked out, so neither the file nor any
+ * fragment is held in memory whole. A Dstore which fails is dropped and the rest carry on; the Controller will not
+ * say the file is stored unless every Dstore acknowledges its fragment.
+ */
+public class FragmentUpload {
+
+    private final String filename;
+    private final long filesize;
+    private final int dataFragments;
+    private final ArrayList<Integer> ports;
+
+    /**
+     * Constructor
+     * @param filename : name to store the file under
+     * @param filesize : size of the file
+     * @param dataFragments : number of data fragments (k) given by the Controller
+     * @param ports : Dstore to store each fragment on, in fragment order
+     */
+    public FragmentUpload(String filename, long filesize, int dataFragments, ArrayList<Integer> ports) {
+        this.filename = filename;
+        this.filesize = filesize;
+        this.dataFragments = dataFragments;
+        this.ports = ports;
+    }
+
+    /**
+     * Method which sends every fragment to its Dstore
+     * @param reader : stream to read the file's contents from (only filesize bytes are read)
+     * @return true if every Dstore was sent its whole fragment
+     */
+    public boolean run(InputStream reader) throws IOException {
+        FragmentHeader header = FragmentHeader.forFile(this.filesize, this.dataFragments,
+                this.ports.size() - this.dataFragments);
+        ArrayList<Socket> sockets = new ArrayList<>();
+        FragmentOutput[] fragments = new FragmentOutput[this.ports.size()];
+        try {
+            for (int i = 0; i < this.ports.size(); i++) {
+                int port = this.ports.get(i);
+                OutputStream outData = null;
+                try {
+                    Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), port);
+                    sockets.add(dStoreSocket);
+                    PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
+                    BufferedReader inText = new BufferedReader(new InputStreamReader(dStoreSocket.getInputStream()));
+                    String message = Protocol.STORE_TOKEN + " " + this.filename + " " + header.getFragmentSize();
+                    System.out.println("SENDING : " + message + " (to " + port + ")");
+                    outText.println(message);
+                    outText.flush();
+                    String ack = inText.readLine();
+                    System.out.println("RECEIVED : " + ack + " (from " + port + ")");
+                    if (Tokenizer.getToken(ack) instanceof AckToken) {
+                        outData = new BufferedOutputStream(dStoreSocket.getOutputStream());
+                    } else {
+                        System.out.println("INCORRECT ACK RECEIVED AT CLIENT FROM DSTORE");
+                    }
+                } catch (IOException e) {
+                    System.out.println("FAILED TO SEND FRAGMENT " + i + " TO " + port + " : " + e.getMessage());
+                }
+                fragments[i] = new FragmentOutput(i, port, outData);
+            }
+            new FragmentEncoder(header).encode(reader, fragments);
+        } finally {
+            for (Socket s : sockets) {
+                s.close();
+            }
+        }
+        boolean sentToAll = true;
+        for (FragmentOutput fragment : fragments) {
+            sentToAll &= fragment.out != null;
+        }
+        System.out.println("SENT " + this.ports.size() + " FRAGMENTS OF " + header.getFragmentSize() + " BYTES");
+        return sentToAll;
+    }
+
+    /**
+     * Stream of a single fragment to its Dstore. Once writing to the Dstore fails, the rest of the fragment is thrown
+     * away, so one Dstore failing does not stop the others being sent their fragments
+     */
+    private static class FragmentOutput extends OutputStream {
+        private final int index;
+        private final int port;
+        // Stream to the Dstore, or null once it has failed
+        private OutputStream out;
+
+        private FragmentOutput(int index, int port, OutputStream out) {
+            this.index = index;
+            this.port = port;
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) {
+            this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            if (this.out != null) {
+                try {
+                    this.out.write(b, off, len);
+                } catch (IOException e) {
+                    this.failed(e);
+                }
+            }
+        }
+
+        @Override
+        public void flush() {
+            if (this.out != null) {
+                try {
+                    this.out.flush();
+                } catch (IOException e) {
+                    this.failed(e);
+                }
+            }
+        }
+
+        private void failed(IOException e) {
+            System.out.println("FAILED TO SEND FRAGMENT " + this.index + " TO " + this.port + " : " + e.getMessage());
+            this.out = null;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package Client;
+
+import Loggers.Protocol;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.CRC32C;
+
+/**
+ * Class which loads a file from a single Dstore, on its own thread, so a client can race loads from two Dstores.
+ * The time until the first byte of the file arrives is reported separately from the whole file, and the load can be
+ * cancelled from another thread by closing its socket.
+ */
+public class LoadAttempt implements Runnable {
+
+    private final String filename;
+    private final int port;
+    private final int filesize;
+    // Checksum the file should have, or Protocol.NO_CHECKSUM to not check it
+    private final long checksum;
+    private volatile Socket socket;
+    private volatile boolean cancelled;
+    // Completes with the nanoseconds until the first byte arrived (or the request was sent, for an empty file)
+    private final CompletableFuture<Long> firstByte;
+    // Completes with the file's contents, or exceptionally if the whole file could not be read
+    private final CompletableFuture<byte[]> result;
+
+    public LoadAttempt(String filename, int port, int filesize, long checksum) {
+        this.filename = filename;
+        this.port = port;
+        this.filesize = filesize;
+        this.checksum = checksum;
+        this.cancelled = false;
+        this.firstByte = new CompletableFuture<>();
+        this.result = new CompletableFuture<>();
+    }
+
+    /**
+     * Starts the load on its own daemon thread, so an unfinished load never keeps the client process running
+     */
+    public void start() {
+        Thread thread = new Thread(this, "load-" + this.port);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public CompletableFuture<Long> getFirstByte() {
+        return this.firstByte;
+    }
+
+    public CompletableFuture<byte[]> getResult() {
+        return this.result;
+    }
+
+    @Override
+    public void run() {
+        long start = System.nanoTime();
+        try (Socket dStoreSocket = new Socket(InetAddress.getLocalHost(), this.port)) {
+            this.socket = dStoreSocket;
+            if (this.cancelled) {
+                throw new IOException("load from " + this.port + " cancelled");
+            }
+            PrintWriter outText = new PrintWriter(new BufferedOutputStream(dStoreSocket.getOutputStream()));
+            InputStream inData = dStoreSocket.getInputStream();
+            outText.println(Protocol.LOAD_DATA_TOKEN + " " + this.filename);
+            outText.flush();
+            System.out.println("SENDING : " + Protocol.LOAD_DATA_TOKEN + " " + this.filename + " (to " + this.port + ")");
+            byte[] data = new byte[this.filesize];
+            int read = 0;
+            if (this.filesize > 0) {
+                read = inData.read(data, 0, this.filesize);
+                if (read <= 0) {
+                    throw new IOException("Dstore " + this.port + " sent no data");
+                }
+            }
+            this.firstByte.complete(System.nanoTime() - start);
+            read += inData.readNBytes(data, read, this.filesize - read);
+            if (read != this.filesize) {
+                throw new IOException("Dstore " + this.port + " sent " + read + " of " + this.filesize + " bytes");
+            }
+            CRC32C crc = new CRC32C();
+            crc.update(data, 0, read);
+            if (!Client.checksumMatches(this.filename, this.port, crc.getValue(), this.checksum)) {
+                throw new IOException("Dstore " + this.port + " sent a corrupt copy of " + this.filename);
+            }
+            this.result.complete(data);
+        } catch (IOException e) {
+            this.firstByte.completeExceptionally(e);
+            this.result.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Stops the load, if it is still running
+     */
+    public void cancel() {
+        this.cancelled = true;
+        Socket s = this.socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package ConnectionParent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Class holding the executor shared by every connection handler of a Controller or Dstore process.
+ * Handlers keep their blocking style, the executor decides what kind of thread they block on:
+ * <ul>
+ *     <li>PLATFORM - a pool of ordinary threads, reused between connections (the default)</li>
+ *     <li>VIRTUAL - a new virtual thread per handler, so idle connections cost very little memory.
+ *     Needs Java 21 or later, platform threads are used on older versions</li>
+ * </ul>
+ * The mode is chosen with the system property dfs.threads=platform|virtual
+ */
+public class ConnectionExecutor {
+
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+
+    private static final ExecutorService executor = createExecutor(readMode());
+
+    private ConnectionExecutor() { }
+
+    /**
+     * Runs a connection handler (or any other blocking task) on the shared executor
+     * @param task : task to run
+     */
+    public static void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /**
+     * @return the mode given by dfs.threads, or PLATFORM if it is not set or not a mode
+     */
+    private static Mode readMode() {
+        String mode = System.getProperty("dfs.threads", "platform");
+        try {
+            return Mode.valueOf(mode.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("### ERROR ###   Unknown dfs.threads mode " + mode + ", using platform threads");
+            return Mode.PLATFORM;
+        }
+    }
+
+    private static ExecutorService createExecutor(Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            //Looked up by reflection so the code still compiles and runs on Java versions without virtual threads
+            try {
+                Method virtualExecutor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) virtualExecutor.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.out.println("### ERROR ###   Virtual threads need Java 21 or later, using platform threads");
+            }
+        }
+        return Executors.newCachedThreadPool();
+    }
+}
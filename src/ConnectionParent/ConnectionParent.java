@@ -5,7 +5,7 @@ import Tokenizer.Tokenizer;
 import java.io.*;
 import java.net.Socket;
 
-public class ConnectionParent extends Thread{
+public class ConnectionParent implements Runnable {
 
     protected Socket socket;
     protected PrintWriter outText;
@@ -20,4 +20,15 @@ public class ConnectionParent extends Thread{
         this.outData = new BufferedOutputStream(s.getOutputStream());
         this.inData = new BufferedInputStream(s.getInputStream());
     }
+
+    /**
+     * Starts handling the connection on the shared connection executor (platform or virtual threads)
+     */
+    public void start() {
+        ConnectionExecutor.execute(this);
+    }
+
+    @Override
+    public void run() {
+    }
 }
@@ -0,0 +1,43 @@
+package Controller;
+
+import Tokenizer.*;
+import Loggers.Protocol;
+
+/**
+ * Interface for a connection from the Controller to a client, whichever front end (thread per connection or
+ * selector) the connection is being served by. The Controller only ever talks to clients through this interface.
+ */
+public interface ClientConnection {
+
+    /**
+     * Sends a single line to the client
+     * @param message : line to send, without the line terminator
+     */
+    void sendLine(String message);
+
+    /**
+     * Sends a single line which has already been encoded, so the same bytes can be sent to many clients
+     * @param message : line to send, without the line terminator (used for logging)
+     * @param encodedLine : the line encoded in UTF-8, with its line terminator
+     */
+    default void sendEncodedLine(String message, byte[] encodedLine) {
+        this.sendLine(message);
+    }
+
+    /**
+     * Method which generalises sending data to the client. The parameters are explained below
+     * @param reqToken: The tokenized request the client sent to the controller
+     * @param message: String message to send to the client, usually just contains the data specific for that message
+     */
+    default void sendToClient(Token reqToken, String message) {
+        //If request to controller was a list, we are sending back a LIST filename1 filename2 ... message
+        if (reqToken instanceof ListToken) {
+            message = Protocol.LIST_TOKEN + message;
+            //If request was store, we are sending back a STORE_TO port1 port2 port3 ... message
+        } else if (reqToken instanceof StoreToken) {
+            message = Protocol.STORE_TO_TOKEN + message;
+        }
+        //Any other message (STORE_COMPLETE, errors, ...) is sent as it is
+        this.sendLine(message);
+    }
+}
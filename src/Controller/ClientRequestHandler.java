@@ -0,0 +1,156 @@
+package Controller;
+
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+import Tokenizer.*;
+import Loggers.*;
+import ConnectionParent.ConnectionExecutor;
+import IndexManager.DstoreFile;
+import IndexManager.ListCache;
+
+/**
+ * Class which handles the requests sent by a single client, whichever front end the client's connection is
+ * served by. It holds the state kept between requests of that client (the Dstores left to try on a RELOAD).
+ */
+public class ClientRequestHandler {
+
+    private final Controller controller;
+    private final ClientConnection connection;
+    private volatile ArrayList<Integer> reloadDstoresToTry;
+
+    public ClientRequestHandler(Controller controller, ClientConnection connection) {
+        this.controller = controller;
+        this.connection = connection;
+        this.reloadDstoresToTry = new ArrayList<>();
+    }
+
+    public synchronized void handleRequest(Token reqToken) {
+        //For any request, checks if enough Dstores have joined. If not, sends error to client
+        if (!this.controller.checkEnoughDstores(reqToken)) {
+            this.connection.sendToClient(new NotEnoughDStoresToken(reqToken == null ? null : reqToken.req),
+                    Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
+        //A LOAD or RELOAD of a file the running rebalance is copying, moving or removing waits until the rebalance is
+        //done with it, as its list of Dstores is being changed. Every other request goes ahead straight away
+        //(a REMOVE of such a file is held back by the Controller itself)
+        if (reqToken instanceof LoadToken && this.deferIfLocked(((LoadToken) reqToken).filename, reqToken)) {
+            return;
+        }
+        if (reqToken instanceof LoadRangeToken && this.deferIfLocked(((LoadRangeToken) reqToken).filename, reqToken)) {
+            return;
+        }
+        if (reqToken instanceof ReloadToken && this.deferIfLocked(((ReloadToken) reqToken).filename, reqToken)) {
+            return;
+        }
+
+        //If request is a list, get the cached LIST reply from controller and send it to client as it is
+        if (reqToken instanceof ListToken) {
+            ListCache.Snapshot list = this.controller.getListSnapshot();
+            this.connection.sendEncodedLine(list.message, list.encodedLine);
+            //If request is for the changes to the list since a generation, send what has changed
+        } else if (reqToken instanceof ListGenToken) {
+            this.connection.sendLine(this.controller.getListChanges(((ListGenToken) reqToken).generation));
+            //If request is for one page of the list, the reply is a whole LIST_PAGE_RESULT message
+        } else if (reqToken instanceof ListPageToken) {
+            this.connection.sendToClient(reqToken, this.controller.getFilesForListPage((ListPageToken) reqToken));
+            //If request is a store, call handleStore method to handle request
+        } else if (reqToken instanceof StoreToken) {
+            this.handleStore(reqToken);
+        } else if (reqToken instanceof RemoveToken) {
+            this.handleRemove(reqToken);
+        } else if (reqToken instanceof LoadToken) {
+            this.handleLoad(reqToken);
+        } else if (reqToken instanceof LoadRangeToken) {
+            this.handleLoadRange((LoadRangeToken) reqToken);
+        } else if (reqToken == null){
+            System.out.println("### ERROR ###   Malformed input received by Controller from Client");
+        }
+
+        if (reqToken instanceof ReloadToken) {
+            this.handleReload(reqToken);
+        }
+    }
+
+    /**
+     * Method which holds back a request until the file it is for is no longer locked by a rebalance
+     * @param filename : file the request is for
+     * @param reqToken : request to handle once the file is unlocked
+     * @return true if the request was held back, false if the file is not locked
+     */
+    private boolean deferIfLocked(String filename, Token reqToken) {
+        CompletableFuture<Void> unlocked = this.controller.whenUnlocked(filename);
+        if (unlocked.isDone()) {
+            return false;
+        }
+        unlocked.thenRunAsync(() -> this.handleRequest(reqToken), ConnectionExecutor::execute);
+        return true;
+    }
+
+    /**
+     * Method which handles a STORE request operation
+     * @param req: The tokenized version of the STORE request sent by the client
+     */
+    private void handleStore(Token req) {
+        String filename = ((StoreToken)req).filename;
+        long filesize = ((StoreToken)req).filesize;
+        // CORRECT FILESIZE
+        this.controller.store(filename, filesize, this.connection);
+    }
+
+    /**
+     * Method to handle a remove request
+     * @param req
+     */
+    private void handleRemove(Token req) {
+        //Tries to update index to set file to REMOVE_IN_PROGRESS, if that fails then we send error to client
+        String fileToRemove = ((RemoveToken)req).filename;
+        this.controller.remove(fileToRemove, req, this.connection);
+    }
+
+    private void handleLoad(Token req) {
+        String filename = ((LoadToken)req).filename;
+        ArrayList<Integer> rankedDstores = this.controller.load(filename, this.connection);
+        if (rankedDstores != null) {
+            //The first Dstore has been sent to the client, the rest are tried in order on a RELOAD
+            this.controller.loadStarted(rankedDstores.remove(0));
+        }
+        this.reloadDstoresToTry = rankedDstores;
+    }
+
+    /**
+     * Method to handle a request for part of a file. The client is sent a Dstore to load from just as for a LOAD
+     * (with the size of the whole file, so it can tell where the file ends), and asks the Dstore for the part itself
+     * @param req : the client's LOAD_RANGE request
+     */
+    private void handleLoadRange(LoadRangeToken req) {
+        ArrayList<Integer> rankedDstores = this.controller.load(req.filename, this.connection);
+        if (rankedDstores != null) {
+            this.controller.loadStarted(rankedDstores.remove(0));
+        }
+        this.reloadDstoresToTry = rankedDstores;
+    }
+
+    private void handleReload(Token req) {
+        String filename = ((ReloadToken)req).filename;
+        if (this.reloadDstoresToTry != null) {
+            if (this.reloadDstoresToTry.size() != 0) {
+                int portToTry = this.reloadDstoresToTry.get(0);
+                this.reloadDstoresToTry.remove(Integer.valueOf(portToTry));
+                DstoreFile file = this.controller.getFile(filename);
+                if (file != null) {
+                    LoadFromToken tokenToSend = this.controller.getLoadFromToken(portToTry, file);
+                    this.connection.sendToClient(tokenToSend, tokenToSend.req);
+                    this.controller.loadStarted(portToTry);
+                } else {
+                    this.connection.sendToClient(new FileNotExistToken(null), Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
+                }
+            } else {
+                this.connection.sendToClient(new ErrorLoadToken(null), Protocol.ERROR_LOAD_TOKEN);
+            }
+        } else {
+            this.connection.sendToClient(new ErrorLoadToken(null), Protocol.ERROR_LOAD_TOKEN);
+        }
+    }
+}
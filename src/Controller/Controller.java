@@ -5,26 +5,40 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 import Tokenizer.*;
 import Loggers.*;
 import IndexManager.*;
+import ConnectionParent.ConnectionExecutor;
 
 public class Controller {
 
+    // Largest page of filenames sent in reply to a single LIST_PAGE, whatever page size the client asks for
+    private static final int MAX_LIST_PAGE_SIZE = 10000;
+
     private int cPort;
     private int R;
+    // Number of data fragments (k) each file is split into if the cluster is erasure coded, or 0 if files are
+    // replicated. R is then the total number of fragments, k+m
+    private int dataFragments;
     private int timeout;
     private int rebalancePeriod;
     private volatile boolean ifRebalancing;
     private Rebalancer rebalancer;
     private IndexManager fileIndex;
-    private Map<Integer, ControllerToDStoreConnection> dStoreConnectionMap;
-    private ArrayList<ControllerToDStoreConnection> dStores;
+    private Map<Integer, DstoreConnection> dStoreConnectionMap;
+    private ArrayList<DstoreConnection> dStores;
     private ArrayList<Integer> rebalanceCompletesExpected;
+    private RebalanceScheduler rebalanceScheduler;
+    // Picks which Dstore each LOAD is sent to, by the loads each Dstore is serving and how fast it has served them
+    private final ReplicaSelector replicaSelector;
+    // Controller's copy of the files on each Dstore, kept up to date with the changes each Dstore reports
+    private final ConcurrentHashMap<Integer, DstoreInventory> inventories;
 
     public Controller(int cPort, int R, int timeout, int rebalancePeriod) throws IOException {
         this.cPort = cPort;
@@ -32,32 +46,70 @@ public class Controller {
         this.timeout = timeout;
         this.rebalancePeriod = rebalancePeriod;
         this.dStoreConnectionMap = Collections.synchronizedMap(new HashMap<>());
-        this.fileIndex = new IndexManager();
+        this.fileIndex = new IndexManager(Integer.getInteger("controller.list.changes", 100000));
         this.dStores = new ArrayList<>();
         this.rebalanceCompletesExpected = new ArrayList<>();
+        this.rebalanceScheduler = new RebalanceScheduler(this, rebalancePeriod);
+        this.inventories = new ConcurrentHashMap<>();
+        this.replicaSelector = new ReplicaSelector(timeout);
 
         ControllerLogger.init(Logger.LoggingType.ON_FILE_AND_TERMINAL);
     }
 
+    /**
+     * Method which makes the cluster store files erasure coded rather than replicated. Each file is split into k data
+     * fragments plus m parity fragments, any k of which rebuild it, each stored on a different Dstore. So k+m Dstores
+     * are needed, files take (k+m)/k times their size, and any m Dstores can be lost.
+     * Must be called before the Controller starts listening, and the cluster must always be run with the same code
+     * @param k : number of data fragments
+     * @param m : number of parity fragments
+     */
+    public void useErasureCoding(int k, int m) {
+        if (k < 1 || m < 1 || k + m > 255) {
+            throw new IllegalArgumentException("unsupported erasure code " + k + "+" + m);
+        }
+        this.dataFragments = k;
+        this.R = k + m;
+    }
+
+    /**
+     * Method which makes the file index persistent, recovering whatever was in it when the Controller last stopped.
+     * Must be called before the Controller starts listening
+     * @param dir : directory to keep the index journal in
+     * @param snapshotEvery : number of index changes logged between compacted snapshots
+     */
+    public void recoverIndex(String dir, int snapshotEvery) throws IOException {
+        this.fileIndex.openJournal(Paths.get(dir), snapshotEvery);
+    }
+
     public void startListening() throws IOException {
-        //Starts thread which handles the rebalancing every x seconds
-        final double[] startTime = {System.currentTimeMillis()};
-        new Thread(() -> {
-            while (true) {
-                if (startTime[0] + this.rebalancePeriod < System.currentTimeMillis()) {
-                    this.beginRebalance();
-                    startTime[0] = System.currentTimeMillis();
-                }
-            }
-        }).start();
+        //Starts the scheduler which handles the rebalancing every x seconds
+        this.rebalanceScheduler.start();
         ServerSocket listener = new ServerSocket(this.cPort);
         //Listens for any connection attempted by Dstopre or Client
         while (true) {
             Socket connection = listener.accept();
-            this.startConnection(connection);
+            //The first line is read on the connection executor, so a slow client cannot hold up accepting others
+            ConnectionExecutor.execute(() -> {
+                try {
+                    this.startConnection(connection);
+                } catch (IOException e) {
+                    System.out.println("### ERROR ###   Could not set up connection : " + e);
+                }
+            });
         }
     }
 
+    /**
+     * Alternative to startListening which serves every client and Dstore connection from a small fixed set of
+     * selector event loops, instead of a thread per connection
+     * @param eventLoops : number of event loop threads to use
+     */
+    public void startSelectorListening(int eventLoops) throws IOException {
+        this.rebalanceScheduler.start();
+        new ControllerSelectorServer(this, this.cPort, eventLoops).serve();
+    }
+
     private void startConnection(Socket s) throws IOException{
         //Sets up input stream, waits for first message to be send
         //When message receiver, logs the message and tokenizes it
@@ -83,9 +135,7 @@ public class Controller {
             //If Dstore joining, log the join and save the port
             int dstorePort = ((JoinToken) token).port;
             ControllerLogger.getInstance().dstoreJoined(s, dstorePort);
-            ControllerToDStoreConnection dstoreConnection = new ControllerToDStoreConnection(s, dstorePort, this);
-            this.dStores.add(dstoreConnection);
-            this.dStoreConnectionMap.put(dstorePort, dstoreConnection);
+            this.registerDstore(new ControllerToDStoreConnection(s, dstorePort, this));
 
         } else if (token != null) {
             //If it's a client request, create a new connection thread to handle that
@@ -94,14 +144,34 @@ public class Controller {
         }
     }
 
-    private void beginRebalance() {
-        if (!this.ifRebalancing) {
-            //Waits for all files to be available before starting the rebalance operation
-            while (!this.fileIndex.checkIfAllAvailable()) {}
-            // Sets current rebalancing state to true
-            this.ifRebalancing = true;
+    /**
+     * Method which adds a newly joined Dstore to the system, whichever front end its connection is served by
+     * @param dstoreConnection : connection to the Dstore that has joined
+     */
+    public synchronized void registerDstore(DstoreConnection dstoreConnection) {
+        this.dStores.add(dstoreConnection);
+        this.dStoreConnectionMap.put(dstoreConnection.getDstorePort(), dstoreConnection);
+        this.fileIndex.addDstore(dstoreConnection.getDstorePort());
+        //A new Dstore joining is a reason to rebalance straight away, rather than waiting for the next period
+        this.rebalanceScheduler.runNow();
+    }
+
+    /**
+     * Method which carries out a rebalance operation. Called by the RebalanceScheduler
+     * Client requests and Dstore acks keep being handled while it runs. Only files which are available when the
+     * rebalance is planned are copied, moved or removed, and each is locked in the index as it is planned, so only
+     * LOADs and REMOVEs of those files wait for the rebalance to finish
+     * @return true if the rebalance went ahead, false if it was skipped
+     */
+    public boolean beginRebalance() {
+        if (this.ifRebalancing) {
+            return false;
+        }
+        // Sets current rebalancing state to true
+        this.ifRebalancing = true;
+        try {
             // Creates rebalancer object used for rebalancing
-            this.rebalancer = new Rebalancer(this.timeout, this.fileIndex);
+            this.rebalancer = new Rebalancer(this.timeout, this.fileIndex, this.inventories);
 
             // Next line runs rebalance operation logic
             // This checks if we need to move any files around (i.e., removing files from some Dstores and/or sending
@@ -110,60 +180,151 @@ public class Controller {
             // These instructions are returned in the form of a hashmap mapping from each Dstore port number to that
             // Dstores instructions.
             ConcurrentHashMap<Integer, RebalanceInstruction> instructions =
-                    this.rebalancer.rebalance(this.dStoreConnectionMap, this.R);
+                    this.rebalancer.rebalance(this.dStoreConnectionMap, this.R, this.dataFragments);
 
             // If logical rebalance operation succeeded, we carry out the instructions generated from this
             // to implement the changes of the rebalance operation.
             if (instructions != null) {
                 this.executeRebalanceInstructions(instructions);
-                this.ifRebalancing = false;
             }
+        } finally {
+            //Any LOAD or REMOVE waiting on a file this rebalance locked now goes ahead
+            this.fileIndex.unlockAllForRebalance();
+            this.ifRebalancing = false;
         }
+        return true;
     }
 
     public void executeRebalanceInstructions(ConcurrentHashMap<Integer, RebalanceInstruction> instructions) {
+        //Records which Dstores we expect a REBALANCE_COMPLETE from before sending any instructions
+        synchronized (this.rebalanceCompletesExpected) {
+            this.rebalanceCompletesExpected.clear();
+            this.rebalanceCompletesExpected.addAll(instructions.keySet());
+        }
         for (Integer dstorePort : instructions.keySet()) {
             String instruction = instructions.get(dstorePort).getInstruction();
-            this.dStoreConnectionMap.get(dstorePort).sendMessageToDstore(instruction);
+            DstoreConnection connection = this.dStoreConnectionMap.get(dstorePort);
+            if (connection != null) {
+                connection.sendMessageToDstore(instruction);
+            } else {
+                this.rebalanceCompleteReceived(dstorePort);
+            }
         }
+        this.listenForRebalanceCompletes();
     }
 
+    /**
+     * Method which waits until every Dstore sent a rebalance instruction has replied with REBALANCE_COMPLETE,
+     * or the timeout passes. The waiting thread is woken by rebalanceCompleteReceived
+     */
     private void listenForRebalanceCompletes() {
-        double timeoutStamp = System.currentTimeMillis() + this.timeout;
-        while (this.rebalanceCompletesExpected.size() > 0) {
-            if (timeoutStamp < System.currentTimeMillis()) {
-                System.out.println("--- TIMEOUT ---  Controller timed out waiting for REBALANCE_COMPLETE");
-                break;
+        long timeoutStamp = System.currentTimeMillis() + this.timeout;
+        synchronized (this.rebalanceCompletesExpected) {
+            while (this.rebalanceCompletesExpected.size() > 0) {
+                long remaining = timeoutStamp - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    System.out.println("--- TIMEOUT ---  Controller timed out waiting for REBALANCE_COMPLETE");
+                    break;
+                }
+                try {
+                    this.rebalanceCompletesExpected.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
             }
         }
     }
 
     public void rebalanceCompleteReceived(int port) {
-        this.rebalanceCompletesExpected.remove(Integer.valueOf(port));
+        synchronized (this.rebalanceCompletesExpected) {
+            this.rebalanceCompletesExpected.remove(Integer.valueOf(port));
+            this.rebalanceCompletesExpected.notifyAll();
+        }
+    }
+
+    /**
+     * Method which corrects the index for files a Dstore could not send during a rebalance. The index was updated when
+     * the rebalance was planned, assuming every transfer would succeed. The Dstores that did not receive a file are
+     * removed from it, and the sending Dstore (which keeps any file it failed to move) is put back
+     * @param filesFailedToSend : files the Dstore failed to send, with the ports it failed to send them to
+     * @param dstorePort : port of the Dstore that was sending
+     */
+    private void rebalanceTransfersFailed(ArrayList<FileToSend> filesFailedToSend, int dstorePort) {
+        for (FileToSend file : filesFailedToSend) {
+            System.out.println("### ERROR ###   Dstore (port: " + dstorePort + ") failed to send " + file.filename
+                    + " to " + file.dStores + " when rebalancing");
+            for (Integer port : file.dStores) {
+                this.fileIndex.removeDstoreForFile(file.filename, port);
+            }
+            this.fileIndex.addDstoreForFile(file.filename, dstorePort);
+        }
     }
 
-    public boolean getIfRebalancing() {
-        return this.ifRebalancing;
+    /**
+     * @param filename : file to check
+     * @return future which completes when the file is not locked by a rebalance (already complete if it is not)
+     */
+    public CompletableFuture<Void> whenUnlocked(String filename) {
+        return this.fileIndex.whenUnlocked(filename);
     }
 
     public boolean checkEnoughDstores() {
         return this.dStores.size() >= this.R;
     }
 
+    /**
+     * @return true if enough Dstores have joined to handle the request. Every request needs R, except that on an
+     * erasure coded cluster a file can be loaded while any k Dstores are left
+     */
+    public boolean checkEnoughDstores(Token request) {
+        if (this.dataFragments > 0 && (request instanceof LoadToken || request instanceof LoadRangeToken)) {
+            return this.dStores.size() >= this.dataFragments;
+        }
+        return this.checkEnoughDstores();
+    }
+
     /**
      * Method which gets all files currently stored on the system
      * Only includes files which are fully stored (not in the process of being stored)
-     * @return
+     * The reply is only rebuilt when the files stored have changed since it was last asked for
+     * @return LIST file1 file2 ... reply, and its generation
      */
-    public String getFilesForList() {
-        StringBuilder s = new StringBuilder();
-        for (String file : this.fileIndex.getStoredFilenames()) {
+    public ListCache.Snapshot getListSnapshot() {
+        return this.fileIndex.getListSnapshot();
+    }
+
+    /**
+     * @param since : generation of the list the client last saw
+     * @return LIST_UNCHANGED, LIST_GEN_DELTA or LIST_GEN_FULL reply
+     */
+    public String getListChanges(long since) {
+        return this.fileIndex.getListChanges(since);
+    }
+
+    /**
+     * Method which gets one page of the files currently stored on the system, in filename order, as a
+     * LIST_PAGE_RESULT message. Only the part of the index the page covers is read
+     * @param req : the client's LIST_PAGE request
+     * @return LIST_PAGE_RESULT next_cursor file1 file2 ...
+     */
+    public String getFilesForListPage(ListPageToken req) {
+        int pageSize = Math.min(req.pageSize, MAX_LIST_PAGE_SIZE);
+        //One extra filename is read to tell if there is another page after this one
+        ArrayList<String> page = this.fileIndex.getStoredFilenamesPage(req.after, req.prefix, pageSize + 1);
+        String next = Protocol.LIST_PAGE_END;
+        if (page.size() > pageSize) {
+            page.remove(pageSize);
+            next = Protocol.LIST_PAGE_AFTER + page.get(pageSize - 1);
+        }
+        StringBuilder s = new StringBuilder(Protocol.LIST_PAGE_RESULT_TOKEN).append(" ").append(next);
+        for (String file : page) {
             s.append(" ").append(file);
         }
         return s.toString();
     }
 
-    public void store(String fileToStore, int filesize, ControllerClientConnection clientConnection) {
+    public void store(String fileToStore, long filesize, ClientConnection clientConnection) {
         //If we receive a store request from client, we try to add the file to the index. If it already
         //exists, we return an ERROR_FILE_ALREADY_EXISTS
         if (!this.fileIndex.startStoring(fileToStore, filesize)) {
@@ -174,7 +335,11 @@ public class Controller {
         //If file does not already exist, we continue and try to get a String of all ports to store
         //the file to. Then we send these ports to the client
         String message = this.getPortsForStore(fileToStore);
-        clientConnection.sendToClient(new StoreToken(null,null,0), message);
+        if (message == null) {
+            this.fileIndex.removeFileFromIndex(fileToStore);
+            clientConnection.sendToClient(new NotEnoughDStoresToken(null), Protocol.ERROR_NOT_ENOUGH_DSTORES_TOKEN);
+            return;
+        }
 
         //Here we extract the port numbers from the string (req) as integers we are storing in and bundle it in
         //an ArrayList called intPorts
@@ -187,15 +352,24 @@ public class Controller {
         }
 
         //Tells controller the what ports we expect a STORE_ACK from
+        //Done before the ports are sent to the client, so an ack from a fast Dstore cannot arrive before it is expected
         this.fileIndex.addStoreAcksForFile(fileToStore, intPorts);
-        //Tells controller to start listening for the STORE_ACKs, returns true if all the acks are received within
-        //the controller's timeout period
-        System.out.println(this.fileIndex.getFile(fileToStore).getFilesize());
-        boolean ifAcksReceived = this.ifAllStoreAcksReceived(fileToStore, intPorts);
-        if (ifAcksReceived) {
-            //If all the store acks are received, we send a STORE_COMPLETE to client
-            clientConnection.sendToClient(new StoreCompleteToken(null), Protocol.STORE_COMPLETE_TOKEN);
+        if (this.dataFragments > 0) {
+            //The client stores fragment i of the file on the ith Dstore
+            String fragmentsMessage = Protocol.STORE_FRAGMENTS_TOKEN + " " + this.dataFragments + message;
+            clientConnection.sendToClient(new StoreFragmentsToken(fragmentsMessage, this.dataFragments, intPorts),
+                                          fragmentsMessage);
+        } else {
+            clientConnection.sendToClient(new StoreToken(null,null,0), message);
         }
+        //Tells controller to start listening for the STORE_ACKs. The future completes with true if all the acks are
+        //received within the controller's timeout period. Nothing waits on it, so the calling thread is free straight away
+        this.fileIndex.awaitStoreAcks(fileToStore, this.timeout, intPorts).thenAccept(ifAcksReceived -> {
+            if (ifAcksReceived) {
+                //If all the store acks are received, we send a STORE_COMPLETE to client
+                clientConnection.sendToClient(new StoreCompleteToken(null), Protocol.STORE_COMPLETE_TOKEN);
+            }
+        });
     }
 
 
@@ -205,72 +379,68 @@ public class Controller {
      * @param req
      * @param clientConnection
      */
-    public void remove(String filename, Token req, ControllerClientConnection clientConnection) {
-        //Tries to start removing process in index manager. If it fails, the file does not exist, so send error to client
+    public void remove(String filename, Token req, ClientConnection clientConnection) {
+        //Tries to start removing process in index manager. If the file is locked by a rebalance, the remove is tried
+        //again once the rebalance is done with it. Otherwise if it fails, the file does not exist, so send error to client
         if (!this.fileIndex.startRemoving(filename)) {
+            CompletableFuture<Void> unlocked = this.fileIndex.whenUnlocked(filename);
+            if (!unlocked.isDone()) {
+                unlocked.thenRunAsync(() -> this.remove(filename, req, clientConnection), ConnectionExecutor::execute);
+                return;
+            }
             clientConnection.sendToClient(new FileNotExistToken(Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN), Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             return;
         }
-        ArrayList<Integer> ports = this.fileIndex.getDstoresStoringFile(filename);
-        //Sends the Dstore the remove instruction
-        //Done in a new thread so that we are listening for remove acknowledgements immediately
-        //Otherwise, could miss an ack because we are still telling other Dstores to remove the file
-        //Could potentially cause issues with timeouts if there are large number of Dstores
-        for (Integer port : ports) {
-            new Thread(() -> {
-                String msg = Protocol.REMOVE_TOKEN + " " + filename;
-                this.dStoreConnectionMap.get(port).sendMessageToDstore(msg);
-            }).start();
-        }
+        //Copied, as the index's own list shrinks as the REMOVE_ACKs come in
+        ArrayList<Integer> ports = new ArrayList<>(this.fileIndex.getDstoresStoringFile(filename));
         //Add expected acks to index manager (what ports to expect REMOVE_ACKs back from)
+        //Done before the remove instructions are sent so that no ack can arrive before it is expected
         this.fileIndex.addRemoveAcksForFile(filename, ports);
-        //If we receive all remove acks
-        if (this.fileIndex.listenForRemoveAcks(filename, this.timeout, ports)) {
-            clientConnection.sendToClient(new RemoveCompleteToken(null), Protocol.REMOVE_COMPLETE_TOKEN);
+        //Sends the Dstores the remove instruction
+        for (Integer port : ports) {
+            DstoreConnection connection = this.dStoreConnectionMap.get(port);
+            if (connection != null) {
+                connection.sendMessageToDstore(Protocol.REMOVE_TOKEN + " " + filename);
+            }
         }
+        //When we receive all remove acks (or time out), the file is removed from the index and the client is told
+        this.fileIndex.awaitRemoveAcks(filename, this.timeout, ports).thenAccept(ifRemoved -> {
+            if (ifRemoved) {
+                clientConnection.sendToClient(new RemoveCompleteToken(null), Protocol.REMOVE_COMPLETE_TOKEN);
+            }
+        });
     }
 
 
     /**
      * Method to handle the LOAD operation
+     * The Dstore to load from is picked by the replica selector, by expected time to serve the file
      * @param filename
      * @param clientConnection
-     * @return
+     * @return every Dstore storing the file, the one sent to the client first and then the ones to try on a RELOAD
+     * in order, or null if the client was sent an error (or, on an erasure coded cluster, every Dstore at once)
      */
-    public ArrayList<Integer> load(String filename, ControllerClientConnection clientConnection) {
+    public ArrayList<Integer> load(String filename, ClientConnection clientConnection) {
         //If our list of files does not contain requested file, return FILE_DOES_NOT_EXIST error to client and end
         //execution of load instruction
-        System.out.println();
-        System.out.println(this.fileIndex.getFile(filename).getFilesize());
-        if (!this.fileIndex.getStoredFilenames().contains(filename)) {
+        DstoreFile file = this.fileIndex.getFile(filename);
+        if (file == null || file.getState() != DstoreFile.State.AVAILABLE) {
             clientConnection.sendToClient(new FileNotExistToken(null), Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
             return null;
         }
-        //Make a copy of list of Dstores all storing certain file
-        //Need a copy because we want to alter the list, but do not want to alter the original
-        //Basically, circumventing call-by-reference
-        ArrayList<Integer> allDstoresStoringFile = new ArrayList<>(this.fileIndex.getDstoresStoringFile(filename));
-        if (allDstoresStoringFile.size() != 0) {
-            //Gets first port storing file and sends it to client. Then removes it from list of Dstores
-            //so in case of a reload, we do not send the same port again
-            Integer portToLoadFrom = allDstoresStoringFile.get(0);
-            allDstoresStoringFile.remove(portToLoadFrom);
-            //Gets filesize to send top client
-            int filesize = this.fileIndex.getFile(filename).getFilesize();
-            System.out.println(filename);
-            System.out.println(filesize);
-            //If returned size is -1, there file does not exist at this point (remove concurrency error)
-            if (filesize != -1) {
-                //Creates and sends message to client
-                LoadFromToken tokenToSend = new LoadFromToken(Protocol.LOAD_FROM_TOKEN + " " + portToLoadFrom
-                        + " " + filesize, portToLoadFrom, filesize);
-                clientConnection.sendToClient(tokenToSend, tokenToSend.req);
-                //Returns list of ports that have not been checked if they store the file (in case of reload)
-                return allDstoresStoringFile;
-            } else {
-                clientConnection.sendToClient(new FileNotExistToken(null), Protocol.ERROR_FILE_DOES_NOT_EXIST_TOKEN);
-                return null;
-            }
+        //The index gives a copy of the list of Dstores storing the file, so it can be ranked while the list changes
+        long filesize = file.getFilesize();
+        ArrayList<Integer> rankedDstores = this.replicaSelector.rank(this.fileIndex.getDstoresStoringFile(filename),
+                filesize);
+        if (this.dataFragments > 0) {
+            this.loadFragments(file, rankedDstores, clientConnection);
+            return null;
+        }
+        if (rankedDstores.size() != 0) {
+            //Sends the Dstore expected to serve the file soonest to the client
+            LoadFromToken tokenToSend = this.getLoadFromToken(rankedDstores.get(0), file);
+            clientConnection.sendToClient(tokenToSend, tokenToSend.req);
+            return rankedDstores;
         } else {
             clientConnection.sendToClient(new ErrorLoadToken(null), Protocol.ERROR_LOAD_TOKEN);
             return null;
@@ -278,61 +448,79 @@ public class Controller {
     }
 
     /**
-     * Method which gets R Dstore ports to send to the client, so the client can store the file on those Dstores
-     * @param filename
-     * @return ports: returns string of port numbers, where each port number is separated by spaces
+     * Method which sends a client every Dstore storing a fragment of an erasure coded file, best first. The client
+     * loads from k of them at once, moving on down the list if any fail, so it never needs to send a RELOAD
+     * @param file : file to load
+     * @param rankedDstores : Dstores storing a fragment of the file, best first
+     * @param clientConnection : connection to the client
      */
-    public synchronized String getPortsForStore(String filename) {
-        try {
-            HashMap<Integer, ArrayList<String>> dstoreFilesMap = this.getDstoreFilesMap();
-            ArrayList<Integer> portsToSendList = new ArrayList<>();
-            for (Integer dstore1 : dstoreFilesMap.keySet()) {
-                Integer leastFullDstore =  dstore1;
-                for (Integer dstore2 : dstoreFilesMap.keySet()) {
-                    if (portsToSendList.contains(leastFullDstore)) {
-                        leastFullDstore = dstore2;
-                    } else if (dstoreFilesMap.get(leastFullDstore).size() > dstoreFilesMap.get(dstore2).size() && !portsToSendList.contains(dstore2)) {
-                        leastFullDstore = dstore2;
-                    }
-                }
-                portsToSendList.add(leastFullDstore);
-            }
+    private void loadFragments(DstoreFile file, ArrayList<Integer> rankedDstores, ClientConnection clientConnection) {
+        if (rankedDstores.size() < this.dataFragments) {
+            System.out.println("### ERROR ###   Only " + rankedDstores.size() + " fragments of " + file.getFilename()
+                    + " stored, " + this.dataFragments + " needed to load it");
+            clientConnection.sendToClient(new ErrorLoadToken(null), Protocol.ERROR_LOAD_TOKEN);
+            return;
+        }
+        StringBuilder message = new StringBuilder(Protocol.LOAD_FRAGMENTS_TOKEN);
+        message.append(" ").append(this.dataFragments).append(" ").append(file.getFilesize());
+        for (Integer port : rankedDstores) {
+            message.append(" ").append(port);
+        }
+        clientConnection.sendToClient(new LoadFragmentsToken(message.toString(), this.dataFragments,
+                file.getFilesize(), rankedDstores), message.toString());
+        //The client loads from the first k at once, each of which reports its load when served
+        for (int i = 0; i < this.dataFragments; i++) {
+            this.replicaSelector.loadStarted(rankedDstores.get(i));
+        }
+    }
 
-            StringBuilder portsToSend = new StringBuilder();
-            int rCounter = this.R;
-            for (Integer port : portsToSendList) {
-                if (!dstoreFilesMap.get(port).contains(filename)) {
-                    portsToSend.append(" ").append(port);
-                    rCounter -= 1;
-                }
-                if (rCounter == 0) { break;}
-            }
-            return portsToSend.toString();
+    /**
+     * Method which builds the LOAD_FROM reply sending a client to a Dstore. The file's checksum is included if it is
+     * known, so the client can check the file it loads
+     * @param port : Dstore to load from
+     * @param file : file to load
+     * @return LOAD_FROM port filesize [checksum]
+     */
+    public LoadFromToken getLoadFromToken(Integer port, DstoreFile file) {
+        long checksum = file.getChecksum();
+        String message = Protocol.LOAD_FROM_TOKEN + " " + port + " " + file.getFilesize()
+                + (checksum == Protocol.NO_CHECKSUM ? "" : " " + Tokenizer.checksumToString(checksum));
+        return new LoadFromToken(message, port, file.getFilesize(), checksum);
+    }
 
-        } catch (NullPointerException e) {
+    /**
+     * Called when a client is sent a Dstore to load a file from
+     */
+    public void loadStarted(Integer port) {
+        this.replicaSelector.loadStarted(port);
+    }
+
+    /**
+     * Method which gets R Dstore ports to send to the client, so the client can store the file on those Dstores
+     * The least loaded Dstores are taken straight from the index's placement index, which is kept up to date as files
+     * are stored, removed and rebalanced, so no scan of the file index is needed
+     * @param filename
+     * @return ports: returns string of port numbers, where each port number is separated by spaces, or null if
+     * there are no Dstores to store on
+     */
+    public String getPortsForStore(String filename) {
+        ArrayList<Integer> ports = this.fileIndex.getDstoresForStore(this.R, filename);
+        if (ports.isEmpty()) {
             System.out.println("### ERROR ###   Getting Dstore ports for store failed");
-            //If exception thrown, then there is not enough Dstores to store on, so we return null
             return null;
         }
-    }
-
-    private HashMap<Integer, ArrayList<String>> getDstoreFilesMap() {
-        HashMap<Integer, ArrayList<String>> map = new HashMap<>();
-        for (Integer dstore : this.dStoreConnectionMap.keySet()) {
-            map.put(dstore, new ArrayList<>());
+        StringBuilder portsToSend = new StringBuilder();
+        for (Integer port : ports) {
+            portsToSend.append(" ").append(port);
         }
-        for (DstoreFile f : this.fileIndex.getFileObjects()) {
-            for (Integer dstoreWhereFileIsStored : f.getDstoresStoredOn()) {
-                if (map.containsKey(dstoreWhereFileIsStored)) {
-                    map.get(dstoreWhereFileIsStored).add(f.getFilename());
-                }
-            }
+        return portsToSend.toString();
+    }
 
-        }
-        return map;
+    public DstoreFile getFile(String filename) {
+        return this.fileIndex.getFile(filename);
     }
 
-    public int getFilesize(String filename) {
+    public long getFilesize(String filename) {
         DstoreFile file = this.fileIndex.getFile(filename);
         if (file != null) {
             return file.getFilesize();
@@ -341,26 +529,47 @@ public class Controller {
         }
     }
 
-    public synchronized void removeDstore(ControllerToDStoreConnection connection) {
+    public synchronized void removeDstore(DstoreConnection connection) {
         this.dStores.remove(connection);
         this.dStoreConnectionMap.remove(connection.getDstorePort());
         this.fileIndex.removeDstore(connection.getDstorePort());
+        //If the Dstore rejoins, its files are listed in full again
+        this.inventories.remove(connection.getDstorePort());
+        this.replicaSelector.dstoreRemoved(connection.getDstorePort());
     }
 
 
     /**
-     * Method which checks if all store acks are received by calling method in index manager
-     * which waits to see if all acks are received (before timeout)
-     * @param filename: Name of file that we are waiting for acks for
-     * @param ports: List of port numbers we expect acks from
-     * @return
+     * Method which handles every message received from a Dstore after it has joined
+     * @param msgToken : tokenized message (null if malformed)
+     * @param dstorePort : port of the Dstore the message came from
      */
-    public boolean ifAllStoreAcksReceived(String filename,ArrayList<Integer> ports) {
-        if (this.fileIndex.listenForStoreAcks(filename, this.timeout, ports)) {
-            return true;
-        } else {
-            this.fileIndex.removeFileFromIndex(filename);
-            return false;
+    public void handleDstoreMessage(Token msgToken, int dstorePort) {
+        if (msgToken instanceof FileListToken) {
+            this.listReceived(((FileListToken) msgToken).fileList, dstorePort);
+        } else if (msgToken instanceof ListToken) {
+            this.listReceived(new ArrayList<>(), dstorePort);
+        } else if (msgToken instanceof ListFullToken || msgToken instanceof ListDeltaToken) {
+            this.inventoryReceived(msgToken, dstorePort);
+        } else if (msgToken instanceof RebalanceCompleteToken) {
+            this.rebalanceTransfersFailed(((RebalanceCompleteToken) msgToken).filesFailedToSend, dstorePort);
+            this.rebalanceCompleteReceived(dstorePort);
+        } else if (msgToken instanceof StoreAckToken) {
+            this.storeAckReceived((StoreAckToken) msgToken, dstorePort);
+        } else if (msgToken instanceof RemoveAckToken) {
+            this.removeAckReceived((RemoveAckToken) msgToken, dstorePort);
+        } else if (msgToken instanceof LoadServedToken) {
+            this.replicaSelector.loadServed(dstorePort, ((LoadServedToken) msgToken).bytes,
+                    ((LoadServedToken) msgToken).nanos);
+        } else if (msgToken instanceof LoadFailedToken) {
+            this.replicaSelector.loadFailed(dstorePort);
+        } else if (msgToken instanceof CorruptToken) {
+            this.corruptFilesReported(((CorruptToken) msgToken).filenames, dstorePort);
+        } else if (msgToken instanceof FileNotExistFilenameToken) {
+            FileNotExistFilenameToken t = (FileNotExistFilenameToken)msgToken;
+            System.out.println("### ERROR ###   File " + t.filename + " does not exist on Dstore (port: " + dstorePort);
+        } else if (msgToken == null) {
+            System.out.println("### ERROR ###   Malformed input received by Controller from Dstore");
         }
     }
 
@@ -371,19 +580,62 @@ public class Controller {
      * @param port
      */
     public void storeAckReceived(StoreAckToken t, Integer port) {
+        if (this.dataFragments > 0) {
+            //Each Dstore stores a different fragment, with its own checksum, so none is the file's checksum
+            t = new StoreAckToken(t.req, t.filename, Protocol.NO_CHECKSUM);
+        }
         if (!this.fileIndex.storeAckReceived(t, port)) {
             System.out.println("### ERROR ###   Invalid STORE_ACK received from port " + port);
         }
     }
 
+    /**
+     * Method which handles a Dstore reporting that its copies of files no longer matched their checksums, and have
+     * been deleted. Clients are no longer sent to that Dstore for the files, and a single rebalance is run straight
+     * away so the files are copied back up to R Dstores from the intact copies
+     * @param filenames : files whose copies were corrupt
+     * @param port : Dstore the copies were on
+     */
+    public void corruptFilesReported(ArrayList<String> filenames, Integer port) {
+        for (String filename : filenames) {
+            System.out.println("### ERROR ###   Copy of " + filename + " on Dstore (port: " + port + ") was corrupt");
+            this.fileIndex.removeDstoreForFile(filename, port);
+        }
+        this.rebalanceScheduler.runNow();
+    }
+
     public void removeAckReceived(RemoveAckToken t, Integer port) {
         if (!this.fileIndex.removeAckReceived(t, port)) {
             System.out.println("### ERROR ###   Invalid REMOVE_ACK received from port " + port);
         }
     }
 
-    public void listReceived(FileListToken t, Integer port) {
-        this.rebalancer.listReceived(t.fileList, port);
+    public void listReceived(ArrayList<String> fileList, Integer port) {
+        if (this.rebalancer != null) {
+            this.rebalancer.listReceived(fileList, port);
+        }
+    }
+
+    /**
+     * Method which handles a Dstore's reply to LIST_SINCE. The reply is applied to the Controller's copy of the
+     * Dstore's files, and the whole updated list is passed on to the rebalance. If a delta does not follow on from the
+     * copy held, the Dstore is asked again for its full list
+     * @param t : LIST_FULL or LIST_DELTA token
+     * @param port : port of the Dstore the reply came from
+     */
+    public void inventoryReceived(Token t, Integer port) {
+        DstoreInventory inventory = this.inventories.computeIfAbsent(port, p -> new DstoreInventory());
+        if (t instanceof ListFullToken) {
+            inventory.applyFull((ListFullToken) t);
+        } else if (!inventory.applyDelta((ListDeltaToken) t)) {
+            System.out.println("### ERROR ###   File list changes from Dstore (port: " + port + ") out of step, asking for full list");
+            DstoreConnection connection = this.dStoreConnectionMap.get(port);
+            if (connection != null) {
+                connection.sendMessageToDstore(inventory.getListRequest());
+            }
+            return;
+        }
+        this.listReceived(inventory.getFiles(), port);
     }
 
     /** Args layout:
@@ -391,6 +643,16 @@ public class Controller {
      *  args[1] = R               -> Replication factor for files
      *  args[2] = timeout         -> How long connection held with client/DStore
      *  args[3] = rebalancePeriod -> How long between rebalance operations
+     *
+     *  Optional system properties:
+     *  -Dcontroller.io=selector       -> serve all connections from selector event loops instead of a thread each
+     *  -Dcontroller.io.threads=N      -> number of event loops when using the selector (default: number of cores)
+     *  -Ddfs.threads=virtual          -> run connection handlers on virtual threads (see ConnectionExecutor)
+     *  -Dcontroller.index.dir=DIR     -> persist the file index in DIR and recover it on startup (see IndexJournal)
+     *  -Dcontroller.index.snapshotEvery=N -> index changes logged between snapshots (default: 100000)
+     *  -Dcontroller.list.changes=N    -> recent changes to the stored files kept to answer LIST_GEN (default: 100000)
+     *  -Dcontroller.ec=k+m            -> erasure code files into k data and m parity fragments instead of storing R
+     *                                    copies (R is then ignored, and k+m Dstores are needed; see useErasureCoding)
      */
     public static void main(String[] args) {
         if (args.length != 4) {
@@ -399,8 +661,26 @@ public class Controller {
         }
         Integer[] i = Stream.of(args).map(Integer::valueOf).toArray(Integer[]::new);
         try {
-            new Controller(i[0], i[1], i[2], i[3]).startListening();
-        } catch (IOException e) {
+            Controller controller = new Controller(i[0], i[1], i[2], i[3]);
+            String erasureCode = System.getProperty("controller.ec");
+            if (erasureCode != null) {
+                String[] km = erasureCode.split("\\+");
+                if (km.length != 2) {
+                    throw new IllegalArgumentException("controller.ec must be of the form k+m");
+                }
+                controller.useErasureCoding(Integer.parseInt(km[0]), Integer.parseInt(km[1]));
+            }
+            String indexDir = System.getProperty("controller.index.dir");
+            if (indexDir != null) {
+                controller.recoverIndex(indexDir, Integer.getInteger("controller.index.snapshotEvery", 100000));
+            }
+            if (System.getProperty("controller.io", "blocking").equals("selector")) {
+                controller.startSelectorListening(Integer.getInteger("controller.io.threads",
+                        Runtime.getRuntime().availableProcessors()));
+            } else {
+                controller.startListening();
+            }
+        } catch (IOException | IllegalArgumentException e) {
             System.out.println("### ERROR ###  " + e);
         }
     }
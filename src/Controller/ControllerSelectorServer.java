@@ -0,0 +1,88 @@
+package Controller;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import Tokenizer.*;
+import Loggers.ControllerLogger;
+
+/**
+ * Class for the selector based front end of the Controller.
+ * A fixed number of SelectorLoops multiplex every client and Dstore socket, so the number of threads does not grow
+ * with the number of connections. The first loop also accepts new connections, which are handed out to the loops
+ * in turn.
+ */
+public class ControllerSelectorServer {
+
+    private final Controller controller;
+    private final int port;
+    private final SelectorLoop[] loops;
+    // Counter used to hand out accepted connections to the loops round robin
+    private final AtomicInteger nextLoop;
+
+    /**
+     * Constructor
+     * @param controller : Controller to pass requests to
+     * @param port : port to listen on
+     * @param eventLoops : number of event loop threads
+     */
+    public ControllerSelectorServer(Controller controller, int port, int eventLoops) throws IOException {
+        this.controller = controller;
+        this.port = port;
+        this.loops = new SelectorLoop[Math.max(1, eventLoops)];
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i] = new SelectorLoop(this);
+        }
+        this.nextLoop = new AtomicInteger();
+    }
+
+    /**
+     * Starts listening and serving connections. Returns only if the event loops stop
+     */
+    public void serve() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(this.port));
+        serverChannel.configureBlocking(false);
+        for (int i = 0; i < this.loops.length; i++) {
+            this.loops[i].start("controller-io-" + i);
+        }
+        this.loops[0].registerAcceptor(serverChannel);
+        try {
+            for (SelectorLoop loop : this.loops) {
+                loop.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public SelectorLoop nextLoop() {
+        return this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+    }
+
+    /**
+     * Called with the first line received on a connection.
+     * If it's a JOIN, we know the connection is a Dstore trying to join for the first time
+     * If its none of these, it must be a client request.
+     * @param connection : connection the line was received on
+     * @param token : tokenized first line
+     */
+    public void firstLineReceived(NioConnection connection, Token token) {
+        if (token instanceof JoinToken) {
+            int dstorePort = ((JoinToken) token).port;
+            ControllerLogger.getInstance().dstoreJoined(connection.getSocket(), dstorePort);
+            NioDstoreConnection dstoreConnection = new NioDstoreConnection(connection, dstorePort, this.controller);
+            connection.setListener(dstoreConnection);
+            this.controller.registerDstore(dstoreConnection);
+        } else if (token != null) {
+            NioClientConnection clientConnection = new NioClientConnection(connection, this.controller);
+            connection.setListener(clientConnection);
+            clientConnection.lineReceived(token);
+        } else {
+            System.out.println("### ERROR ###   Malformed first message received by Controller");
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package Controller;
+
+/**
+ * Interface for the persistent connection from the Controller to a Dstore, whichever front end (thread per
+ * connection or selector) the connection is being served by.
+ */
+public interface DstoreConnection {
+
+    int getDstorePort();
+
+    void sendMessageToDstore(String msg);
+}
@@ -0,0 +1,64 @@
+package Controller;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import Loggers.Protocol;
+import Tokenizer.*;
+
+/**
+ * Class holding the Controller's copy of the files on one Dstore, and the inventory version (epoch, seq) of the Dstore
+ * it is up to date with. Each rebalance asks the Dstore only for the changes since that version (LIST_SINCE), and
+ * applies the LIST_DELTA reply to the copy. A LIST_FULL reply (first listing, or the Dstore could not give a delta)
+ * replaces the copy.
+ */
+public class DstoreInventory {
+
+    // Version the copy is up to date with. Epoch 0 means there is no copy yet
+    private long epoch;
+    private long seq;
+    private final HashSet<String> files;
+
+    public DstoreInventory() {
+        this.epoch = 0;
+        this.seq = 0;
+        this.files = new HashSet<>();
+    }
+
+    /**
+     * @return LIST_SINCE message asking the Dstore for the changes since the version held
+     */
+    public synchronized String getListRequest() {
+        return Protocol.LIST_SINCE_TOKEN + " " + this.epoch + " " + this.seq;
+    }
+
+    public synchronized void applyFull(ListFullToken t) {
+        this.epoch = t.epoch;
+        this.seq = t.seq;
+        this.files.clear();
+        this.files.addAll(t.fileList);
+    }
+
+    /**
+     * Applies a delta to the copy
+     * @param t : delta received
+     * @return true if applied, false if the delta does not start from the version held. The copy is then dropped,
+     * so the next request asks for the full list
+     */
+    public synchronized boolean applyDelta(ListDeltaToken t) {
+        if (t.epoch != this.epoch || t.fromSeq != this.seq) {
+            this.epoch = 0;
+            this.seq = 0;
+            this.files.clear();
+            return false;
+        }
+        this.files.removeAll(t.removed);
+        this.files.addAll(t.added);
+        this.seq = t.toSeq;
+        return true;
+    }
+
+    public synchronized ArrayList<String> getFiles() {
+        return new ArrayList<>(this.files);
+    }
+}
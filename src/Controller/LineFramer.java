@@ -0,0 +1,81 @@
+package Controller;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Class which splits the bytes read from a non-blocking socket into the newline terminated lines of the protocol.
+ * Bytes are read straight into the framer's buffer, which grows when a single line does not fit in it.
+ */
+public class LineFramer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // Largest line accepted before the connection is treated as broken (a full Dstore LIST can be large)
+    private static final int MAX_LINE_LENGTH = 64 * 1024 * 1024;
+
+    // Buffer in write mode, bytes [lineStart, position) have been read but not yet returned as lines
+    private ByteBuffer buffer;
+    // Index the next line starts at
+    private int lineStart;
+    // Index to continue scanning for a newline from, so bytes are only scanned once
+    private int scanFrom;
+
+    public LineFramer() {
+        this.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+        this.lineStart = 0;
+        this.scanFrom = 0;
+    }
+
+    /**
+     * Method to get the buffer to read the next bytes from the socket into. Makes sure there is room in it, either by
+     * discarding lines that have already been returned or by growing the buffer
+     * @return buffer in write mode with space remaining
+     * @throws IOException if a single line is longer than the maximum allowed
+     */
+    public ByteBuffer getReadBuffer() throws IOException {
+        if (this.lineStart == this.buffer.position()) {
+            this.buffer.clear();
+            this.lineStart = 0;
+            this.scanFrom = 0;
+        }
+        if (!this.buffer.hasRemaining()) {
+            if (this.lineStart > 0) {
+                this.buffer.flip();
+                this.buffer.position(this.lineStart);
+                this.buffer.compact();
+                this.scanFrom -= this.lineStart;
+                this.lineStart = 0;
+            } else if (this.buffer.capacity() < MAX_LINE_LENGTH) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.min(this.buffer.capacity() * 2, MAX_LINE_LENGTH));
+                this.buffer.flip();
+                bigger.put(this.buffer);
+                this.buffer = bigger;
+            } else {
+                throw new IOException("Line longer than " + MAX_LINE_LENGTH + " bytes received");
+            }
+        }
+        return this.buffer;
+    }
+
+    /**
+     * Method to get the next complete line read so far
+     * @return buffer holding the line without its terminator, or null if no complete line has been read yet
+     */
+    public ByteBuffer nextLine() {
+        int end = this.buffer.position();
+        for (int i = this.scanFrom; i < end; i++) {
+            if (this.buffer.get(i) == '\n') {
+                int lineEnd = (i > this.lineStart && this.buffer.get(i - 1) == '\r') ? i - 1 : i;
+                ByteBuffer source = this.buffer.duplicate();
+                source.limit(lineEnd).position(this.lineStart);
+                ByteBuffer line = ByteBuffer.allocate(lineEnd - this.lineStart);
+                line.put(source).flip();
+                this.lineStart = i + 1;
+                this.scanFrom = i + 1;
+                return line;
+            }
+        }
+        this.scanFrom = end;
+        return null;
+    }
+}
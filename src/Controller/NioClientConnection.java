@@ -0,0 +1,39 @@
+package Controller;
+
+import Tokenizer.Token;
+
+/**
+ * Class to handle a client connection served by a selector event loop.
+ * Requests are handled on the loop thread as they arrive, even mid rebalance (only requests for files the rebalance
+ * is copying, moving or removing are held back, by the request handler)
+ */
+public class NioClientConnection implements ClientConnection, NioConnection.Listener {
+
+    private final NioConnection connection;
+    private final ClientRequestHandler requestHandler;
+
+    public NioClientConnection(NioConnection connection, Controller controller) {
+        this.connection = connection;
+        this.requestHandler = new ClientRequestHandler(controller, this);
+    }
+
+    @Override
+    public void lineReceived(Token token) {
+        this.requestHandler.handleRequest(token);
+    }
+
+    @Override
+    public void connectionClosed() {
+        //When client disconnects, there is nothing to clean up
+    }
+
+    @Override
+    public void sendLine(String message) {
+        this.connection.send(message);
+    }
+
+    @Override
+    public void sendEncodedLine(String message, byte[] encodedLine) {
+        this.connection.sendEncoded(message, encodedLine);
+    }
+}
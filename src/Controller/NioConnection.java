@@ -0,0 +1,151 @@
+package Controller;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import Tokenizer.*;
+import Loggers.ControllerLogger;
+
+/**
+ * Class for a single non-blocking socket served by a SelectorLoop.
+ * It frames the bytes read into lines, tokenizes them and passes them to its listener, and queues lines to be
+ * written when the socket is ready. The first line received decides if the connection is a client or a Dstore,
+ * after which the listener is the matching NioClientConnection or NioDstoreConnection.
+ */
+public class NioConnection {
+
+    /**
+     * Interface for whatever handles the lines received on a connection
+     */
+    public interface Listener {
+        void lineReceived(Token token);
+
+        void connectionClosed();
+    }
+
+    private final SocketChannel channel;
+    private final SelectorLoop loop;
+    private final ControllerSelectorServer server;
+    private final LineFramer framer;
+    // Encoded lines waiting to be written, in order
+    private final ConcurrentLinkedQueue<ByteBuffer> writeQueue;
+    private SelectionKey key;
+    private Listener listener;
+    private boolean closed;
+
+    public NioConnection(SocketChannel channel, SelectorLoop loop, ControllerSelectorServer server) {
+        this.channel = channel;
+        this.loop = loop;
+        this.server = server;
+        this.framer = new LineFramer();
+        this.writeQueue = new ConcurrentLinkedQueue<>();
+        this.closed = false;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public SelectorLoop getLoop() {
+        return this.loop;
+    }
+
+    public Socket getSocket() {
+        return this.channel.socket();
+    }
+
+    /**
+     * Called by the loop when the socket has bytes to read. Reads what is available and handles every complete line
+     */
+    public void onReadable() {
+        try {
+            int read = this.channel.read(this.framer.getReadBuffer());
+            if (read == -1) {
+                this.close();
+                return;
+            }
+            ByteBuffer line;
+            while (!this.closed && (line = this.framer.nextLine()) != null) {
+                Token token = Tokenizer.getToken(line.duplicate());
+                ControllerLogger.getInstance().messageReceived(this.getSocket(),
+                        token != null ? token.req : StandardCharsets.UTF_8.decode(line).toString());
+                if (this.listener == null) {
+                    this.server.firstLineReceived(this, token);
+                } else {
+                    this.listener.lineReceived(token);
+                }
+            }
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+    /**
+     * Queues a line to be sent. Can be called from any thread, the write itself always happens on the loop
+     * @param message : line to send, without the line terminator
+     */
+    public void send(String message) {
+        this.writeQueue.add(StandardCharsets.UTF_8.encode(message + "\n"));
+        ControllerLogger.getInstance().messageSent(this.getSocket(), message);
+        this.loop.execute(this::onWritable);
+    }
+
+    /**
+     * Queues a line which has already been encoded. The bytes are shared, not copied, so must not be changed
+     * @param message : line, without the line terminator (used for logging)
+     * @param encodedLine : the line encoded in UTF-8, with its line terminator
+     */
+    public void sendEncoded(String message, byte[] encodedLine) {
+        this.writeQueue.add(ByteBuffer.wrap(encodedLine).asReadOnlyBuffer());
+        ControllerLogger.getInstance().messageSent(this.getSocket(), message);
+        this.loop.execute(this::onWritable);
+    }
+
+    /**
+     * Writes as much of the queue as the socket will take. If it cannot all be written, waits for the socket to
+     * become writable again
+     */
+    public void onWritable() {
+        if (this.closed) {
+            return;
+        }
+        try {
+            ByteBuffer next;
+            while ((next = this.writeQueue.peek()) != null) {
+                this.channel.write(next);
+                if (next.hasRemaining()) {
+                    this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                this.writeQueue.poll();
+            }
+            this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            this.close();
+        }
+    }
+
+    public void close() {
+        if (this.closed) {
+            return;
+        }
+        this.closed = true;
+        this.key.cancel();
+        try {
+            this.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (this.listener != null) {
+            this.listener.connectionClosed();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package Controller;
+
+import Tokenizer.Token;
+
+/**
+ * Class to handle the persistent connection to a Dstore served by a selector event loop
+ */
+public class NioDstoreConnection implements DstoreConnection, NioConnection.Listener {
+
+    private final NioConnection connection;
+    private final int dStorePort;
+    private final Controller controller;
+
+    public NioDstoreConnection(NioConnection connection, int port, Controller controller) {
+        this.connection = connection;
+        this.dStorePort = port;
+        this.controller = controller;
+    }
+
+    @Override
+    public void lineReceived(Token token) {
+        this.controller.handleDstoreMessage(token, this.dStorePort);
+    }
+
+    @Override
+    public void connectionClosed() {
+        System.out.println("### ERROR ###   Connection to Dstore on port " + this.dStorePort + " lost");
+        this.controller.removeDstore(this);
+    }
+
+    @Override
+    public int getDstorePort() {
+        return this.dStorePort;
+    }
+
+    @Override
+    public void sendMessageToDstore(String msg) {
+        this.connection.send(msg);
+    }
+}
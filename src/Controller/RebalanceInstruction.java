@@ -1,6 +1,7 @@
 package Controller;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import Loggers.Protocol;
 
 /**
@@ -13,13 +14,19 @@ import Loggers.Protocol;
  *          files_to_send = num_of_files_to_send file_to_send1 file_to_send2 ...
  *                  file_to_send = filename num_of_dstores_to_send_to dstore_port1 dstore_port2 ...
  *          files_to_remove = num_of_files_to_remove file_to_remove1 file_to_remove2 ...
+ * followed, on an erasure coded cluster with fragments to rebuild, by
+ *          files_to_repair = num_of_files_to_repair file_to_repair1 file_to_repair2 ...
+ *                  file_to_repair = filename slot num_of_dstores_storing_fragments dstore_port1 dstore_port2 ...
  */
 public class RebalanceInstruction {
 
-    // List of files to send in form of FileToSend objects, which contain the filenames and Dstore ports to send to
-    private final ArrayList<FileToSend> filesToSend;
+    // Files to send in form of FileToSend objects, which contain the filenames and Dstore ports to send to
+    // Keyed by filename so a port can be added to an existing file_to_send without searching, kept in the order added
+    private final LinkedHashMap<String, FileToSend> filesToSend;
     // List of files to remove, which is just a list of filenames to remove
     private final ArrayList<String> filesToRemove;
+    // Fragments to rebuild, in file_to_repair form
+    private final ArrayList<String> filesToRepair;
 
     /**
      * Class to hold information on file to send to other Dstores
@@ -59,8 +66,9 @@ public class RebalanceInstruction {
      * Constructor
      */
     public RebalanceInstruction() {
-        this.filesToSend = new ArrayList<>();
+        this.filesToSend = new LinkedHashMap<>();
         this.filesToRemove = new ArrayList<>();
+        this.filesToRepair = new ArrayList<>();
     }
 
     /**
@@ -70,17 +78,13 @@ public class RebalanceInstruction {
      * @param dstoreToSendTo : port number of Dstore we want to send file to
      */
     public void addFileToSend(String filename, Integer dstoreToSendTo) {
-        boolean fileToSendExists = false;
-        for (FileToSend f : this.filesToSend) {
-            if (f.filename.equals(filename)) {
-                f.DstoresToSend.add(dstoreToSendTo.toString());
-                fileToSendExists = true;
-            }
-        }
-        if (!fileToSendExists) {
+        FileToSend fileToSend = this.filesToSend.get(filename);
+        if (fileToSend != null) {
+            fileToSend.DstoresToSend.add(dstoreToSendTo.toString());
+        } else {
             ArrayList<String> dstoresToSendTo = new ArrayList<>();
             dstoresToSendTo.add(dstoreToSendTo.toString());
-            this.filesToSend.add(new FileToSend(filename, dstoresToSendTo));
+            this.filesToSend.put(filename, new FileToSend(filename, dstoresToSendTo));
         }
     }
 
@@ -92,6 +96,39 @@ public class RebalanceInstruction {
         this.filesToRemove.add(filename);
     }
 
+    /**
+     * Add a new file_to_repair, telling the Dstore to rebuild one of an erasure coded file's missing fragments from the
+     * Dstores storing the others. Every Dstore rebuilding a fragment of the file is sent the same Dstores, and a
+     * different slot, so each rebuilds a different fragment
+     * @param filename : name of the file
+     * @param slot : which of the missing fragments to rebuild, counting from the lowest numbered
+     * @param holders : ports of the Dstores storing the file's other fragments
+     */
+    public void addFileToRepair(String filename, int slot, ArrayList<Integer> holders) {
+        StringBuilder repair = new StringBuilder();
+        repair.append(filename).append(" ").append(slot).append(" ").append(holders.size());
+        for (Integer port : holders) {
+            repair.append(" ").append(port);
+        }
+        this.filesToRepair.add(repair.toString());
+    }
+
+    public int getNumberOfFilesToRepair() {
+        return this.filesToRepair.size();
+    }
+
+    public int getNumberOfFilesToSend() {
+        int sends = 0;
+        for (FileToSend f : this.filesToSend.values()) {
+            sends += f.DstoresToSend.size();
+        }
+        return sends;
+    }
+
+    public int getNumberOfFilesToRemove() {
+        return this.filesToRemove.size();
+    }
+
     /**
      * Method to generate String instruction for the Rebalance operation for a single Dstore
      * It generates an instruction in the following form:
@@ -106,7 +143,7 @@ public class RebalanceInstruction {
         instruction.append(Protocol.REBALANCE_TOKEN).append(" ");
         //FILES_TO_SEND
         instruction.append(this.filesToSend.size()).append(" ");
-        for (FileToSend f : this.filesToSend) {
+        for (FileToSend f : this.filesToSend.values()) {
             instruction.append(f.getInstruction());
         }
         //FILES_TO_REMOVE
@@ -114,6 +151,13 @@ public class RebalanceInstruction {
         for (String f : this.filesToRemove) {
             instruction.append(" ").append(f);
         }
+        //FILES_TO_REPAIR
+        if (!this.filesToRepair.isEmpty()) {
+            instruction.append(" ").append(this.filesToRepair.size());
+            for (String f : this.filesToRepair) {
+                instruction.append(" ").append(f);
+            }
+        }
         return instruction.toString();
     }
 
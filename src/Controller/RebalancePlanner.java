@@ -0,0 +1,327 @@
+package Controller;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import IndexManager.*;
+
+/**
+ * Class which works out the instructions for a rebalance, once the files on every Dstore are known.
+ * It makes the same three kinds of decision as before, in the same order:
+ * <ol>
+ *     <li>files stored less than R times are copied to the least full Dstores which do not have them (up to ceil)</li>
+ *     <li>files stored more than R times are removed from the most full Dstores which have them (down to floor)</li>
+ *     <li>files are moved from the Dstores with the most files over floor to those with the most room under ceil,
+ *     until every Dstore stores between floor and ceil files</li>
+ * </ol>
+ * Rather than re-sorting every Dstore's file list after each decision, the Dstores are kept in an ordered set and
+ * priority queues which are updated as each file is placed, and each Dstore's files are held in a hash set.
+ * Planning costs O(F log D) for F files on D Dstores, plus the moves made while balancing.
+ * The file index is updated as each decision is made, assuming the Dstores will carry out their instructions.
+ * Each file is locked in the index before a decision is made about it, so clients cannot start removing it while the
+ * rebalance runs. Files which cannot be locked (because a client has started removing them) are left alone.
+ * <p>
+ * On an erasure coded cluster each Dstore storing a file holds a different one of its k+m fragments, and R is k+m.
+ * A file with fragments missing cannot be copied from another Dstore, so the Dstores chosen for it are told to
+ * rebuild the missing fragments from k of the others instead. Files with fewer than k fragments left cannot be
+ * rebuilt at all. Extra fragments are never removed, as the Controller does not know which fragment each Dstore holds
+ * and so which are extra. Moves while balancing take a Dstore's fragment with them, so are unchanged.
+ */
+public class RebalancePlanner {
+
+    /**
+     * Class holding the planned state of a single Dstore
+     */
+    private static class DstoreState {
+        private final int port;
+        private final LinkedHashSet<String> files;
+        private final RebalanceInstruction instruction;
+        // While balancing: files which can still be added before reaching ceil / removed before reaching floor
+        private int room;
+        private int excess;
+
+        private DstoreState(int port, Collection<String> files) {
+            this.port = port;
+            this.files = new LinkedHashSet<>(files);
+            this.instruction = new RebalanceInstruction();
+        }
+    }
+
+    // Orders Dstores least full first, ties broken by port
+    private static final Comparator<DstoreState> LEAST_FULL_FIRST = Comparator
+            .comparingInt((DstoreState d) -> d.files.size())
+            .thenComparingInt(d -> d.port);
+
+    private final HashMap<Integer, DstoreState> dstores;
+    private final TreeSet<DstoreState> byFilesStored;
+    private final Collection<DstoreFile> files;
+    private final IndexManager filesIndex;
+    private final int R;
+    // Number of data fragments (k) on an erasure coded cluster, or 0 if files are replicated
+    private final int dataFragments;
+    private final int ceil;
+    private final int floor;
+    // Number of Dstores currently storing fewer than floor or more than ceil files
+    private int unbalanced;
+
+    /**
+     * Constructor
+     * @param filesOnDstore : map of each Dstore port to the files it stores
+     * @param files : every file in the index
+     * @param R : replication factor
+     * @param filesIndex : file index, updated as files are placed
+     */
+    public RebalancePlanner(Map<Integer, ? extends Collection<String>> filesOnDstore, Collection<DstoreFile> files,
+                            int R, IndexManager filesIndex) {
+        this(filesOnDstore, files, R, 0, filesIndex);
+    }
+
+    /**
+     * Constructor
+     * @param filesOnDstore : map of each Dstore port to the files it stores
+     * @param files : every file in the index
+     * @param R : replication factor, or k+m on an erasure coded cluster
+     * @param dataFragments : k on an erasure coded cluster, or 0 if files are replicated
+     * @param filesIndex : file index, updated as files are placed
+     */
+    public RebalancePlanner(Map<Integer, ? extends Collection<String>> filesOnDstore, Collection<DstoreFile> files,
+                            int R, int dataFragments, IndexManager filesIndex) {
+        this.dstores = new HashMap<>();
+        this.byFilesStored = new TreeSet<>(LEAST_FULL_FIRST);
+        for (Map.Entry<Integer, ? extends Collection<String>> entry : filesOnDstore.entrySet()) {
+            DstoreState dstore = new DstoreState(entry.getKey(), entry.getValue());
+            this.dstores.put(dstore.port, dstore);
+            this.byFilesStored.add(dstore);
+        }
+        this.files = files;
+        this.filesIndex = filesIndex;
+        this.R = R;
+        this.dataFragments = dataFragments;
+        int D = Math.max(this.dstores.size(), 1);
+        this.ceil = (int) Math.ceil(((double) R * (double) files.size()) / (double) D);
+        this.floor = (int) Math.floor(((double) R * (double) files.size()) / (double) D);
+    }
+
+    /**
+     * Method which works out the rebalance
+     * @return Map of Dstore port number to the instruction to send it (every Dstore gets one, even if empty)
+     */
+    public ConcurrentHashMap<Integer, RebalanceInstruction> plan() {
+        if (!this.dstores.isEmpty()) {
+            for (DstoreFile file : this.files) {
+                ArrayList<DstoreState> holders = this.getHolders(file);
+                if (holders.size() < this.R && holders.size() > 0) {
+                    this.storeFile(file.getFilename(), holders, this.R - holders.size());
+                }
+            }
+            for (DstoreFile file : this.files) {
+                ArrayList<DstoreState> holders = this.getHolders(file);
+                if (holders.size() > this.R && this.dataFragments == 0) {
+                    this.removeFile(file.getFilename(), holders, holders.size() - this.R);
+                }
+            }
+            this.balance();
+        }
+        ConcurrentHashMap<Integer, RebalanceInstruction> instructions = new ConcurrentHashMap<>();
+        for (DstoreState dstore : this.dstores.values()) {
+            instructions.put(dstore.port, dstore.instruction);
+        }
+        return instructions;
+    }
+
+    /**
+     * Gets the Dstores storing a file. They are found from the file's own list of Dstores in the index (which the
+     * listings have just brought up to date), so only R or so Dstores are looked at rather than all of them
+     * @return the Dstores (that listed their files) which store the file
+     */
+    private ArrayList<DstoreState> getHolders(DstoreFile file) {
+        ArrayList<DstoreState> holders = new ArrayList<>();
+        for (Integer port : this.filesIndex.getDstoresStoringFile(file.getFilename())) {
+            DstoreState dstore = this.dstores.get(port);
+            if (dstore != null && dstore.files.contains(file.getFilename())) {
+                holders.add(dstore);
+            }
+        }
+        return holders;
+    }
+
+
+
+
+    /*
+    FILES STORED LESS OR MORE THAN R TIMES
+     */
+
+
+
+
+    /**
+     * Copies a file to the least full Dstores which do not already store it and are below ceil. The copies are sent
+     * by the Dstores already storing the file, taking turns. On an erasure coded cluster the chosen Dstores each
+     * rebuild a different missing fragment instead
+     * @param filename : file to store
+     * @param holders : Dstores storing the file
+     * @param copiesNeeded : number of copies to make
+     */
+    private void storeFile(String filename, ArrayList<DstoreState> holders, int copiesNeeded) {
+        if (this.dataFragments > 0 && holders.size() < this.dataFragments) {
+            System.out.println("### ERROR ###   Only " + holders.size() + " fragments of " + filename
+                    + " left, it cannot be rebuilt");
+            return;
+        }
+        if (!this.filesIndex.lockForRebalance(filename)) {
+            return;
+        }
+        ArrayList<DstoreState> skipped = new ArrayList<>();
+        ArrayList<DstoreState> chosen = new ArrayList<>();
+        while (chosen.size() < copiesNeeded && !this.byFilesStored.isEmpty()) {
+            DstoreState dstore = this.byFilesStored.pollFirst();
+            if (dstore.files.size() >= this.ceil) {
+                //Every other Dstore stores at least as many files, so none can take the file
+                skipped.add(dstore);
+                break;
+            }
+            if (dstore.files.contains(filename)) {
+                skipped.add(dstore);
+            } else {
+                chosen.add(dstore);
+            }
+        }
+        this.byFilesStored.addAll(skipped);
+        ArrayList<Integer> holderPorts = new ArrayList<>();
+        for (DstoreState holder : holders) {
+            holderPorts.add(holder.port);
+        }
+        for (int i = 0; i < chosen.size(); i++) {
+            DstoreState dstore = chosen.get(i);
+            dstore.files.add(filename);
+            this.byFilesStored.add(dstore);
+            if (this.dataFragments > 0) {
+                dstore.instruction.addFileToRepair(filename, i, holderPorts);
+            } else {
+                holders.get(i % holders.size()).instruction.addFileToSend(filename, dstore.port);
+            }
+            this.filesIndex.addDstoreForFile(filename, dstore.port);
+        }
+    }
+
+    /**
+     * Removes a file from the most full Dstores storing it, as long as they stay at or above floor
+     * @param filename : file to remove
+     * @param holders : Dstores storing the file
+     * @param copiesToRemove : number of copies to remove
+     */
+    private void removeFile(String filename, ArrayList<DstoreState> holders, int copiesToRemove) {
+        if (!this.filesIndex.lockForRebalance(filename)) {
+            return;
+        }
+        holders.sort(LEAST_FULL_FIRST.reversed());
+        for (DstoreState dstore : holders) {
+            if (copiesToRemove == 0) {
+                break;
+            }
+            if (dstore.files.size() > this.floor) {
+                this.byFilesStored.remove(dstore);
+                dstore.files.remove(filename);
+                this.byFilesStored.add(dstore);
+                dstore.instruction.addFileToRemove(filename);
+                this.filesIndex.removeDstoreForFile(filename, dstore.port);
+                copiesToRemove -= 1;
+            }
+        }
+    }
+
+
+
+
+    /*
+    BALANCING DSTORES WHEN ALL FILES ARE STORED R TIMES
+     */
+
+
+
+
+    /**
+     * Moves files from Dstores storing too many to those storing too few. Each move is from the Dstore furthest over
+     * floor to the Dstore furthest under ceil, of a file the receiving Dstore does not already store
+     */
+    private void balance() {
+        PriorityQueue<DstoreState> dstoresNeedingFiles = new PriorityQueue<>(
+                Comparator.comparingInt((DstoreState d) -> -d.room).thenComparingInt(d -> d.port));
+        PriorityQueue<DstoreState> dstoresLosingFiles = new PriorityQueue<>(
+                Comparator.comparingInt((DstoreState d) -> -d.excess).thenComparingInt(d -> d.port));
+        this.unbalanced = 0;
+        for (DstoreState dstore : this.dstores.values()) {
+            int stored = dstore.files.size();
+            if (stored > this.floor) {
+                dstore.excess = stored - this.floor;
+                dstoresLosingFiles.add(dstore);
+            } else if (stored < this.ceil) {
+                dstore.room = this.ceil - stored;
+                dstoresNeedingFiles.add(dstore);
+            }
+            this.unbalanced += this.ifUnbalanced(dstore) ? 1 : 0;
+        }
+
+        while (this.unbalanced > 0 && !dstoresNeedingFiles.isEmpty() && !dstoresLosingFiles.isEmpty()) {
+            DstoreState dstoreNeedingFile = dstoresNeedingFiles.poll();
+            //Tries the Dstores with the most files first, until one has a file this Dstore does not
+            ArrayList<DstoreState> tried = new ArrayList<>();
+            DstoreState dstoreLosingFile = null;
+            String filename = null;
+            while (filename == null && !dstoresLosingFiles.isEmpty()) {
+                dstoreLosingFile = dstoresLosingFiles.poll();
+                filename = this.getFileToMove(dstoreLosingFile, dstoreNeedingFile);
+                if (filename == null) {
+                    tried.add(dstoreLosingFile);
+                }
+            }
+            dstoresLosingFiles.addAll(tried);
+            if (filename == null) {
+                //No Dstore has a file to give this one, so it is left as it is
+                continue;
+            }
+            this.addMoveFileInstruction(dstoreNeedingFile, dstoreLosingFile, filename);
+            dstoreNeedingFile.room -= 1;
+            dstoreLosingFile.excess -= 1;
+            if (dstoreNeedingFile.room > 0) {
+                dstoresNeedingFiles.add(dstoreNeedingFile);
+            }
+            if (dstoreLosingFile.excess > 0) {
+                dstoresLosingFiles.add(dstoreLosingFile);
+            }
+        }
+    }
+
+    /**
+     * Finds a file to move, and locks it
+     * @return a file stored on the sending Dstore but not on the receiving Dstore, or null if there is none
+     */
+    private String getFileToMove(DstoreState from, DstoreState to) {
+        for (String filename : from.files) {
+            if (!to.files.contains(filename) && this.filesIndex.lockForRebalance(filename)) {
+                return filename;
+            }
+        }
+        return null;
+    }
+
+    private void addMoveFileInstruction(DstoreState dstoreNeedingFile, DstoreState dstoreLosingFile, String filename) {
+        this.unbalanced -= (this.ifUnbalanced(dstoreNeedingFile) ? 1 : 0) + (this.ifUnbalanced(dstoreLosingFile) ? 1 : 0);
+        dstoreLosingFile.instruction.addFileToSend(filename, dstoreNeedingFile.port);
+        dstoreLosingFile.instruction.addFileToRemove(filename);
+        this.byFilesStored.remove(dstoreLosingFile);
+        this.byFilesStored.remove(dstoreNeedingFile);
+        dstoreLosingFile.files.remove(filename);
+        dstoreNeedingFile.files.add(filename);
+        this.byFilesStored.add(dstoreLosingFile);
+        this.byFilesStored.add(dstoreNeedingFile);
+        this.filesIndex.addDstoreForFile(filename, dstoreNeedingFile.port);
+        this.filesIndex.removeDstoreForFile(filename, dstoreLosingFile.port);
+        this.unbalanced += (this.ifUnbalanced(dstoreNeedingFile) ? 1 : 0) + (this.ifUnbalanced(dstoreLosingFile) ? 1 : 0);
+    }
+
+    private boolean ifUnbalanced(DstoreState dstore) {
+        return dstore.files.size() < this.floor || dstore.files.size() > this.ceil;
+    }
+}
@@ -0,0 +1,99 @@
+package Controller;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import IndexManager.*;
+
+/**
+ * Benchmark which times the RebalancePlanner on synthetic clusters.
+ * Each cluster has the given number of file replicas (R = 3) spread over the given number of Dstores, with the last
+ * tenth of the Dstores newly joined and empty. 1 in 20 files is stored one time too few and 1 in 50 one time too
+ * many, so all three kinds of decision are made.
+ * <p>
+ * Usage: java Controller.RebalancePlannerBenchmark [dstores] [replicas ...]
+ * (defaults: 50 Dstores, 100000 1000000 10000000 replicas). The largest cluster needs a heap of several GB (-Xmx8g)
+ */
+public class RebalancePlannerBenchmark {
+
+    private static final int R = 3;
+
+    public static void main(String[] args) {
+        int dstores = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+        ArrayList<Integer> replicaCounts = new ArrayList<>();
+        for (int i = 1; i < args.length; i++) {
+            replicaCounts.add(Integer.parseInt(args[i]));
+        }
+        if (replicaCounts.isEmpty()) {
+            replicaCounts.add(100000);
+            replicaCounts.add(1000000);
+            replicaCounts.add(10000000);
+        }
+        for (int replicas : replicaCounts) {
+            run(dstores, replicas);
+        }
+    }
+
+    private static void run(int dstores, int replicas) {
+        int joined = Math.max(1, dstores / 10);
+        int existing = dstores - joined;
+        int numberOfFiles = replicas / R;
+
+        //Builds the cluster: the index, and the files listed by each Dstore
+        IndexManager index = new IndexManager();
+        HashMap<Integer, ArrayList<String>> filesOnDstore = new HashMap<>();
+        for (int d = 0; d < dstores; d++) {
+            filesOnDstore.put(port(d), new ArrayList<>());
+            index.addDstore(port(d));
+        }
+        for (int i = 0; i < numberOfFiles; i++) {
+            String filename = "file" + i;
+            int copies = (i % 20 == 0) ? R - 1 : (i % 50 == 1) ? R + 1 : R;
+            ArrayList<Integer> ports = new ArrayList<>();
+            for (int c = 0; c < copies; c++) {
+                int port = port((i + c) % existing);
+                ports.add(port);
+                filesOnDstore.get(port).add(filename);
+            }
+            index.addFile(filename, 1024, DstoreFile.State.AVAILABLE, ports);
+        }
+
+        long start = System.nanoTime();
+        ConcurrentHashMap<Integer, RebalanceInstruction> instructions =
+                new RebalancePlanner(filesOnDstore, index.getFileObjects(), R, index).plan();
+        long planned = System.nanoTime() - start;
+
+        int sends = 0;
+        int removes = 0;
+        for (RebalanceInstruction instruction : instructions.values()) {
+            sends += instruction.getNumberOfFilesToSend();
+            removes += instruction.getNumberOfFilesToRemove();
+        }
+        //Checks the result from the index, which the planner updates as it goes
+        HashMap<Integer, Integer> filesPerDstore = new HashMap<>();
+        int wrongReplication = 0;
+        for (DstoreFile file : index.getFileObjects()) {
+            if (file.getDstoresStoredOn().size() != R) {
+                wrongReplication += 1;
+            }
+            for (Integer port : file.getDstoresStoredOn()) {
+                filesPerDstore.merge(port, 1, Integer::sum);
+            }
+        }
+        int min = Integer.MAX_VALUE;
+        int max = 0;
+        for (int d = 0; d < dstores; d++) {
+            int stored = filesPerDstore.getOrDefault(port(d), 0);
+            min = Math.min(min, stored);
+            max = Math.max(max, stored);
+        }
+        System.out.println("replicas: " + replicas + ", files: " + numberOfFiles + ", dstores: " + dstores
+                + " -> planned in " + (planned / 1000000) + "ms (sends: " + sends + ", removes: " + removes
+                + ", files per Dstore: " + min + "-" + max + ", files not stored R times: " + wrongReplication + ")");
+    }
+
+    private static int port(int dstore) {
+        return 10000 + dstore;
+    }
+}
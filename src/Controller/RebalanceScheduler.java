@@ -0,0 +1,145 @@
+package Controller;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Class which drives the Controller's rebalance operation.
+ * Runs are planned at a fixed rate of one every rebalance period. A single scheduler thread sleeps until the next
+ * planned run, so no thread is kept busy between rebalances. Extra runs (e.g. when a Dstore joins) can be requested
+ * with runNow, these go through the same thread so two rebalances never run at once. At most one requested run is
+ * waiting at a time: requests made before it starts are merged into it, so requests made during a slow run lead to a
+ * single run after it rather than one each.
+ * <p>
+ * If a run takes longer than the rebalance period, the planned runs that were missed are skipped rather than being
+ * run back to back, and the next run is planned for the next period boundary.
+ */
+public class RebalanceScheduler {
+
+    // Controller whose rebalance operation is being driven
+    private final Controller controller;
+    // Time between planned rebalance runs (milliseconds)
+    private final long rebalancePeriod;
+    // Single thread which carries out every rebalance run
+    private final ScheduledExecutorService executor;
+    // If a requested run is waiting for the scheduler thread
+    private final AtomicBoolean runRequested;
+    // Time (epoch milliseconds) the next planned run will start
+    private volatile long nextPlannedRun;
+    // How long the last rebalance that went ahead took (milliseconds), -1 if none has run yet
+    private volatile long lastRunDuration;
+    // Number of rebalances that went ahead
+    private final AtomicLong runsCompleted;
+    // Number of planned or requested rebalances that did not go ahead
+    private final AtomicLong runsSkipped;
+    // Number of rebalances which took longer than the rebalance period
+    private final AtomicLong runsOverrun;
+
+    /**
+     * Constructor
+     * @param controller : Controller to run rebalance operations on
+     * @param rebalancePeriod : time between planned rebalance runs (milliseconds)
+     */
+    public RebalanceScheduler(Controller controller, long rebalancePeriod) {
+        this.controller = controller;
+        this.rebalancePeriod = rebalancePeriod;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rebalance-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+        this.runRequested = new AtomicBoolean();
+        this.lastRunDuration = -1;
+        this.runsCompleted = new AtomicLong();
+        this.runsSkipped = new AtomicLong();
+        this.runsOverrun = new AtomicLong();
+    }
+
+    /**
+     * Plans the first rebalance run for one rebalance period from now
+     */
+    public void start() {
+        this.nextPlannedRun = System.currentTimeMillis() + this.rebalancePeriod;
+        this.executor.schedule(this::runPlanned, this.rebalancePeriod, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Requests a rebalance as soon as the scheduler thread is free. Does not move the next planned run. If a requested
+     * run is already waiting, this request is merged into it
+     */
+    public void runNow() {
+        if (!this.runRequested.compareAndSet(false, true)) {
+            this.runsSkipped.incrementAndGet();
+            return;
+        }
+        this.executor.execute(() -> {
+            //Requests made from here on need a run of their own, as this one may miss what they were made for
+            this.runRequested.set(false);
+            this.run();
+        });
+    }
+
+    /**
+     * Carries out a planned run, then plans the next one on the next period boundary that has not yet passed
+     */
+    private void runPlanned() {
+        this.nextPlannedRun += this.rebalancePeriod;
+        try {
+            this.run();
+        } finally {
+            long now = System.currentTimeMillis();
+            while (this.nextPlannedRun <= now) {
+                this.nextPlannedRun += this.rebalancePeriod;
+                this.runsSkipped.incrementAndGet();
+            }
+            this.executor.schedule(this::runPlanned, this.nextPlannedRun - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void run() {
+        long startTime = System.currentTimeMillis();
+        boolean ifRan = false;
+        try {
+            ifRan = this.controller.beginRebalance();
+        } catch (RuntimeException e) {
+            System.out.println("### ERROR ###   Rebalance failed : " + e);
+        }
+        long duration = System.currentTimeMillis() - startTime;
+        if (ifRan) {
+            this.lastRunDuration = duration;
+            this.runsCompleted.incrementAndGet();
+            if (duration > this.rebalancePeriod) {
+                this.runsOverrun.incrementAndGet();
+            }
+        } else {
+            this.runsSkipped.incrementAndGet();
+        }
+        System.out.println("--- REBALANCE ---   " + (ifRan ? "Completed in " + duration + "ms" : "Skipped") +
+                ", next planned in " + Math.max(0, this.nextPlannedRun - System.currentTimeMillis()) + "ms" +
+                " (completed: " + this.runsCompleted.get() + ", skipped: " + this.runsSkipped.get() +
+                ", overrun: " + this.runsOverrun.get() + ")");
+    }
+
+    public long getNextPlannedRun() {
+        return this.nextPlannedRun;
+    }
+
+    public long getLastRunDuration() {
+        return this.lastRunDuration;
+    }
+
+    public long getRunsCompleted() {
+        return this.runsCompleted.get();
+    }
+
+    public long getRunsSkipped() {
+        return this.runsSkipped.get();
+    }
+
+    public long getRunsOverrun() {
+        return this.runsOverrun.get();
+    }
+}
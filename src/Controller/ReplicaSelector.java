@@ -0,0 +1,155 @@
+package Controller;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class which picks which Dstore a client should LOAD a file from.
+ * For each Dstore it tracks the loads sent to it which have not finished yet, and a moving average of how long loads
+ * from it have taken per byte. A Dstore reports each load it serves (LOAD_SERVED, with the bytes sent and the time it
+ * took) and each load of a file it does not hold (LOAD_FAILED), which finishes the oldest load sent to it. A load it
+ * never reports on (the client went away, or cancelled it, as a hedged load does to the slower of its two Dstores) is
+ * no longer counted once the timeout has passed, and counts neither for nor against the Dstore. Loads of fragments of
+ * erasure coded files are counted as well; a Dstore fetching fragments from the others to rebuild one does not
+ * count, and is not reported on. A report with no load outstanding still updates the Dstore's average.
+ * The expected time for a Dstore to serve a file is the time to serve the file once, multiplied by the number of loads
+ * it would then be serving. Two of the Dstores storing the file are picked at random and the one expected to finish
+ * first is used (power of two choices), which spreads the loads of a popular file over all its replicas without every
+ * client piling onto whichever Dstore currently looks best.
+ * The other Dstores are tried on a RELOAD, the one expected to finish first first.
+ */
+public class ReplicaSelector {
+
+    // Weight given to the newest load when updating a Dstore's average
+    private static final double ALPHA = 0.2;
+    // Fixed cost of a load (connecting, the LOAD_DATA request), counted as if it were this many more bytes
+    private static final long OVERHEAD_BYTES = 64 * 1024;
+    // A failed load counts as a load this many times slower than the Dstore's average
+    private static final double FAILURE_PENALTY = 4.0;
+
+    /**
+     * Class holding the load statistics of a single Dstore. Its monitor guards its fields
+     */
+    private static class DstoreStats {
+        // When each load sent to the Dstore which it has not reported on was sent (System.nanoTime), oldest first
+        private final ArrayDeque<Long> outstanding = new ArrayDeque<>();
+        // Moving average of nanoseconds taken per byte (including the overhead), 0 until a load has finished
+        // (counted as 1 until then, so Dstores not yet loaded from are tried, ordered by their outstanding loads)
+        private double nanosPerByte;
+    }
+
+    private final ConcurrentHashMap<Integer, DstoreStats> stats;
+    // Time after which a load a Dstore has not reported on is no longer counted
+    private final long timeoutNanos;
+
+    /**
+     * Constructor
+     * @param timeout : time after which a load a Dstore has not reported on is no longer counted (milliseconds)
+     */
+    public ReplicaSelector(int timeout) {
+        this.stats = new ConcurrentHashMap<>();
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    /**
+     * Method which orders the Dstores storing a file by which should be loaded from
+     * @param replicas : Dstores storing the file
+     * @param filesize : size of the file
+     * @return the Dstores, the one to load from first, then the rest in order of expected time to load
+     */
+    public ArrayList<Integer> rank(Collection<Integer> replicas, long filesize) {
+        ArrayList<Integer> ranked = new ArrayList<>(replicas);
+        if (ranked.size() < 2) {
+            return ranked;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(ranked.size());
+        int second = random.nextInt(ranked.size() - 1);
+        if (second >= first) {
+            second += 1;
+        }
+        Integer chosen = this.expectedNanos(ranked.get(first), filesize)
+                <= this.expectedNanos(ranked.get(second), filesize) ? ranked.get(first) : ranked.get(second);
+        ranked.remove(chosen);
+        ranked.sort(Comparator.comparingDouble((Integer port) -> this.expectedNanos(port, filesize)));
+        ranked.add(0, chosen);
+        return ranked;
+    }
+
+    /**
+     * @return expected time for the Dstore to serve the file, if it were sent one more load
+     */
+    private double expectedNanos(Integer port, long filesize) {
+        DstoreStats dstore = this.stats.get(port);
+        if (dstore == null) {
+            return filesize + OVERHEAD_BYTES;
+        }
+        synchronized (dstore) {
+            this.expireOutstanding(dstore);
+            double nanosPerByte = dstore.nanosPerByte == 0 ? 1 : dstore.nanosPerByte;
+            return nanosPerByte * (filesize + OVERHEAD_BYTES) * (dstore.outstanding.size() + 1);
+        }
+    }
+
+    /**
+     * Called when a client is sent a Dstore to load from
+     */
+    public void loadStarted(Integer port) {
+        DstoreStats dstore = this.stats.computeIfAbsent(port, p -> new DstoreStats());
+        synchronized (dstore) {
+            this.expireOutstanding(dstore);
+            dstore.outstanding.addLast(System.nanoTime());
+        }
+    }
+
+    /**
+     * Called when a Dstore reports it has served a load
+     * @param port : Dstore loaded from
+     * @param bytes : number of bytes it sent
+     * @param nanos : time it took to send them
+     */
+    public void loadServed(Integer port, long bytes, long nanos) {
+        DstoreStats dstore = this.stats.computeIfAbsent(port, p -> new DstoreStats());
+        synchronized (dstore) {
+            dstore.outstanding.pollFirst();
+            this.addSample(dstore, (double) nanos / (bytes + OVERHEAD_BYTES));
+        }
+    }
+
+    /**
+     * Called when a Dstore reports it was asked for a file it does not hold
+     */
+    public void loadFailed(Integer port) {
+        DstoreStats dstore = this.stats.computeIfAbsent(port, p -> new DstoreStats());
+        synchronized (dstore) {
+            dstore.outstanding.pollFirst();
+            this.addSample(dstore, Math.max(dstore.nanosPerByte, 1) * FAILURE_PENALTY);
+        }
+    }
+
+    private void addSample(DstoreStats dstore, double sample) {
+        dstore.nanosPerByte = dstore.nanosPerByte == 0 ? sample : dstore.nanosPerByte + ALPHA * (sample - dstore.nanosPerByte);
+    }
+
+    /**
+     * Stops counting the loads sent to a Dstore longer ago than the timeout, which it is never going to report on
+     */
+    private void expireOutstanding(DstoreStats dstore) {
+        long now = System.nanoTime();
+        while (!dstore.outstanding.isEmpty() && now - dstore.outstanding.peekFirst() > this.timeoutNanos) {
+            dstore.outstanding.pollFirst();
+        }
+    }
+
+    /**
+     * Called when a Dstore leaves the system
+     */
+    public void dstoreRemoved(Integer port) {
+        this.stats.remove(port);
+    }
+}
@@ -0,0 +1,124 @@
+package Controller;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Class for a single selector event loop thread. Each loop owns one Selector and serves every connection registered
+ * with it. Work from other threads (registering a connection, queueing a write) is handed to the loop with execute,
+ * so a connection's socket is only ever touched by the loop that owns it.
+ */
+public class SelectorLoop implements Runnable {
+
+    private final Selector selector;
+    private final ControllerSelectorServer server;
+    // Tasks handed to this loop by other threads, run at the start of the next iteration
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private Thread thread;
+
+    public SelectorLoop(ControllerSelectorServer server) throws IOException {
+        this.selector = Selector.open();
+        this.server = server;
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    public void start(String name) {
+        this.thread = new Thread(this, name);
+        this.thread.start();
+    }
+
+    public void join() throws InterruptedException {
+        this.thread.join();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /**
+     * Runs the task on this loop's thread. Runs it straight away if already on the loop's thread
+     * @param task : task to run
+     */
+    public void execute(Runnable task) {
+        if (this.inLoop()) {
+            task.run();
+        } else {
+            this.tasks.add(task);
+            this.selector.wakeup();
+        }
+    }
+
+    public void registerAcceptor(ServerSocketChannel serverChannel) {
+        this.execute(() -> {
+            try {
+                serverChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Controller could not listen for connections : " + e);
+            }
+        });
+    }
+
+    /**
+     * Hands a newly accepted connection to this loop
+     * @param channel : accepted socket channel
+     */
+    public void register(SocketChannel channel) {
+        this.execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel, this, this.server);
+                connection.setKey(channel.register(this.selector, SelectionKey.OP_READ, connection));
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Controller could not register connection : " + e);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                Runnable task;
+                while ((task = this.tasks.poll()) != null) {
+                    task.run();
+                }
+                this.selector.select();
+                Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    this.handleKey(key);
+                }
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Controller event loop error : " + e);
+            } catch (RuntimeException e) {
+                System.out.println("### ERROR ###   Controller event loop task failed : " + e);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null) {
+                this.server.nextLoop().register(channel);
+            }
+            return;
+        }
+        NioConnection connection = (NioConnection) key.attachment();
+        if (key.isReadable()) {
+            connection.onReadable();
+        }
+        if (key.isValid() && key.isWritable()) {
+            connection.onWritable();
+        }
+    }
+}
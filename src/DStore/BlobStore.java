@@ -0,0 +1,267 @@
+package DStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Class which stores a Dstore's files by their contents, so files with the same contents under different names take
+ * the space of one.
+ * The contents of each file are kept once, as a blob in the blob folder named by the SHA-256 of the contents (before
+ * any compression), which is worked out as the file arrives. Each filename is a reference to a blob: a file in the ref
+ * folder of the same name, holding the blob's hash. Each blob counts the names referring to it, and is only deleted
+ * once the last of them is removed. How a compressed blob is stored (see StoredFileFormat) is kept in the format
+ * folder under the blob's hash, as it belongs to the contents rather than to any one name.
+ * The ref files are the record of what is stored; the counts are worked out from them when the Dstore starts, so a
+ * Dstore stopped part way through a change never has a count that is wrong, only at worst a blob nothing refers to,
+ * which is deleted then. Every change is made with the store's monitor held.
+ * The size of each blob's contents (before any compression) is kept in memory, so it is known without reading the
+ * blob's format.
+ */
+public class BlobStore {
+
+    private static final String HASH_ALGORITHM = "SHA-256";
+
+    private final File blobFolder;
+    private final File refFolder;
+    private final File formatFolder;
+    // Folder the ref files are written to before being moved into the ref folder
+    private final File incomingFolder;
+    // Cache of blobs' contents, told when a blob is deleted (null if there is none)
+    private final HotFileCache cache;
+    // Hash of the blob each filename refers to
+    private final HashMap<String, String> refs;
+    // Number of filenames referring to each blob held
+    private final HashMap<String, Integer> counts;
+    // Size of the contents of each blob held, before any compression
+    private final HashMap<String, Long> sizes;
+
+    /**
+     * Constructor. Reads the refs of every file stored, and deletes any blob nothing refers to
+     */
+    public BlobStore(File blobFolder, File refFolder, File formatFolder, File incomingFolder, HotFileCache cache) {
+        this.blobFolder = blobFolder;
+        this.refFolder = refFolder;
+        this.formatFolder = formatFolder;
+        this.incomingFolder = incomingFolder;
+        this.cache = cache;
+        this.blobFolder.mkdir();
+        this.refFolder.mkdir();
+        this.refs = new HashMap<>();
+        this.counts = new HashMap<>();
+        this.sizes = new HashMap<>();
+        File[] refFiles = this.refFolder.listFiles();
+        if (refFiles != null) {
+            for (File ref : refFiles) {
+                try {
+                    String hash = new String(Files.readAllBytes(ref.toPath()), StandardCharsets.US_ASCII).trim();
+                    if (new File(this.blobFolder, hash).isFile()) {
+                        this.refs.put(ref.getName(), hash);
+                        this.counts.merge(hash, 1, Integer::sum);
+                        continue;
+                    }
+                } catch (IOException ignored) {
+                }
+                //A ref to a blob which is not there (or cannot be read) is of a file that was never completely stored
+                ref.delete();
+            }
+        }
+        String[] blobs = this.blobFolder.list();
+        if (blobs != null) {
+            for (String hash : blobs) {
+                if (!this.counts.containsKey(hash)) {
+                    this.deleteBlob(hash);
+                } else {
+                    StoredFileFormat format = this.getFormat(hash);
+                    this.sizes.put(hash, format == null ? this.getBlob(hash).length() : format.size);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a new digest to work out the hash of a file's contents with, as they arrive
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            //Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the hash of the contents given to a digest from newDigest, as 64 hex digits
+     */
+    public static String toHash(MessageDigest digest) {
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+        return hash.toString();
+    }
+
+    /**
+     * Stores a file which has completely arrived under a name, replacing any file of that name. If a blob with the
+     * same contents is already held, the file is deleted and the name refers to that blob instead; otherwise the file
+     * is moved into the blob folder, in a single rename, to become the blob
+     * @param incoming : file holding the contents, as written by a FileCompressor
+     * @param filename : name to store it under
+     * @param hash : hash of the contents (before any compression)
+     * @param format : how the file was compressed, or null if it was not
+     */
+    public synchronized void commit(File incoming, String filename, String hash, StoredFileFormat format)
+            throws IOException {
+        if (this.counts.containsKey(hash)) {
+            incoming.delete();
+        } else {
+            File formatFile = new File(this.formatFolder, hash);
+            if (format != null) {
+                Files.write(formatFile.toPath(), format.toRecord().getBytes(StandardCharsets.US_ASCII));
+            } else {
+                formatFile.delete();
+            }
+            long size = format == null ? incoming.length() : format.size;
+            Files.move(incoming.toPath(), this.getBlob(hash).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            this.counts.put(hash, 0);
+            this.sizes.put(hash, size);
+        }
+        try {
+            this.link(filename, hash);
+        } catch (IOException e) {
+            //A new blob nothing could be made to refer to is not kept
+            if (this.counts.get(hash) == 0) {
+                this.counts.remove(hash);
+                this.sizes.remove(hash);
+                this.deleteBlob(hash);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Makes a name refer to a blob already held, replacing any file of that name
+     * @return false if the blob is not held
+     */
+    public synchronized boolean link(String filename, String hash) throws IOException {
+        Integer count = this.counts.get(hash);
+        if (count == null) {
+            return false;
+        }
+        //The ref is written whole before it replaces the old one, so a name always refers to a single blob
+        File ref = Files.createTempFile(this.incomingFolder.toPath(), filename + ".", ".ref").toFile();
+        try {
+            Files.write(ref.toPath(), hash.getBytes(StandardCharsets.US_ASCII));
+            Files.move(ref.toPath(), new File(this.refFolder, filename).toPath(), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            ref.delete();
+        }
+        this.counts.put(hash, count + 1);
+        String old = this.refs.put(filename, hash);
+        if (old != null) {
+            this.release(old);
+        }
+        return true;
+    }
+
+    /**
+     * Removes a name, deleting its blob if no other name refers to it
+     * @return false if no file of that name is stored
+     */
+    public synchronized boolean remove(String filename) {
+        String hash = this.refs.remove(filename);
+        if (hash == null) {
+            return false;
+        }
+        new File(this.refFolder, filename).delete();
+        this.release(hash);
+        return true;
+    }
+
+    /**
+     * Deletes a blob, and every name referring to it (used when its contents have been found to be corrupt)
+     * @return the names which referred to it
+     */
+    public synchronized ArrayList<String> removeBlob(String hash) {
+        ArrayList<String> removed = new ArrayList<>();
+        for (Map.Entry<String, String> ref : this.refs.entrySet()) {
+            if (ref.getValue().equals(hash)) {
+                removed.add(ref.getKey());
+            }
+        }
+        for (String filename : removed) {
+            this.remove(filename);
+        }
+        return removed;
+    }
+
+    private void release(String hash) {
+        int count = this.counts.merge(hash, -1, Integer::sum);
+        if (count <= 0) {
+            this.counts.remove(hash);
+            this.sizes.remove(hash);
+            this.deleteBlob(hash);
+        }
+    }
+
+    private void deleteBlob(String hash) {
+        if (this.cache != null) {
+            this.cache.invalidate(hash);
+        }
+        this.getBlob(hash).delete();
+        new File(this.formatFolder, hash).delete();
+    }
+
+    /**
+     * @return hash of the blob a name refers to, or null if no file of that name is stored
+     */
+    public synchronized String getHash(String filename) {
+        return this.refs.get(filename);
+    }
+
+    /**
+     * @return size of a blob's contents, before any compression, or -1 if the blob is not held
+     */
+    public synchronized long getSize(String hash) {
+        return this.sizes.getOrDefault(hash, -1L);
+    }
+
+    public synchronized boolean hasBlob(String hash) {
+        return this.counts.containsKey(hash);
+    }
+
+    /**
+     * @return the file holding a blob (which does not exist if the blob is not held)
+     */
+    public File getBlob(String hash) {
+        return new File(this.blobFolder, hash);
+    }
+
+    /**
+     * @return how a blob is compressed, or null if it is stored as it arrived (or is not held)
+     */
+    public StoredFileFormat getFormat(String hash) {
+        try {
+            return StoredFileFormat.fromRecord(new String(Files.readAllBytes(new File(this.formatFolder, hash).toPath()),
+                    StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return names of every file stored
+     */
+    public synchronized ArrayList<String> getFilenames() {
+        return new ArrayList<>(this.refs.keySet());
+    }
+}
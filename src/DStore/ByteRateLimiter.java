@@ -0,0 +1,45 @@
+package DStore;
+
+/**
+ * Token bucket which caps how many bytes per second a Dstore sends to other Dstores when rebalancing, or reads when
+ * checking its files (see Scrubber).
+ * The bucket holds up to one second's worth of bytes. A sender takes the bytes it is about to write from the bucket,
+ * and if the bucket goes into debt it sleeps until the debt would be paid back. Shared by every transfer, so the cap
+ * applies to the Dstore as a whole.
+ */
+public class ByteRateLimiter {
+
+    private final long bytesPerSecond;
+    // Bytes that can be sent straight away. Negative while senders are waiting for bytes already taken
+    private double available;
+    private long lastRefill;
+
+    /**
+     * Constructor
+     * @param bytesPerSecond : maximum bytes to send per second
+     */
+    public ByteRateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Waits until the bytes can be sent without going over the cap
+     * @param bytes : number of bytes about to be sent
+     */
+    public void acquire(int bytes) throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            this.available = Math.min(this.bytesPerSecond,
+                    this.available + (now - this.lastRefill) * (double) this.bytesPerSecond / 1e9);
+            this.lastRefill = now;
+            this.available -= bytes;
+            waitNanos = this.available >= 0 ? 0 : (long) (-this.available * 1e9 / this.bytesPerSecond);
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+    }
+}
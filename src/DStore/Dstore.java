@@ -1,32 +1,104 @@
 package DStore;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.InflaterInputStream;
 
 import Loggers.DstoreLogger;
 import Loggers.Logger;
+import Loggers.Protocol;
+import Tokenizer.Tokenizer;
 
 public class Dstore {
 
+    // Folder inside the file folder which files are written to while they arrive, and moved out of once complete
+    public static final String INCOMING_FOLDER = ".incoming";
+    // Folder inside the file folder holding the CRC32C checksum of each stored file, in a file of the same name
+    public static final String CHECKSUM_FOLDER = ".checksums";
+    // Folder inside the file folder recording how each compressed blob is stored, in a file named by its hash (see
+    // StoredFileFormat)
+    public static final String FORMAT_FOLDER = ".formats";
+    // Folders inside the file folder holding the contents of the files stored, and the blob each filename refers to
+    // (see BlobStore)
+    public static final String BLOB_FOLDER = ".blobs";
+    public static final String REF_FOLDER = ".refs";
+
     private final int port;
     private final int timeout;
     private final File fileFolder;
+    private final File incomingFolder;
+    private final File checksumFolder;
+    private final File formatFolder;
+    // Contents of the files stored, each kept once however many names it is stored under
+    private final BlobStore blobStore;
+    // Contents of the most loaded small files, kept in memory (null if not caching)
+    private final HotFileCache cache;
+    // Codec files are compressed with as they arrive, or null if they are stored as they are
+    private final String compression;
+    // Files stored compressed since the Dstore started, their sizes and the sizes they take on disk, and the number
+    // of files when they were last printed. Guarded by the monitor of compressionLock
+    private final Object compressionLock;
+    private long filesCompressed;
+    private long bytesCompressed;
+    private long bytesStoredCompressed;
+    private long lastReportedCompressed;
     private DstoreToControllerConnection controllerConnection;
+    // Versioned record of the files stored and removed, so the Controller can ask for just the changes
+    private final FileInventory inventory;
+    // Sends files to other Dstores when rebalancing
+    private final TransferEngine transferEngine;
+    // Rebuilds lost fragments of erasure coded files when rebalancing
+    private final FragmentRepair fragmentRepair;
 
     public Dstore(int port, int cPort, int timeout, String fileFolder) throws IOException {
         this.port = port;
         this.timeout = timeout;
         this.fileFolder = new File(fileFolder);
         this.fileFolder.mkdir();
+        this.incomingFolder = new File(this.fileFolder, INCOMING_FOLDER);
+        this.clearIncomingFolder();
+        this.checksumFolder = new File(this.fileFolder, CHECKSUM_FOLDER);
+        this.checksumFolder.mkdir();
+        this.formatFolder = new File(this.fileFolder, FORMAT_FOLDER);
+        this.formatFolder.mkdir();
+        long cacheBytes = Long.getLong("dstore.cache.bytes", 64L * 1024 * 1024);
+        this.cache = cacheBytes > 0
+                ? new HotFileCache(cacheBytes, Integer.getInteger("dstore.cache.maxFileBytes", 1024 * 1024)) : null;
+        this.blobStore = new BlobStore(new File(this.fileFolder, BLOB_FOLDER), new File(this.fileFolder, REF_FOLDER),
+                this.formatFolder, this.incomingFolder, this.cache);
+        this.adoptUnreferencedFiles();
+        String codec = System.getProperty("dstore.compress", "none");
+        if (!codec.equals(Protocol.CODEC_NONE) && !codec.equals(Protocol.CODEC_DEFLATE)) {
+            throw new IllegalArgumentException("unknown codec " + codec);
+        }
+        this.compression = codec.equals(Protocol.CODEC_NONE) ? null : codec;
+        this.compressionLock = new Object();
+        this.inventory = new FileInventory(Integer.getInteger("dstore.inventory.changes", 100000));
+        this.transferEngine = new TransferEngine(this, timeout,
+                Integer.getInteger("dstore.transfer.parallel", 8),
+                Integer.getInteger("dstore.transfer.perDstore", 2),
+                Long.getLong("dstore.transfer.bytesPerSecond", 0L));
+        this.fragmentRepair = new FragmentRepair(this, timeout);
 
         DstoreLogger.init(Logger.LoggingType.ON_FILE_AND_TERMINAL, this.port);
 
@@ -34,6 +106,18 @@ public class Dstore {
         try {
             Socket controllerSocket = new Socket(InetAddress.getLocalHost(), cPort);
             this.joinController(controllerSocket);
+            long scrubPeriod = Long.getLong("dstore.scrub.period", 3600000L);
+            if (scrubPeriod > 0) {
+                new Scrubber(this, scrubPeriod, Long.getLong("dstore.scrub.bytesPerSecond", 8L * 1024 * 1024)).start();
+            }
+            long cacheReportPeriod = Long.getLong("dstore.cache.reportPeriod", 60000L);
+            if (this.cache != null && cacheReportPeriod > 0) {
+                this.cache.startReporting(cacheReportPeriod);
+            }
+            long compressReportPeriod = Long.getLong("dstore.compress.reportPeriod", 60000L);
+            if (this.compression != null && compressReportPeriod > 0) {
+                this.startCompressionReporting(compressReportPeriod);
+            }
             this.startListening();
         } catch (IOException e) {
             System.out.println("### DSTORE ERROR ###    TCP Connection to Controller failed");
@@ -45,68 +129,395 @@ public class Dstore {
     }
 
     private void startListening() throws IOException {
-        ServerSocket listener = new ServerSocket(this.port);
+        //Connections are accepted as channels, so files can be sent to them straight from disk (see
+        //DstoreClientConnection.sendFileToClient). The channels stay blocking, and are used through their sockets
+        ServerSocketChannel listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(this.port));
         while (true) {
-            Socket connection = listener.accept();
+            Socket connection = listener.accept().socket();
             new DstoreClientConnection(connection, this, this.timeout).start();
         }
     }
 
-    public void storeToFile(String filename, byte[] data)  {
+    /**
+     * Deletes any files left part way through arriving when the Dstore last stopped
+     */
+    private void clearIncomingFolder() {
+        this.incomingFolder.mkdir();
+        File[] leftover = this.incomingFolder.listFiles();
+        if (leftover != null) {
+            for (File f : leftover) {
+                f.delete();
+            }
+        }
+    }
+
+    /**
+     * Moves any file kept straight in the file folder, as files were before they were kept by their contents, into
+     * the blob store under the same name. Its contents are read to work out their hash
+     */
+    private void adoptUnreferencedFiles() {
+        File[] files = this.fileFolder.listFiles(File::isFile);
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String filename = f.getName();
+            File oldFormatFile = new File(this.formatFolder, filename);
+            StoredFileFormat format = null;
+            try {
+                format = StoredFileFormat.fromRecord(new String(Files.readAllBytes(oldFormatFile.toPath()),
+                        StandardCharsets.US_ASCII));
+            } catch (IOException ignored) {
+            }
+            MessageDigest digest = BlobStore.newDigest();
+            try (InputStream in = format == null ? new BufferedInputStream(new FileInputStream(f))
+                    : new InflaterInputStream(new BufferedInputStream(new FileInputStream(f)))) {
+                byte[] chunk = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(chunk)) != -1) {
+                    digest.update(chunk, 0, read);
+                }
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Could not read " + filename + " to move it into the blob store : " + e);
+                continue;
+            }
+            try {
+                oldFormatFile.delete();
+                this.blobStore.commit(f, filename, BlobStore.toHash(digest), format);
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Could not move " + filename + " into the blob store : " + e);
+            }
+        }
+    }
+
+    /**
+     * Creates an empty temporary file in the incoming folder for a file that is about to arrive
+     * Each call gets its own file, so the same file arriving twice at once cannot mix the two
+     */
+    public File createIncomingFile(String filename) throws IOException {
+        return Files.createTempFile(this.incomingFolder.toPath(), filename + ".", ".part").toFile();
+    }
+
+    /**
+     * Opens a temporary file from createIncomingFile to write an arriving file to. The file is compressed on the way
+     * if the Dstore compresses files and it is worth compressing (see FileCompressor)
+     */
+    public FileCompressor createFileWriter(File incoming) throws IOException {
+        return new FileCompressor(new BufferedOutputStream(new FileOutputStream(incoming)), this.compression);
+    }
+
+    /**
+     * Stores a file which has completely arrived, and was written as it arrived, uncompressed
+     * (see commitIncomingFile below)
+     */
+    public void commitIncomingFile(File incoming, String filename, long checksum, String hash) throws IOException {
+        this.commitIncomingFile(incoming, filename, checksum, hash, null);
+    }
+
+    /**
+     * Stores a file which has completely arrived in the incoming folder, replacing any file of the same name. The
+     * file becomes a blob, or is dropped if a blob with the same contents is already held (see BlobStore.commit).
+     * Only then is the file counted as stored. Its checksum is recorded first, so a stored file always has the
+     * checksum it arrived with
+     * @param incoming : temporary file from createIncomingFile
+     * @param filename : name to store it under
+     * @param checksum : CRC32C of the file's contents (before any compression), worked out as it arrived
+     * @param hash : SHA-256 of the file's contents (see BlobStore.newDigest), worked out as it arrived
+     * @param format : how the file was compressed (see FileCompressor.getFormat), or null if it was not
+     */
+    public void commitIncomingFile(File incoming, String filename, long checksum, String hash, StoredFileFormat format)
+            throws IOException {
+        this.recordChecksum(filename, checksum);
+        this.blobStore.commit(incoming, filename, hash, format);
+        this.fileStored(filename);
+        if (format != null) {
+            synchronized (this.compressionLock) {
+                this.filesCompressed += 1;
+                this.bytesCompressed += format.size;
+                this.bytesStoredCompressed += format.storedSize;
+            }
+        }
+    }
+
+    /**
+     * Prints how well the files stored compressed have compressed in all, once every period, in the background
+     * @param period : time between reports (milliseconds)
+     */
+    private void startCompressionReporting(long period) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "compress-report");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::reportCompression, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Prints the files stored compressed since the Dstore started, and their ratio in all, if any have been stored
+     * since the last report
+     */
+    private void reportCompression() {
+        StoredFileFormat total;
+        long files;
+        synchronized (this.compressionLock) {
+            if (this.filesCompressed == this.lastReportedCompressed) {
+                return;
+            }
+            this.lastReportedCompressed = this.filesCompressed;
+            files = this.filesCompressed;
+            total = new StoredFileFormat(this.compression, this.bytesCompressed, this.bytesStoredCompressed);
+        }
+        System.out.println("--- COMPRESS ---   " + files + " files stored with " + total.codec + ", " + total.size
+                + " bytes in " + total.storedSize + " (ratio " + String.format("%.2f", total.getRatio()) + ")");
+    }
+
+    /**
+     * Stores a file sent when rebalancing without receiving it, if its contents are already held under another name
+     * @param filename : name to store it under
+     * @param hash : hash of its contents, as sent by the Dstore sending it
+     * @param checksum : its checksum, as sent by the Dstore sending it
+     * @return false if the contents are not held, so the file has to be sent
+     */
+    public boolean storeFromHeldContents(String filename, String hash, long checksum) throws IOException {
+        if (!this.blobStore.hasBlob(hash)) {
+            return false;
+        }
+        this.recordChecksum(filename, checksum);
+        if (!this.blobStore.link(filename, hash)) {
+            //Removed since it was looked for
+            return false;
+        }
+        this.fileStored(filename);
+        return true;
+    }
+
+    /**
+     * Records the checksum of a stored file, replacing any it had
+     */
+    public void recordChecksum(String filename, long checksum) throws IOException {
+        Files.write(new File(this.checksumFolder, filename).toPath(),
+                Tokenizer.checksumToString(checksum).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * @return the checksum recorded for a stored file, or Protocol.NO_CHECKSUM if none has been (or it is unreadable)
+     */
+    public long getChecksum(String filename) {
         try {
-            File f = new File(this.fileFolder.getPath() + "/" + filename);
-            FileOutputStream writer = new FileOutputStream(f);
-            writer.write(data);
-            writer.flush();
-            writer.close();
+            String checksum = new String(Files.readAllBytes(new File(this.checksumFolder, filename).toPath()),
+                    StandardCharsets.US_ASCII).trim();
+            return Long.parseLong(checksum, 16);
+        } catch (IOException | NumberFormatException e) {
+            return Protocol.NO_CHECKSUM;
+        }
+    }
+
+    /**
+     * @return hash of a stored file's contents, or null if it is not stored
+     */
+    public String getHash(String filename) {
+        return this.blobStore.getHash(filename);
+    }
+
+    /**
+     * @return how a stored file is compressed, or null if it is stored as it arrived (or does not exist)
+     */
+    public StoredFileFormat getFormat(String filename) {
+        String hash = this.blobStore.getHash(filename);
+        return hash == null ? null : this.blobStore.getFormat(hash);
+    }
+
+    /**
+     * Opens a stored file to read its contents, decompressing them if it is compressed
+     * @throws NoSuchFileException if the file is not stored
+     */
+    public InputStream openStoredFile(String filename) throws IOException {
+        String hash = this.blobStore.getHash(filename);
+        if (hash == null) {
+            throw new NoSuchFileException(filename);
+        }
+        StoredFileFormat format = this.blobStore.getFormat(hash);
+        InputStream in = new BufferedInputStream(Files.newInputStream(this.blobStore.getBlob(hash).toPath()));
+        return format == null ? in : new InflaterInputStream(in);
+    }
+
+    /**
+     * Gets a stored file's contents from the cache, caching them first if the file is loaded often enough
+     * (see HotFileCache). Files larger than the cache keeps are not looked up at all
+     * @return a buffer of the file's whole contents, uncompressed, for the caller alone to read, or null if the file
+     *         is not cached (or not stored)
+     */
+    public ByteBuffer getCachedContents(String filename) {
+        String hash = this.blobStore.getHash(filename);
+        if (this.cache == null || hash == null) {
+            return null;
+        }
+        long size = this.blobStore.getSize(hash);
+        if (size < 0 || size > this.cache.getMaxFileSize()) {
+            return null;
+        }
+        ByteBuffer contents = this.cache.get(hash);
+        if (contents != null || !this.cache.reserve(hash, (int) size)) {
+            return contents;
+        }
+        File blob = this.blobStore.getBlob(hash);
+        StoredFileFormat format = this.blobStore.getFormat(hash);
+        try {
+            contents = ByteBuffer.allocateDirect((int) size);
+            if (format == null) {
+                try (FileChannel in = FileChannel.open(blob.toPath(), StandardOpenOption.READ)) {
+                    while (contents.hasRemaining() && in.read(contents) != -1) {
+                    }
+                }
+            } else {
+                try (InputStream in = new InflaterInputStream(Files.newInputStream(blob.toPath()))) {
+                    byte[] chunk = new byte[64 * 1024];
+                    int read;
+                    while (contents.hasRemaining()
+                            && (read = in.read(chunk, 0, Math.min(chunk.length, contents.remaining()))) != -1) {
+                        contents.put(chunk, 0, read);
+                    }
+                }
+            }
         } catch (IOException e) {
-            System.out.println("### ERROR ###   Cannot write data to filename " + filename);
+            //Removed since its hash was looked up, or unreadable; it is loaded from disk as usual
+            this.cache.release(hash);
+            return null;
         }
+        if (contents.hasRemaining()) {
+            this.cache.release(hash);
+            return null;
+        }
+        contents.flip();
+        this.cache.put(hash, contents);
+        //A blob deleted while it was being read in is not kept
+        if (!this.blobStore.hasBlob(hash)) {
+            this.cache.invalidate(hash);
+        }
+        return contents.asReadOnlyBuffer();
     }
 
+    /**
+     * Called by the scrubber when a stored file no longer matches its checksum. Its contents are deleted, along with
+     * every other file stored with the same contents, so they are never sent to a client or another Dstore (nor
+     * taken to be held when rebalancing). The files deleted are to be reported to the Controller with reportCorrupt,
+     * so it can copy them here again from a Dstore whose copy is intact
+     * @return names of the files deleted
+     */
+    public ArrayList<String> fileCorrupt(String filename) {
+        String hash = this.blobStore.getHash(filename);
+        if (hash == null) {
+            return new ArrayList<>();
+        }
+        ArrayList<String> removed = this.blobStore.removeBlob(hash);
+        for (String f : removed) {
+            System.out.println("### ERROR ###   " + f + " on Dstore (port: " + this.port + ") does not match its"
+                    + " checksum, deleting it");
+            new File(this.checksumFolder, f).delete();
+            this.inventory.fileRemoved(f);
+        }
+        return removed;
+    }
+
+    /**
+     * Tells the Controller of every file deleted as corrupt in one check of the files stored, in a single message, so
+     * it rebalances once for all of them
+     */
+    public void reportCorrupt(ArrayList<String> filenames) {
+        if (filenames.isEmpty()) {
+            return;
+        }
+        StringBuilder message = new StringBuilder(Protocol.CORRUPT_TOKEN);
+        for (String filename : filenames) {
+            message.append(" ").append(filename);
+        }
+        this.sendAckToController(message.toString());
+    }
+
+    /**
+     * Called once a file has been completely written to the file folder
+     */
+    public void fileStored(String filename) {
+        this.inventory.fileAdded(filename);
+    }
+
+    /**
+     * Removes a stored file. Its contents are only deleted if no other file is stored with them
+     */
     public boolean removeFile(String filename) {
-        File f = new File(this.fileFolder.getPath() + "/" + filename);
-        try {
-            Files.delete(Paths.get(f.getAbsolutePath()));
+        if (this.blobStore.remove(filename)) {
+            new File(this.checksumFolder, filename).delete();
+            this.inventory.fileRemoved(filename);
             return true;
-        } catch (IOException e) {
+        } else {
             System.out.println("### ERROR ###   File " + filename + "does not exist on Dstore (port : " + this.port + ")");
             return false;
         }
     }
 
+    public TransferEngine getTransferEngine() {
+        return this.transferEngine;
+    }
+
+    public FragmentRepair getFragmentRepair() {
+        return this.fragmentRepair;
+    }
+
+    /**
+     * @return the file on disk holding a stored file's contents (shared with any other file with the same contents),
+     *         or null if it is not stored
+     */
+    public File getStoredFile(String filename) {
+        String hash = this.blobStore.getHash(filename);
+        return hash == null ? null : this.blobStore.getBlob(hash);
+    }
+
     public void sendAckToController(String ack) {
         this.controllerConnection.sendMessageToController(ack);
     }
 
-    public byte[] loadDataFromFile(String filename) {
-        String path = this.fileFolder.getPath() + "/" + filename;
-        File f = new File(path);
-        try {
-            FileInputStream r = new FileInputStream(f);
-            byte[] data = new byte[(int) f.length()];
-            r.read(data);
-            r.close();
-            return data;
-        } catch (IOException e) {
-            return null;
-        }
+    public ArrayList<String> getListOfFiles() {
+        return this.blobStore.getFilenames();
     }
 
-    public ArrayList<String> getListOfFiles() {
-        String[] files = this.fileFolder.list();
-        if (files != null) {
-            return new ArrayList<>(Arrays.asList(files));
-        } else {
-            return new ArrayList<>();
+    /**
+     * Method to build the reply to the Controller's LIST_SINCE request. Sends just the changes since the version the
+     * Controller has if they are still known, otherwise the full file list
+     * @param epoch : epoch of the version the Controller has (0 if it has none)
+     * @param since : seq of the version the Controller has
+     * @return LIST_DELTA or LIST_FULL message
+     */
+    public String getInventoryMessage(long epoch, long since) {
+        String delta = this.inventory.getDeltaMessage(epoch, since);
+        if (delta != null) {
+            return delta;
         }
-
+        //The seq is read before the folder is listed. Any change it counts is already in the folder, and changes made
+        //while listing will be sent again in the next delta, which the Controller can safely apply twice
+        long seq = this.inventory.getSeq();
+        StringBuilder message = new StringBuilder(Protocol.LIST_FULL_TOKEN);
+        message.append(" ").append(this.inventory.getEpoch()).append(" ").append(seq);
+        for (String file : this.getListOfFiles()) {
+            message.append(" ").append(file);
+        }
+        return message.toString();
     }
 
-    public int getFilesize(String filename) {
-        File f = new File(this.fileFolder.getPath() + "/" + filename);
-        if (f.exists()) {
-            return ((int)f.length());
+    /**
+     * @return size of a stored file's contents (before any compression), or -1 if it is not stored
+     */
+    public long getFilesize(String filename) {
+        String hash = this.blobStore.getHash(filename);
+        if (hash == null) {
+            return -1;
+        }
+        File f = this.blobStore.getBlob(hash);
+        StoredFileFormat format = this.blobStore.getFormat(hash);
+        if (format != null && f.exists()) {
+            return format.size;
+        } else if (f.exists()) {
+            return f.length();
         } else {
             return -1;
         }
@@ -121,6 +532,25 @@ public class Dstore {
      *  args[1] = cPort           -> port for controller
      *  args[2] = timeout         -> How long connection held with client/DStore
      *  args[3] = fileFolder      -> Path to store files
+     *
+     *  Optional system properties:
+     *  -Ddfs.threads=virtual     -> run connection handlers on virtual threads (see ConnectionExecutor)
+     *  -Ddstore.inventory.changes=N -> number of recent file changes kept for LIST_SINCE (default: 100000)
+     *  -Ddstore.transfer.parallel=N  -> rebalance transfers sent at once (default: 8)
+     *  -Ddstore.transfer.perDstore=N -> rebalance transfers sent at once to a single Dstore (default: 2)
+     *  -Ddstore.transfer.bytesPerSecond=N -> cap on bytes per second sent when rebalancing (default: 0, no cap)
+     *  -Ddstore.scrub.period=MS      -> time between checks of every stored file against its checksum (default:
+     *                                   3600000, 0 to never check)
+     *  -Ddstore.scrub.bytesPerSecond=N -> cap on bytes per second read when checking (default: 8388608, 0 for no cap)
+     *  -Ddstore.compress=CODEC       -> compress files worth compressing as they arrive: none or deflate (default:
+     *                                   none; see FileCompressor)
+     *  -Ddstore.compress.reportPeriod=MS -> time between prints of how well files have compressed (default: 60000,
+     *                                   0 to never print)
+     *  -Ddstore.cache.bytes=N        -> most bytes of often loaded files kept in memory (default: 67108864, 0 for no
+     *                                   cache; see HotFileCache)
+     *  -Ddstore.cache.maxFileBytes=N -> largest file kept in memory (default: 1048576)
+     *  -Ddstore.cache.reportPeriod=MS -> time between prints of the cache's hits, misses and evictions (default:
+     *                                   60000, 0 to never print)
      */
     public static void main(String[] args) {
         if (args.length != 4) {
@@ -1,10 +1,20 @@
 package DStore;
 
-import java.io.IOException;
+import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
 
 import Tokenizer.*;
 import Loggers.DstoreLogger;
@@ -13,6 +23,12 @@ import ConnectionParent.ConnectionParent;
 
 public class DstoreClientConnection extends ConnectionParent {
 
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Returned by the methods sending a file to the client in place of the number of bytes sent: the file is not
+    // stored (or the offset is past its end), or it could not be sent (usually as the client went away)
+    private static final long NOT_STORED = -1;
+    private static final long NOT_SENT = -2;
+
     private final Dstore dStore;
     private final int timeout;
 
@@ -57,32 +73,60 @@ public class DstoreClientConnection extends ConnectionParent {
         if (reqToken instanceof StoreToken) {
             //Sends acknowledgement to client
             this.sendToClient(Protocol.ACK_TOKEN, reqToken);
-            //Gets file content from client
-            byte[] fileContent = getFileContentFromSocket(((StoreToken)reqToken).filesize);
-            //Writes data to file
-            if (fileContent != null) {
-                this.dStore.storeToFile(((StoreToken)reqToken).filename, fileContent);
-                //Once file is stored, send acknowledgement to controller
-                this.dStore.sendAckToController(Protocol.STORE_ACK_TOKEN + " " + ((StoreToken)reqToken).filename);
+            //Gets file content from client and writes it to file
+            long checksum = this.receiveFile(((StoreToken)reqToken).filename, ((StoreToken)reqToken).filesize,
+                    Protocol.NO_CHECKSUM, null);
+            if (checksum != Protocol.NO_CHECKSUM) {
+                //Once file is stored, send acknowledgement to controller, with the checksum it was stored with
+                this.sendStoreAck(((StoreToken)reqToken).filename, checksum);
             }
 
+        } else if (reqToken instanceof StoreChainToken) {
+            this.handleStoreChain((StoreChainToken) reqToken);
+
         } else if (reqToken instanceof LoadDataToken) {
-            //Gets data from file on Dstore and if the data retrieved successfully, data sent to client
-            //If not retrieved succesfully, returns true which closes the socket with client
-            String filename = ((LoadDataToken)reqToken).filename;
-            byte[] fileData = this.dStore.loadDataFromFile(filename);
-            if (fileData == null) {
-                return true;
-            } else {
-                this.outData.write(fileData);
-                this.outData.flush();
-            }
+            //Sends the file on Dstore to the client
+            //If it cannot be sent, returns true which closes the socket with client
+            long startNanos = System.nanoTime();
+            LoadDataToken t = (LoadDataToken) reqToken;
+            long sent = this.sendFileToClient(t.filename, 0, Long.MAX_VALUE);
+            return t.ifReported ? this.loadDone(sent, startNanos) : sent < 0;
+        } else if (reqToken instanceof LoadDataRangeToken) {
+            //Sends just the part of the file asked for
+            long startNanos = System.nanoTime();
+            LoadDataRangeToken t = (LoadDataRangeToken) reqToken;
+            return this.loadDone(this.sendFileToClient(t.filename, t.offset, t.length), startNanos);
+        } else if (reqToken instanceof LoadDataCompressedToken) {
+            //Sends the file as it is stored, compressed or not, for the client to decompress
+            long startNanos = System.nanoTime();
+            return this.loadDone(this.sendStoredFileToClient(((LoadDataCompressedToken) reqToken).filename),
+                    startNanos);
         } else if (reqToken instanceof RebalanceStoreToken) {
             this.handleRebalance(reqToken);
         }
         return false;
     }
 
+    /**
+     * Method which tells the Controller how a load went, so it can send clients to the Dstores serving files fastest.
+     * A load which could not be sent is not reported, as the client usually went away (the slower Dstore of a hedged
+     * load is cancelled by the client), which says nothing about this Dstore
+     * @param sent : number of bytes sent, NOT_STORED or NOT_SENT
+     * @param startNanos : when the request was received
+     * @return true if the connection with the client should be closed, as the file was not sent
+     */
+    private boolean loadDone(long sent, long startNanos) {
+        if (sent >= 0) {
+            this.dStore.sendAckToController(Protocol.LOAD_SERVED_TOKEN + " " + sent + " "
+                    + (System.nanoTime() - startNanos));
+            return false;
+        }
+        if (sent == NOT_STORED) {
+            this.dStore.sendAckToController(Protocol.LOAD_FAILED_TOKEN);
+        }
+        return true;
+    }
+
     private void sendToClient(String message, Token reqReceivedToken) {
         if (reqReceivedToken instanceof StoreToken) {
         }
@@ -92,36 +136,352 @@ public class DstoreClientConnection extends ConnectionParent {
     }
 
 
-    private byte[] getFileContentFromSocket(int filesize) {
+    private void sendStoreAck(String filename, long checksum) {
+        this.dStore.sendAckToController(Protocol.STORE_ACK_TOKEN + " " + filename + " " + Tokenizer.checksumToString(checksum));
+    }
+
+    /**
+     * Method which receives a file's contents from the socket and stores it.
+     * The contents are copied a chunk at a time into a temporary file in the Dstore's incoming folder, so the memory
+     * used does not grow with the size of the file or with the number of files arriving at once. Once the whole file
+     * has arrived it is moved into the file folder in one step, so a file in the file folder is always complete.
+     * The file's CRC32C and the hash it is stored by (see BlobStore) are worked out from each chunk as it arrives, so
+     * the file is never read back to get them. The file is compressed on its way to disk if the Dstore compresses
+     * files (see FileCompressor)
+     * @param filename : file being stored
+     * @param filesize : number of bytes to receive
+     * @param expectedChecksum : checksum the file should have (the file is not stored if it does not), or
+     *                         Protocol.NO_CHECKSUM
+     * @param next : socket to pass each chunk on to as soon as it arrives (see handleStoreChain), or null
+     * @return the file's checksum if the whole file arrived and was stored, otherwise Protocol.NO_CHECKSUM
+     */
+    private long receiveFile(String filename, long filesize, long expectedChecksum, Socket next) {
+        OutputStream nextOutData = null;
+        if (next != null) {
+            try {
+                nextOutData = next.getOutputStream();
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Connection to Dstore (port: " + next.getPort()
+                        + ") lost before passing on " + filename + " : " + e);
+            }
+        }
+        File incoming = null;
         try {
-            //We set a timeout for just this reading in, so that if client does not send data then we can still
-            //continue
-            this.socket.setSoTimeout(this.timeout);
-            byte[] bytes = this.inData.readNBytes(filesize);
-            this.socket.setSoTimeout(0);
-            return bytes;
-        } catch (SocketException e) {
+            incoming = this.dStore.createIncomingFile(filename);
+            long remaining = filesize;
+            CRC32C crc = new CRC32C();
+            MessageDigest digest = BlobStore.newDigest();
+            FileCompressor fileOut = this.dStore.createFileWriter(incoming);
+            try (fileOut) {
+                //We set a timeout for just this reading in, so that if client does not send data then we can still
+                //continue
+                this.socket.setSoTimeout(this.timeout);
+                byte[] chunk = new byte[CHUNK_SIZE];
+                while (remaining > 0) {
+                    int read = this.inData.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    if (read == -1) {
+                        break;
+                    }
+                    remaining -= read;
+                    if (nextOutData != null) {
+                        try {
+                            nextOutData.write(chunk, 0, read);
+                        } catch (IOException e) {
+                            System.out.println("### ERROR ###   Connection to Dstore (port: " + next.getPort()
+                                    + ") lost while passing on " + filename + " : " + e);
+                            this.closeQuietly(next);
+                            nextOutData = null;
+                        }
+                    }
+                    fileOut.write(chunk, 0, read);
+                    crc.update(chunk, 0, read);
+                    digest.update(chunk, 0, read);
+                }
+                this.socket.setSoTimeout(0);
+            }
+            if (nextOutData != null) {
+                try {
+                    nextOutData.flush();
+                } catch (IOException e) {
+                    System.out.println("### ERROR ###   Connection to Dstore (port: " + next.getPort()
+                            + ") lost while passing on " + filename + " : " + e);
+                    this.closeQuietly(next);
+                }
+            }
+            if (remaining > 0) {
+                System.out.println("### ERROR ###   Connection to client lost when Dstore expecting file data");
+                return Protocol.NO_CHECKSUM;
+            }
+            if (expectedChecksum != Protocol.NO_CHECKSUM && crc.getValue() != expectedChecksum) {
+                System.out.println("### ERROR ###   " + filename + " arrived at Dstore (port:" + this.socket.getLocalPort()
+                        + ") with checksum " + Tokenizer.checksumToString(crc.getValue()) + ", expected "
+                        + Tokenizer.checksumToString(expectedChecksum));
+                return Protocol.NO_CHECKSUM;
+            }
+            this.dStore.commitIncomingFile(incoming, filename, crc.getValue(), BlobStore.toHash(digest),
+                    fileOut.getFormat());
+            incoming = null;
+            return crc.getValue();
+        } catch (SocketTimeoutException e) {
             System.out.println("--- TIMEOUT ---   Dstore (port:" + this.socket.getLocalPort() + ") timed out waiting" +
                     " for file data from client (port:" + this.socket.getPort());
-            return null;
+            return Protocol.NO_CHECKSUM;
         } catch (IOException e) {
-            System.out.println("### ERROR ###   Connection to client lost when Dstore expecting file data");
-            return null;
+            System.out.println("### ERROR ###   Could not store " + filename + " on Dstore (port:"
+                    + this.socket.getLocalPort() + ") : " + e);
+            return Protocol.NO_CHECKSUM;
+        } finally {
+            if (incoming != null) {
+                incoming.delete();
+            }
         }
     }
 
-    private void handleRebalance(Token reqToken) throws IOException {
+    /**
+     * Method which sends a stored file's contents, or part of them, to the client.
+     * A file loaded often enough to be in the Dstore's cache is sent from memory (see sendBufferToClient).
+     * A compressed file is decompressed as it is sent, a chunk at a time, and a part of one is found by decompressing
+     * the bytes before it. Other files are sent straight from disk (see sendBytesToClient)
+     * @param filename : file to send
+     * @param offset : offset of the first byte to send
+     * @param length : number of bytes to send (fewer are sent if the file ends first)
+     * @return number of bytes sent, NOT_STORED if the file does not exist or the offset is past its end, or NOT_SENT
+     */
+    private long sendFileToClient(String filename, long offset, long length) {
+        ByteBuffer cached = this.dStore.getCachedContents(filename);
+        if (cached != null) {
+            return this.sendBufferToClient(filename, cached, offset, length);
+        }
+        StoredFileFormat format = this.dStore.getFormat(filename);
+        if (format == null) {
+            return this.sendBytesToClient(filename, offset, length);
+        }
+        if (offset > format.size) {
+            return NOT_STORED;
+        }
+        try (InputStream fileIn = this.dStore.openStoredFile(filename)) {
+            fileIn.skipNBytes(offset);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            long toSend = Math.min(length, format.size - offset);
+            long remaining = toSend;
+            while (remaining > 0) {
+                int read = fileIn.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read == -1) {
+                    break;
+                }
+                this.outData.write(chunk, 0, read);
+                remaining -= read;
+            }
+            this.outData.flush();
+            return toSend - remaining;
+        } catch (NoSuchFileException e) {
+            return NOT_STORED;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not send " + filename + " to client (port:" + this.socket.getPort()
+                    + ") : " + e);
+            return NOT_SENT;
+        }
+    }
+
+    /**
+     * Method which sends a file's contents, or part of them, from a buffer holding them all. The buffer is written
+     * straight to the socket channel, so contents cached outside the heap (see HotFileCache) are not copied into it.
+     * Sockets without a channel are sent the contents through a stream, a buffer at a time
+     * @param filename : file being sent
+     * @param contents : the file's whole contents, from position 0 to the limit
+     * @param offset : offset of the first byte to send
+     * @param length : number of bytes to send (fewer are sent if the file ends first)
+     * @return number of bytes sent, NOT_STORED if the offset is past the end of the file, or NOT_SENT
+     */
+    private long sendBufferToClient(String filename, ByteBuffer contents, long offset, long length) {
+        int filesize = contents.limit();
+        if (offset > filesize) {
+            return NOT_STORED;
+        }
+        contents.position((int) offset);
+        contents.limit((int) (offset + Math.min(length, filesize - offset)));
+        long toSend = contents.remaining();
         try {
-            RebalanceStoreToken t = ((RebalanceStoreToken) reqToken);
-            this.outText.println(Protocol.ACK_TOKEN);
-            this.outText.flush();
-            this.socket.setSoTimeout(this.timeout);
-            byte[] fileData = this.inData.readNBytes(t.filesize);
-            this.socket.setSoTimeout(0);
-            this.dStore.storeToFile(t.filename, fileData);
-        } catch (SocketTimeoutException timeout) {
-            System.out.println("--- TIMEOUT ---   Dstore timed out waiting for file_content from other Dstore during rebalance");
+            SocketChannel socketChannel = this.socket.getChannel();
+            if (socketChannel != null) {
+                while (contents.hasRemaining()) {
+                    socketChannel.write(contents);
+                }
+            } else {
+                byte[] chunk = new byte[CHUNK_SIZE];
+                while (contents.hasRemaining()) {
+                    int read = Math.min(chunk.length, contents.remaining());
+                    contents.get(chunk, 0, read);
+                    this.outData.write(chunk, 0, read);
+                }
+                this.outData.flush();
+            }
+            return toSend;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not send " + filename + " to client (port:" + this.socket.getPort()
+                    + ") : " + e);
+            return NOT_SENT;
+        }
+    }
+
+    /**
+     * Method which sends a stored file exactly as it is on disk, compressed or not, for the client to decompress.
+     * It is preceded by a COMPRESSED codec stored_size line, so the client knows how to read it. Compressed bytes are
+     * sent straight from disk just as an uncompressed file is, so they cost neither decompressing nor the bandwidth
+     * of the whole file
+     * @return number of bytes sent (as stored), NOT_STORED if the file does not exist, or NOT_SENT
+     */
+    private long sendStoredFileToClient(String filename) {
+        File stored = this.dStore.getStoredFile(filename);
+        if (stored == null || !stored.exists()) {
+            return NOT_STORED;
+        }
+        StoredFileFormat format = this.dStore.getFormat(filename);
+        long storedSize = stored.length();
+        this.sendToClient(Protocol.COMPRESSED_TOKEN + " " + (format == null ? Protocol.CODEC_NONE : format.codec)
+                + " " + storedSize, null);
+        return this.sendBytesToClient(filename, 0, storedSize);
+    }
+
+    /**
+     * Method which sends a stored file's bytes as they are on disk, or part of them, to the client.
+     * The file is handed from the file channel to the socket channel with transferTo, so the kernel copies it
+     * straight from the page cache to the socket, and its contents never enter the Java heap. Each call may send
+     * only part of the file, so it is called until the whole file has been sent. Sockets without a channel are sent
+     * the file through a stream, a buffer at a time. A part of the file is read from its position in the file, so
+     * the bytes before it are never read
+     * @param filename : file to send
+     * @param offset : offset of the first byte to send
+     * @param length : number of bytes to send (fewer are sent if the file ends first)
+     * @return number of bytes sent, NOT_STORED if the file does not exist or the offset is past its end, or NOT_SENT
+     */
+    private long sendBytesToClient(String filename, long offset, long length) {
+        File stored = this.dStore.getStoredFile(filename);
+        if (stored == null) {
+            return NOT_STORED;
+        }
+        try (FileChannel fileChannel = FileChannel.open(stored.toPath(), StandardOpenOption.READ)) {
+            long filesize = fileChannel.size();
+            if (offset > filesize) {
+                return NOT_STORED;
+            }
+            long end = offset + Math.min(length, filesize - offset);
+            SocketChannel socketChannel = this.socket.getChannel();
+            if (socketChannel != null) {
+                long position = offset;
+                while (position < end) {
+                    position += fileChannel.transferTo(position, end - position, socketChannel);
+                }
+            } else {
+                InputStream fileIn = Channels.newInputStream(fileChannel.position(offset));
+                byte[] chunk = new byte[CHUNK_SIZE];
+                long remaining = end - offset;
+                while (remaining > 0) {
+                    int read = fileIn.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    if (read == -1) {
+                        break;
+                    }
+                    this.outData.write(chunk, 0, read);
+                    remaining -= read;
+                }
+                this.outData.flush();
+            }
+            return end - offset;
+        } catch (NoSuchFileException e) {
+            return NOT_STORED;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not send " + filename + " to client (port:" + this.socket.getPort()
+                    + ") : " + e);
+            return NOT_SENT;
+        }
+    }
+
+    /**
+     * Method to store a file as one link of a chain of Dstores.
+     * The next Dstore in the chain is connected to and has acknowledged before this Dstore acknowledges, so the whole
+     * chain is ready before the client starts sending. Each chunk of the file is then written to disk and passed on
+     * to the next Dstore as soon as it arrives, rather than after the whole file has been received, so the file
+     * reaches the last Dstore only a chunk behind the first. If the next Dstore cannot be reached, or fails part way
+     * through, this Dstore still stores the file; the Dstores after it never send their STORE_ACK, and the Controller
+     * times the store out as it would if the client could not reach them
+     * @param t : STORE_CHAIN request, with the ports of the Dstores after this one
+     */
+    private void handleStoreChain(StoreChainToken t) throws IOException {
+        Socket next = null;
+        if (!t.chain.isEmpty()) {
+            try {
+                next = this.connectToNextInChain(t);
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Dstore (port: " + this.socket.getLocalPort() + ") could not pass "
+                        + t.filename + " on to Dstore (port: " + t.chain.get(0) + ") : " + e);
+            }
         }
+        this.sendToClient(Protocol.ACK_TOKEN, t);
+        long checksum = this.receiveFile(t.filename, t.filesize, Protocol.NO_CHECKSUM, next);
+        this.closeQuietly(next);
+        if (checksum != Protocol.NO_CHECKSUM) {
+            this.sendStoreAck(t.filename, checksum);
+        }
+    }
+
+    /**
+     * Connects to the next Dstore in a chain, and sends it the rest of the chain
+     * @return socket to the next Dstore, once it has acknowledged
+     */
+    private Socket connectToNextInChain(StoreChainToken t) throws IOException {
+        Socket next = new Socket(InetAddress.getLocalHost(), t.chain.get(0));
+        try {
+            next.setSoTimeout(this.timeout);
+            PrintWriter nextOutText = new PrintWriter(new BufferedOutputStream(next.getOutputStream()));
+            BufferedReader nextInText = new BufferedReader(new InputStreamReader(next.getInputStream()));
+            StringBuilder message = new StringBuilder(Protocol.STORE_CHAIN_TOKEN);
+            message.append(" ").append(t.filename).append(" ").append(t.filesize);
+            List<Integer> rest = t.chain.subList(1, t.chain.size());
+            for (int port : rest) {
+                message.append(" ").append(port);
+            }
+            nextOutText.println(message);
+            nextOutText.flush();
+            DstoreLogger.getInstance().messageSent(next, message.toString());
+
+            String reply = nextInText.readLine();
+            if (reply == null) {
+                throw new IOException("connection closed before ACK");
+            }
+            DstoreLogger.getInstance().messageReceived(next, reply);
+            if (!(Tokenizer.getToken(reply) instanceof AckToken)) {
+                throw new IOException("expected ACK, received " + reply);
+            }
+            return next;
+        } catch (IOException e) {
+            next.close();
+            throw e;
+        }
+    }
+
+    private void closeQuietly(Socket s) {
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException e) {
+                //Already closed
+            }
+        }
+    }
+
+    private void handleRebalance(Token reqToken) throws IOException {
+        RebalanceStoreToken t = ((RebalanceStoreToken) reqToken);
+        //A file whose contents are already held under another name is stored under its new name too, and not sent.
+        //Only a file with a checksum is, so the checksum recorded for it is still the one it was stored with
+        if (t.hash != null && t.checksum != Protocol.NO_CHECKSUM
+                && this.dStore.storeFromHeldContents(t.filename, t.hash, t.checksum)) {
+            this.sendToClient(Protocol.CONTENT_PRESENT_TOKEN, t);
+            return;
+        }
+        this.outText.println(Protocol.ACK_TOKEN);
+        this.outText.flush();
+        //The file is only kept if it matches the sender's checksum, so a copy which rotted on the sender is not spread
+        this.receiveFile(t.filename, t.filesize, t.checksum, null);
     }
 
 }
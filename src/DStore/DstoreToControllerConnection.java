@@ -1,11 +1,13 @@
 package DStore;
 
 import java.io.*;
-import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import Loggers.*;
+import ConnectionParent.ConnectionExecutor;
 import ConnectionParent.ConnectionParent;
 import Tokenizer.*;
 
@@ -25,13 +27,13 @@ public class DstoreToControllerConnection extends ConnectionParent{
 
     /**
      * Method which listens for incoming requests from controller threads
-     * We put this method in a thread instead of making the whole class a thread because
+     * We run this method as a separate task instead of making the whole class a thread because
      * I want to be able to access the connection from Dstore to Controller outside the thread
      * I.e. I want to access the PrintWriter to send acknowledgements to controller
      * If i put the whole class in a thread, I would lose access to the streams
      */
     public void startListening() {
-        new Thread(() -> {
+        ConnectionExecutor.execute(() -> {
             try {
                 while (true) {
                     String req = this.inText.readLine();
@@ -39,13 +41,13 @@ public class DstoreToControllerConnection extends ConnectionParent{
                         DstoreLogger.getInstance().messageReceived(this.socket, req);
                         Token reqToken = Tokenizer.getToken(req);
                         if (reqToken != null) {
-                            //Have to put handle request in new thread since many controller threads are trying to
+                            //Have to put handle request in a new task since many controller threads are trying to
                             //communicate with this one connection, so we want to handle all their requests
                             //at the same time. This is different to the client connection, as there is only one client
                             //thread per connection there, so we can deal with requests sequentially
-                            new Thread(() -> {
+                            ConnectionExecutor.execute(() -> {
                                 this.handleRequest(reqToken);
-                            }).start();
+                            });
                         } else {
                             System.out.println("### ERROR ###   Malformed input received on port " + this.socket.getLocalPort() +
                                     " from port " + this.socket.getPort());
@@ -58,7 +60,7 @@ public class DstoreToControllerConnection extends ConnectionParent{
                 System.out.println("### ERROR ###  Dstore lost connection to controller");
                 this.dstore.end();
             }
-        }).start();
+        });
     }
 
     private void handleRequest(Token reqToken) {
@@ -77,17 +79,39 @@ public class DstoreToControllerConnection extends ConnectionParent{
                 message.append(" ").append(f);
             }
             this.sendMessageToController(message.toString());
+        } else if (reqToken instanceof ListSinceToken) {
+            ListSinceToken t = (ListSinceToken) reqToken;
+            this.sendMessageToController(this.dstore.getInventoryMessage(t.epoch, t.seq));
         } else if (reqToken instanceof RebalanceToken) {
             this.handleRebalance((RebalanceToken) reqToken);
         }
     }
 
     private void handleRebalance(RebalanceToken rebalanceToken) {
-        this.handleSendingToDstores(rebalanceToken.filesToSend);
+        LinkedHashMap<String, ArrayList<Integer>> failed = this.dstore.getTransferEngine().sendAll(rebalanceToken.filesToSend);
         for (String fileToRemove : rebalanceToken.filesToRemove) {
-            this.dstore.removeFile(fileToRemove);
+            //A file being moved is kept if it could not be sent everywhere, so no copy of it is lost
+            if (!failed.containsKey(fileToRemove)) {
+                this.dstore.removeFile(fileToRemove);
+            }
+        }
+        //Rebuilds any lost erasure coded fragments this Dstore was chosen for. One that cannot be rebuilt is left out
+        //of this Dstore's next file list, so the next rebalance tries again
+        for (FileToRepair fileToRepair : rebalanceToken.filesToRepair) {
+            this.dstore.getFragmentRepair().repair(fileToRepair);
+        }
+        //Reports the files that failed in the same form as the files to send in the REBALANCE command
+        StringBuilder message = new StringBuilder(Protocol.REBALANCE_COMPLETE_TOKEN);
+        if (!failed.isEmpty()) {
+            message.append(" ").append(failed.size());
+            for (Map.Entry<String, ArrayList<Integer>> file : failed.entrySet()) {
+                message.append(" ").append(file.getKey()).append(" ").append(file.getValue().size());
+                for (Integer port : file.getValue()) {
+                    message.append(" ").append(port);
+                }
+            }
         }
-        this.sendMessageToController(Protocol.REBALANCE_COMPLETE_TOKEN);
+        this.sendMessageToController(message.toString());
     }
 
     public void sendMessageToController(String msg) {
@@ -96,43 +120,4 @@ public class DstoreToControllerConnection extends ConnectionParent{
         DstoreLogger.getInstance().messageSent(this.socket, msg);
     }
 
-    private void handleSendingToDstores(ArrayList<FileToSend> filesToSend) {
-        try {
-            for (FileToSend file : filesToSend) {
-                for (int port : file.dStores) {
-                    Socket s = new Socket(InetAddress.getLocalHost(), port);
-                    PrintWriter storeOutText = new PrintWriter(new BufferedOutputStream(s.getOutputStream()));
-                    BufferedReader storeInText = new BufferedReader(new InputStreamReader(s.getInputStream()));
-                    OutputStream storeOutData = s.getOutputStream();
-
-                    int filesize = this.dstore.getFilesize(file.filename);
-                    if (filesize != -1) {
-
-                        String rebalanceStoreMessage = Protocol.REBALANCE_STORE_TOKEN + " " + file.filename + " " + filesize;
-                        storeOutText.println(rebalanceStoreMessage);
-                        storeOutText.flush();
-                        DstoreLogger.getInstance().messageSent(s, rebalanceStoreMessage);
-
-                        String reply = storeInText.readLine();
-                        if (reply != null) {
-                            DstoreLogger.getInstance().messageReceived(s, reply);
-                            Token token = Tokenizer.getToken(reply);
-
-                            if (token instanceof AckToken) {
-                                byte[] fileData = this.dstore.loadDataFromFile(file.filename);
-                                if (fileData != null) {
-                                    storeOutData.write(fileData);
-                                    storeOutData.flush();
-                                }
-                            }
-                        }
-                    }
-                    s.close();
-                }
-            }
-        } catch (IOException e) {
-            System.out.println("### ERROR ###   Could not connect to Dstore when rebalancing");
-        }
-    }
-
 }
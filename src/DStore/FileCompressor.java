@@ -0,0 +1,142 @@
+package DStore;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Stream which writes a file arriving at a Dstore to disk, compressing it on the way if it is worth compressing.
+ * The first chunk of the file is held back and compressed on its own as a sample. If that does not save at least a
+ * tenth of its size (the file is already compressed, or is random), the whole file is written as it is, so no time is
+ * spent compressing files that will not shrink. Otherwise the file is compressed as it streams through, a chunk at a
+ * time, so it is never held in memory whole.
+ */
+public class FileCompressor extends OutputStream {
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    // Share of the sample compression must save for the file to be compressed
+    private static final double MIN_SAVING = 0.1;
+
+    private final CountingOutputStream file;
+    // Codec to compress with, or null to write the file as it is
+    private String codec;
+    // The first chunk of the file, until it has been decided whether to compress it
+    private byte[] sample;
+    private int sampled;
+    // Stream the file is written through once decided (null until then)
+    private OutputStream out;
+    private Deflater deflater;
+    private long size;
+
+    /**
+     * Constructor
+     * @param file : stream to the file on disk
+     * @param codec : codec to compress with (Protocol.CODEC_DEFLATE), or null to never compress
+     */
+    public FileCompressor(OutputStream file, String codec) {
+        this.file = new CountingOutputStream(file);
+        this.codec = codec;
+        this.sample = codec == null ? null : new byte[SAMPLE_SIZE];
+        this.out = codec == null ? this.file : null;
+        this.size = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        this.write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        this.size += len;
+        if (this.out == null) {
+            int n = Math.min(len, SAMPLE_SIZE - this.sampled);
+            System.arraycopy(b, off, this.sample, this.sampled, n);
+            this.sampled += n;
+            off += n;
+            len -= n;
+            if (this.sampled < SAMPLE_SIZE) {
+                return;
+            }
+            this.decide();
+        }
+        this.out.write(b, off, len);
+    }
+
+    /**
+     * Decides from the sample whether to compress the file, and writes the sample out
+     */
+    private void decide() throws IOException {
+        if (this.compressedSize(this.sample, this.sampled) <= this.sampled * (1 - MIN_SAVING)) {
+            this.deflater = new Deflater(Deflater.BEST_SPEED);
+            this.out = new DeflaterOutputStream(this.file, this.deflater, SAMPLE_SIZE);
+        } else {
+            this.codec = null;
+            this.out = this.file;
+        }
+        this.out.write(this.sample, 0, this.sampled);
+        this.sample = null;
+    }
+
+    private long compressedSize(byte[] data, int length) {
+        Deflater sampler = new Deflater(Deflater.BEST_SPEED);
+        try {
+            sampler.setInput(data, 0, length);
+            sampler.finish();
+            byte[] discard = new byte[SAMPLE_SIZE];
+            while (!sampler.finished()) {
+                sampler.deflate(discard);
+            }
+            return sampler.getBytesWritten();
+        } finally {
+            sampler.end();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.out == null) {
+                this.decide();
+            }
+            this.out.close();
+        } finally {
+            if (this.deflater != null) {
+                this.deflater.end();
+            }
+        }
+    }
+
+    /**
+     * @return how the file was written, or null if it was written as it arrived. Only known once closed
+     */
+    public StoredFileFormat getFormat() {
+        return this.codec == null ? null : new StoredFileFormat(this.codec, this.size, this.file.count);
+    }
+
+    /**
+     * Stream which counts the bytes written to the file
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long count;
+
+        private CountingOutputStream(OutputStream out) {
+            super(out);
+            this.count = 0;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.out.write(b);
+            this.count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+}
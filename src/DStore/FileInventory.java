@@ -0,0 +1,113 @@
+package DStore;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import Loggers.Protocol;
+
+/**
+ * Class which versions the set of files held by a Dstore, so the Controller can ask for what has changed since it
+ * last looked rather than for the whole file list every rebalance.
+ * The version is an (epoch, seq) pair. The epoch is picked at random when the Dstore starts, as files may have been
+ * changed while it was not running. seq goes up by one for every file stored or removed. The most recent changes are
+ * kept in a bounded log; asking for changes from a version older than the log (or from another epoch) gets the full
+ * file list instead.
+ */
+public class FileInventory {
+
+    /**
+     * Class for a single change to the files held
+     */
+    private static class Change {
+        private final long seq;
+        private final String filename;
+        private final boolean ifAdded;
+
+        private Change(long seq, String filename, boolean ifAdded) {
+            this.seq = seq;
+            this.filename = filename;
+            this.ifAdded = ifAdded;
+        }
+    }
+
+    private final long epoch;
+    private final int maxChanges;
+    private final ArrayDeque<Change> changes;
+    private long seq;
+    // Oldest version a delta can be given from (the version just before the first change in the log)
+    private long oldestSeq;
+
+    /**
+     * Constructor
+     * @param maxChanges : number of most recent changes to keep
+     */
+    public FileInventory(int maxChanges) {
+        this.epoch = ThreadLocalRandom.current().nextLong(1, Long.MAX_VALUE);
+        this.maxChanges = maxChanges;
+        this.changes = new ArrayDeque<>();
+        this.seq = 0;
+        this.oldestSeq = 0;
+    }
+
+    public long getEpoch() {
+        return this.epoch;
+    }
+
+    public synchronized long getSeq() {
+        return this.seq;
+    }
+
+    /**
+     * Called once a file has been written to the Dstore's folder
+     */
+    public void fileAdded(String filename) {
+        this.record(filename, true);
+    }
+
+    /**
+     * Called once a file has been deleted from the Dstore's folder
+     */
+    public void fileRemoved(String filename) {
+        this.record(filename, false);
+    }
+
+    private synchronized void record(String filename, boolean ifAdded) {
+        this.seq += 1;
+        this.changes.addLast(new Change(this.seq, filename, ifAdded));
+        if (this.changes.size() > this.maxChanges) {
+            this.oldestSeq = this.changes.removeFirst().seq;
+        }
+    }
+
+    /**
+     * Method to build the reply to a LIST_SINCE request, if the changes asked for are still in the log.
+     * Only the last change to each file is included, as that alone decides if the file is held
+     * @param epoch : epoch of the version the Controller has
+     * @param since : seq of the version the Controller has
+     * @return LIST_DELTA message, or null if the full file list has to be sent instead
+     */
+    public synchronized String getDeltaMessage(long epoch, long since) {
+        if (epoch != this.epoch || since < this.oldestSeq || since > this.seq) {
+            return null;
+        }
+        //Walks back from the newest change, so the first change seen for a file is its last
+        LinkedHashMap<String, Boolean> lastChanges = new LinkedHashMap<>();
+        Iterator<Change> newestFirst = this.changes.descendingIterator();
+        while (newestFirst.hasNext()) {
+            Change change = newestFirst.next();
+            if (change.seq <= since) {
+                break;
+            }
+            lastChanges.putIfAbsent(change.filename, change.ifAdded);
+        }
+        StringBuilder message = new StringBuilder(Protocol.LIST_DELTA_TOKEN);
+        message.append(" ").append(this.epoch).append(" ").append(since).append(" ").append(this.seq);
+        for (Map.Entry<String, Boolean> change : lastChanges.entrySet()) {
+            message.append(" ").append(change.getValue() ? "+" : "-").append(change.getKey());
+        }
+        return message.toString();
+    }
+}
@@ -0,0 +1,155 @@
+package DStore;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.TreeSet;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import Erasure.FragmentHeader;
+import Erasure.FragmentSet;
+import Loggers.DstoreLogger;
+import Loggers.Protocol;
+import Tokenizer.FileToRepair;
+
+/**
+ * Class which rebuilds a fragment of an erasure coded file that has been lost, when told to by a rebalance.
+ * The Dstores storing the file's other fragments are all asked for their fragment (with REPAIR_LOAD_DATA, a LOAD_DATA
+ * which is not reported to the Controller as a client's load), and their headers show which fragments are missing.
+ * The Controller gives each Dstore rebuilding a fragment of the file a different slot among the missing fragments, so
+ * no two rebuild the same one. The file is then read a stripe at a time from k of the fragments, and the missing chunk
+ * of each stripe worked out and written to the new fragment, so neither the file nor the fragment is ever held in
+ * memory whole. The rebuilt file is checked against the checksum in the fragments' trailer before the new fragment is
+ * kept.
+ */
+public class FragmentRepair {
+
+    private final Dstore dstore;
+    private final int timeout;
+
+    /**
+     * Constructor
+     * @param dstore : Dstore storing the rebuilt fragments
+     * @param timeout : time to wait for another Dstore to connect and send data (milliseconds)
+     */
+    public FragmentRepair(Dstore dstore, int timeout) {
+        this.dstore = dstore;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Rebuilds a single missing fragment
+     * @param file : the file, slot and Dstores to rebuild it from
+     * @return true if the fragment was rebuilt and stored
+     */
+    public boolean repair(FileToRepair file) {
+        ArrayList<Socket> sockets = new ArrayList<>();
+        File incoming = null;
+        try {
+            //Reads the header of every other fragment, to find which are missing
+            ArrayList<FragmentHeader> headers = new ArrayList<>();
+            ArrayList<InputStream> streams = new ArrayList<>();
+            for (Integer port : file.dStores) {
+                try {
+                    Socket s = new Socket(InetAddress.getLocalHost(), port);
+                    sockets.add(s);
+                    s.setSoTimeout(this.timeout);
+                    String message = Protocol.REPAIR_LOAD_DATA_TOKEN + " " + file.filename;
+                    PrintWriter out = new PrintWriter(new BufferedOutputStream(s.getOutputStream()));
+                    out.println(message);
+                    out.flush();
+                    DstoreLogger.getInstance().messageSent(s, message);
+                    InputStream in = new BufferedInputStream(s.getInputStream());
+                    headers.add(FragmentHeader.read(in));
+                    streams.add(in);
+                } catch (IOException e) {
+                    System.out.println("### ERROR ###   Could not read fragment of " + file.filename + " from Dstore (port: "
+                            + port + ") : " + e);
+                }
+            }
+            if (headers.isEmpty()) {
+                throw new IOException("no fragments could be read");
+            }
+            FragmentHeader first = headers.get(0);
+            TreeSet<Integer> missing = new TreeSet<>();
+            for (int i = 0; i < first.dataFragments + first.parityFragments; i++) {
+                missing.add(i);
+            }
+            for (FragmentHeader header : headers) {
+                missing.remove(header.index);
+            }
+            if (file.slot >= missing.size()) {
+                throw new IOException("only " + missing.size() + " fragments missing");
+            }
+            int index = new ArrayList<>(missing).get(file.slot);
+
+            FragmentSet fragments = new FragmentSet();
+            for (int i = 0; i < headers.size() && !fragments.isComplete(); i++) {
+                fragments.add(headers.get(i), streams.get(i));
+            }
+            if (!fragments.isComplete()) {
+                throw new IOException("fewer than " + first.dataFragments + " different fragments could be read");
+            }
+
+            incoming = this.dstore.createIncomingFile(file.filename);
+            CRC32C fragmentCrc = new CRC32C();
+            MessageDigest digest = BlobStore.newDigest();
+            try (OutputStream out = new DigestOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(incoming)), fragmentCrc), digest)) {
+                this.rebuild(fragments, index, out);
+            }
+            this.dstore.commitIncomingFile(incoming, file.filename, fragmentCrc.getValue(), BlobStore.toHash(digest));
+            System.out.println("--- REPAIR ---   Rebuilt fragment " + index + " of " + file.filename);
+            return true;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not rebuild fragment of " + file.filename + " : " + e);
+            if (incoming != null) {
+                incoming.delete();
+            }
+            return false;
+        } finally {
+            for (Socket s : sockets) {
+                try {
+                    s.close();
+                } catch (IOException ignored) {}
+            }
+        }
+    }
+
+    /**
+     * Writes a whole fragment, working out its chunk of each stripe as the stripe is read
+     * @param fragments : k fragments of the file
+     * @param index : fragment to write
+     * @param out : stream to write it to
+     * @throws IOException if the rebuilt file does not match its checksum, or the fragments cannot be read
+     */
+    private void rebuild(FragmentSet fragments, int index, OutputStream out) throws IOException {
+        FragmentHeader header = fragments.getHeader();
+        int k = header.dataFragments;
+        int chunkSize = header.chunkSize;
+        header.withIndex(index).write(out);
+        byte[][] shards = fragments.newStripe();
+        CRC32C fileCrc = new CRC32C();
+        long remaining = header.filesize;
+        while (fragments.readStripe(shards)) {
+            for (int i = 0; i < k && remaining > 0; i++) {
+                int length = (int) Math.min(chunkSize, remaining);
+                fileCrc.update(shards[i], 0, length);
+                remaining -= length;
+            }
+            if (index >= k) {
+                fragments.getCode().encodeShard(shards, index, chunkSize);
+            }
+            out.write(shards[index], 0, chunkSize);
+        }
+        long checksum = fragments.readChecksum();
+        if (fileCrc.getValue() != checksum) {
+            throw new IOException("rebuilt file does not match its checksum");
+        }
+        out.write(FragmentHeader.trailer(checksum));
+    }
+}
@@ -0,0 +1,76 @@
+package DStore;
+
+/**
+ * Class which estimates how often each key has been used recently, in a fixed amount of memory (a count-min sketch).
+ * Each key has a counter in each of 4 rows, picked by a different hash of the key per row, and its count is the
+ * smallest of its 4 counters, so keys sharing a counter only ever make a count too high. Counters stop at 15. Once
+ * there have been 10 uses per counter in a row, every counter is halved, so keys used long ago count for less than
+ * keys used now. Not safe to share between threads without holding a lock.
+ */
+public class FrequencySketch {
+
+    private static final int ROWS = 4;
+    private static final int MAX_COUNT = 15;
+    // Odd constants the key's hash is multiplied by for each row
+    private static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+            0xD6E8FEB86659FD93L};
+
+    private final byte[][] counters;
+    private final int mask;
+    private final int resetAfter;
+    private int uses;
+
+    /**
+     * Constructor
+     * @param width : counters per row, rounded up to a power of 2 (a few times the number of keys tracked)
+     */
+    public FrequencySketch(int width) {
+        int w = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+        this.counters = new byte[ROWS][w];
+        this.mask = w - 1;
+        this.resetAfter = 10 * w;
+    }
+
+    /**
+     * Counts a use of a key
+     */
+    public void increment(Object key) {
+        int hash = key.hashCode();
+        for (int row = 0; row < ROWS; row++) {
+            int index = this.index(hash, row);
+            if (this.counters[row][index] < MAX_COUNT) {
+                this.counters[row][index] += 1;
+            }
+        }
+        this.uses += 1;
+        if (this.uses >= this.resetAfter) {
+            this.halve();
+        }
+    }
+
+    /**
+     * @return estimate of the recent uses of a key
+     */
+    public int frequency(Object key) {
+        int hash = key.hashCode();
+        int frequency = MAX_COUNT;
+        for (int row = 0; row < ROWS; row++) {
+            frequency = Math.min(frequency, this.counters[row][this.index(hash, row)]);
+        }
+        return frequency;
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash & 0xFFFFFFFFL) * SEEDS[row];
+        return (int) (h >>> 32) & this.mask;
+    }
+
+    private void halve() {
+        for (byte[] row : this.counters) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] = (byte) (row[i] >> 1);
+            }
+        }
+        this.uses /= 2;
+    }
+}
@@ -0,0 +1,309 @@
+package DStore;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Class which keeps the contents of a Dstore's most used small files in memory, so loads of them are sent without
+ * reading the disk.
+ * Contents are kept by the hash of their blob (see BlobStore), uncompressed, in direct ByteBuffers outside the Java
+ * heap, and the cache holds no more than a set number of bytes of them. As a blob's contents never change, a cached
+ * copy can never be out of date; a blob is dropped from the cache when it is deleted (by a REMOVE, a rebalance or the
+ * scrubber) only to free the memory.
+ * Which contents to keep is decided with W-TinyLFU: a FrequencySketch counts how often each blob has been loaded
+ * recently. Newly cached contents go into a small window kept in LRU order. Contents pushed out of the window are only
+ * kept on in the main part of the cache if they have been loaded more often than the contents they would push out of
+ * it, so a scan of many files loaded once each cannot push out the files loaded all the time. The main part is split
+ * into probation, for contents loaded once since they were let in, and protected, for contents loaded again since.
+ * Contents are not cached at all until they have been loaded twice, so a file loaded only once costs nothing.
+ * Whether contents will be kept is decided before they are read into memory (see reserve): only one read of a blob's
+ * contents is made at a time, contents which would be turned away straight away are never read, and the contents
+ * being read at once are no larger in all than the largest file kept, so the memory used outside the heap is never
+ * more than the cache's bytes and one largest file.
+ * Hits, misses and evictions are counted, and printed once every report period if the cache has been used.
+ */
+public class HotFileCache {
+
+    // Shares of the cache's bytes kept for the window, and for protected contents in the main part
+    private static final double WINDOW_SHARE = 0.01;
+    private static final double PROTECTED_SHARE = 0.8;
+    // Loads of a blob before it is cached
+    private static final int LOADS_TO_CACHE = 2;
+
+    /**
+     * Class for the contents of a single blob in the cache
+     */
+    private static class Entry {
+        private final String hash;
+        private final ByteBuffer contents;
+
+        private Entry(String hash, ByteBuffer contents) {
+            this.hash = hash;
+            this.contents = contents;
+        }
+
+        private int size() {
+            return this.contents.capacity();
+        }
+    }
+
+    private final long capacity;
+    private final long windowCapacity;
+    private final long protectedCapacity;
+    private final int maxFileSize;
+    private final FrequencySketch sketch;
+    // Entries of each part of the cache, least recently used first
+    private final LinkedHashMap<String, Entry> window;
+    private final LinkedHashMap<String, Entry> probation;
+    private final LinkedHashMap<String, Entry> protectedEntries;
+    // Size of the contents of each blob being read in to be cached
+    private final HashMap<String, Integer> reading;
+    private long readingSize;
+    private long windowSize;
+    private long probationSize;
+    private long protectedSize;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long lastReportedLookups;
+
+    /**
+     * Constructor
+     * @param capacity : most bytes of contents kept
+     * @param maxFileSize : largest file kept (larger ones are always read from disk)
+     */
+    public HotFileCache(long capacity, int maxFileSize) {
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, (long) (capacity * WINDOW_SHARE));
+        this.protectedCapacity = (long) ((capacity - this.windowCapacity) * PROTECTED_SHARE);
+        this.maxFileSize = (int) Math.min(maxFileSize, capacity - this.windowCapacity);
+        //Room to count as many blobs as would fit if they were 4KB each
+        this.sketch = new FrequencySketch((int) Math.min(1 << 22, capacity / 4096));
+        this.window = new LinkedHashMap<>();
+        this.probation = new LinkedHashMap<>();
+        this.protectedEntries = new LinkedHashMap<>();
+        this.reading = new HashMap<>();
+    }
+
+    /**
+     * Prints the cache's counts once every period, in the background
+     * @param period : time between reports (milliseconds)
+     */
+    public void startReporting(long period) {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "cache-report");
+            t.setDaemon(true);
+            return t;
+        });
+        executor.scheduleWithFixedDelay(this::report, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Looks up a blob's contents, counting a load of it
+     * @return a buffer of the whole contents, for this caller alone to read, or null if they are not cached
+     */
+    public synchronized ByteBuffer get(String hash) {
+        this.sketch.increment(hash);
+        Entry entry = this.window.remove(hash);
+        if (entry != null) {
+            this.window.put(hash, entry);
+        } else if ((entry = this.probation.remove(hash)) != null) {
+            //Loaded again since it was let in, so it is protected
+            this.probationSize -= entry.size();
+            this.protectedEntries.put(hash, entry);
+            this.protectedSize += entry.size();
+            this.demoteProtected();
+        } else if ((entry = this.protectedEntries.remove(hash)) != null) {
+            this.protectedEntries.put(hash, entry);
+        }
+        if (entry == null) {
+            this.misses += 1;
+            return null;
+        }
+        this.hits += 1;
+        return entry.contents.asReadOnlyBuffer();
+    }
+
+    /**
+     * Decides whether to read a blob missing from the cache into memory, to be cached. It is read if it has been
+     * loaded often enough, is not already being read, and the contents being read at once would still be no larger
+     * than the largest file kept. Contents larger than the window are pushed straight out of it into the main part
+     * when cached, so they are only read if they would be let into the main part now. Once read, the contents are
+     * given to put (or release called if they could not be read)
+     * @param size : size of the blob's contents
+     * @return true if the caller should read the contents in
+     */
+    public synchronized boolean reserve(String hash, int size) {
+        if (size > this.maxFileSize || this.reading.containsKey(hash) || this.readingSize + size > this.maxFileSize
+                || this.sketch.frequency(hash) < LOADS_TO_CACHE) {
+            return false;
+        }
+        if (size > this.windowCapacity && this.findVictims(hash, size) == null) {
+            return false;
+        }
+        this.reading.put(hash, size);
+        this.readingSize += size;
+        return true;
+    }
+
+    /**
+     * Gives up a reservation made with reserve, as the contents could not be read
+     */
+    public synchronized void release(String hash) {
+        Integer size = this.reading.remove(hash);
+        if (size != null) {
+            this.readingSize -= size;
+        }
+    }
+
+    /**
+     * @return size of the largest file kept
+     */
+    public int getMaxFileSize() {
+        return this.maxFileSize;
+    }
+
+    /**
+     * Caches a blob's contents read in after a call to reserve, in the window. Whatever no longer fits is evicted.
+     * Contents of a blob invalidated while they were being read are not cached
+     * @param contents : the whole contents, in a direct buffer no one else writes to
+     */
+    public synchronized void put(String hash, ByteBuffer contents) {
+        Integer size = this.reading.remove(hash);
+        if (size == null) {
+            return;
+        }
+        this.readingSize -= size;
+        Entry entry = new Entry(hash, contents);
+        this.window.put(hash, entry);
+        this.windowSize += entry.size();
+        this.evict();
+    }
+
+    /**
+     * Drops a blob's contents from the cache, if they are cached or being read in
+     */
+    public synchronized void invalidate(String hash) {
+        this.release(hash);
+        Entry entry;
+        if ((entry = this.window.remove(hash)) != null) {
+            this.windowSize -= entry.size();
+        } else if ((entry = this.probation.remove(hash)) != null) {
+            this.probationSize -= entry.size();
+        } else if ((entry = this.protectedEntries.remove(hash)) != null) {
+            this.protectedSize -= entry.size();
+        }
+    }
+
+    /**
+     * Moves the least recently used contents out of the window while it is too large. Each is let into the main part
+     * if there is room, or if it has been loaded more often than each of the contents that would have to be evicted
+     * from the main part to make room; otherwise it is evicted itself, and the main part is left as it is
+     */
+    private void evict() {
+        while (this.windowSize > this.windowCapacity) {
+            Entry candidate = this.pollFirst(this.window);
+            this.windowSize -= candidate.size();
+            ArrayList<Entry> victims = this.findVictims(candidate.hash, candidate.size());
+            if (victims == null) {
+                this.evictions += 1;
+                continue;
+            }
+            for (Entry victim : victims) {
+                this.invalidate(victim.hash);
+                this.evictions += 1;
+            }
+            this.probation.put(candidate.hash, candidate);
+            this.probationSize += candidate.size();
+        }
+    }
+
+    /**
+     * Finds the contents which would have to be evicted from the main part to make room for a blob's, least recently
+     * used first, probation before protected
+     * @param size : size of the blob's contents
+     * @return the contents to evict (none if there is room), or null if the blob has not been loaded more often than
+     *         each of them, so should not be let in
+     */
+    private ArrayList<Entry> findVictims(String hash, int size) {
+        ArrayList<Entry> victims = new ArrayList<>();
+        long excess = this.probationSize + this.protectedSize + size - (this.capacity - this.windowCapacity);
+        if (excess <= 0) {
+            return victims;
+        }
+        int frequency = this.sketch.frequency(hash);
+        for (LinkedHashMap<String, Entry> part : List.of(this.probation, this.protectedEntries)) {
+            for (Entry victim : part.values()) {
+                if (frequency <= this.sketch.frequency(victim.hash)) {
+                    return null;
+                }
+                victims.add(victim);
+                excess -= victim.size();
+                if (excess <= 0) {
+                    return victims;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the least recently used protected contents back to probation while there are too many
+     */
+    private void demoteProtected() {
+        while (this.protectedSize > this.protectedCapacity) {
+            Entry entry = this.pollFirst(this.protectedEntries);
+            this.protectedSize -= entry.size();
+            this.probation.put(entry.hash, entry);
+            this.probationSize += entry.size();
+        }
+    }
+
+    private Entry pollFirst(LinkedHashMap<String, Entry> part) {
+        Iterator<Entry> it = part.values().iterator();
+        Entry first = it.next();
+        it.remove();
+        return first;
+    }
+
+    public synchronized long getHits() {
+        return this.hits;
+    }
+
+    public synchronized long getMisses() {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions() {
+        return this.evictions;
+    }
+
+    /**
+     * @return bytes of contents cached
+     */
+    public synchronized long getSize() {
+        return this.windowSize + this.probationSize + this.protectedSize;
+    }
+
+    private void report() {
+        String report;
+        synchronized (this) {
+            long lookups = this.hits + this.misses;
+            if (lookups == this.lastReportedLookups) {
+                return;
+            }
+            this.lastReportedLookups = lookups;
+            report = "--- CACHE ---   " + this.hits + " hits, " + this.misses + " misses, " + this.evictions
+                    + " evictions, " + (this.window.size() + this.probation.size() + this.protectedEntries.size())
+                    + " files in " + this.getSize() + " bytes";
+        }
+        System.out.println(report);
+    }
+}
@@ -0,0 +1,154 @@
+package DStore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+import java.util.zip.ZipException;
+
+import Loggers.Protocol;
+
+/**
+ * Class which checks a Dstore's files against their checksums in the background, to find files which have rotted on
+ * disk without anything reading them.
+ * Once every period each stored file is read and its CRC32C compared with the one recorded when it was stored. The
+ * reading is capped at a number of bytes per second, so checking does not starve clients of the disk. A file which no
+ * longer matches is deleted, and all those deleted in a check are reported to the Controller together at its end
+ * (see Dstore.fileCorrupt and Dstore.reportCorrupt). A file with no checksum recorded (stored before checksums were
+ * kept) is given the one it has now. Contents stored under several names are checked once, and if corrupt every file
+ * stored with them is deleted.
+ * Nothing here is on the path of a STORE or LOAD: the checksum is worked out as a file arrives, and checked by the
+ * client as it loads. A compressed file is checked by its contents, so it is decompressed as it is read.
+ */
+public class Scrubber {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Dstore dstore;
+    private final long period;
+    // Caps the bytes read per second, or null if there is no cap
+    private final ByteRateLimiter rateLimiter;
+    // Single thread which checks the files
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Constructor
+     * @param dstore : Dstore whose files are checked
+     * @param period : time from the end of one check of every file to the start of the next (milliseconds)
+     * @param bytesPerSecond : cap on bytes read per second, or 0 for no cap
+     */
+    public Scrubber(Dstore dstore, long period, long bytesPerSecond) {
+        this.dstore = dstore;
+        this.period = period;
+        this.rateLimiter = bytesPerSecond > 0 ? new ByteRateLimiter(bytesPerSecond) : null;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "scrubber");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Plans the first check of every file for one period from now
+     */
+    public void start() {
+        this.executor.scheduleWithFixedDelay(this::scrubAll, this.period, this.period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Checks every file stored, one at a time
+     */
+    private void scrubAll() {
+        long start = System.currentTimeMillis();
+        int checked = 0;
+        int corrupt = 0;
+        //Every file deleted as corrupt is reported to the Controller at the end, together
+        ArrayList<String> removed = new ArrayList<>();
+        //Contents stored under several names are only read once, under the first of them
+        HashSet<String> hashesChecked = new HashSet<>();
+        for (String filename : this.dstore.getListOfFiles()) {
+            String hash = this.dstore.getHash(filename);
+            if (hash != null && !hashesChecked.add(hash)) {
+                continue;
+            }
+            try {
+                if (!this.scrub(filename, removed)) {
+                    corrupt += 1;
+                }
+                checked += 1;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        this.dstore.reportCorrupt(removed);
+        if (Thread.currentThread().isInterrupted()) {
+            return;
+        }
+        System.out.println("--- SCRUB ---   Checked " + checked + " files in " + (System.currentTimeMillis() - start)
+                + "ms, " + corrupt + " corrupt");
+    }
+
+    /**
+     * Checks a single file against its checksum
+     * @param removed : list the names of the files deleted are added to, if it was corrupt
+     * @return false if the file was corrupt
+     */
+    private boolean scrub(String filename, ArrayList<String> removed) throws InterruptedException {
+        long expected = this.dstore.getChecksum(filename);
+        long actual;
+        try {
+            actual = this.checksum(filename);
+        } catch (NoSuchFileException e) {
+            //Removed since the files were listed
+            return true;
+        } catch (ZipException e) {
+            //A compressed file which can no longer be decompressed is corrupt, unless it was stored again meanwhile
+            if (this.dstore.getChecksum(filename) == expected) {
+                removed.addAll(this.dstore.fileCorrupt(filename));
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not check " + filename + " : " + e);
+            return true;
+        }
+        if (expected == Protocol.NO_CHECKSUM) {
+            try {
+                this.dstore.recordChecksum(filename, actual);
+            } catch (IOException e) {
+                System.out.println("### ERROR ###   Could not record checksum of " + filename + " : " + e);
+            }
+            return true;
+        }
+        //A file stored again while it was being read has a new checksum, and is checked next time instead
+        if (actual != expected && this.dstore.getChecksum(filename) == expected) {
+            removed.addAll(this.dstore.fileCorrupt(filename));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return CRC32C of a stored file's contents, read no faster than the cap
+     */
+    private long checksum(String filename) throws IOException, InterruptedException {
+        CRC32C crc = new CRC32C();
+        try (InputStream in = this.dstore.openStoredFile(filename)) {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                if (this.rateLimiter != null) {
+                    this.rateLimiter.acquire(read);
+                }
+                crc.update(chunk, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+}
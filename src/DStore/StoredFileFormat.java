@@ -0,0 +1,49 @@
+package DStore;
+
+import Loggers.Protocol;
+
+/**
+ * Class recording how a compressed file is kept on disk: the codec it was compressed with (see Protocol), its size and the size it
+ * takes on disk. It is kept in the Dstore's format folder, in a file named by the hash of the blob holding the file
+ * (see BlobStore). A file with no record is kept on disk exactly as it arrived.
+ */
+public class StoredFileFormat {
+
+    public final String codec;
+    public final long size;
+    public final long storedSize;
+
+    public StoredFileFormat(String codec, long size, long storedSize) {
+        this.codec = codec;
+        this.size = size;
+        this.storedSize = storedSize;
+    }
+
+    /**
+     * @return size of the file over the size it takes on disk
+     */
+    public double getRatio() {
+        return this.storedSize == 0 ? 1 : (double) this.size / this.storedSize;
+    }
+
+    /**
+     * @return the record as kept on disk: codec size stored_size
+     */
+    public String toRecord() {
+        return this.codec + " " + this.size + " " + this.storedSize;
+    }
+
+    /**
+     * @return the format in a record, or null if the record is malformed or of a codec not known
+     */
+    public static StoredFileFormat fromRecord(String record) {
+        String[] words = record.trim().split(" ");
+        try {
+            if (words.length == 3 && words[0].equals(Protocol.CODEC_DEFLATE)) {
+                return new StoredFileFormat(words[0], Long.parseLong(words[1]), Long.parseLong(words[2]));
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        return null;
+    }
+}
@@ -0,0 +1,192 @@
+package DStore;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+
+import ConnectionParent.ConnectionExecutor;
+import Loggers.DstoreLogger;
+import Loggers.Protocol;
+import Tokenizer.*;
+
+/**
+ * Class which sends files to other Dstores during a rebalance.
+ * Several transfers run at once, limited both overall and per receiving Dstore, so one slow Dstore only holds up the
+ * transfers to it. File contents are streamed from disk in chunks rather than read into memory whole, and can be
+ * capped at a number of bytes per second. Each file is offered with the hash of its contents, and is not sent to a
+ * Dstore which already holds the same contents (see BlobStore). A failed transfer does not stop the others; the files
+ * and Dstores that failed are returned so they can be reported to the Controller. Compressed files are sent
+ * decompressed, as the receiving Dstore decides for itself whether to compress them.
+ */
+public class TransferEngine {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private final Dstore dstore;
+    private final int timeout;
+    // Maximum transfers running at once, overall and to a single Dstore
+    private final int maxTransfers;
+    private final int maxTransfersPerDstore;
+    // Cap on bytes sent per second (null if not capped)
+    private final ByteRateLimiter rateLimiter;
+
+    /**
+     * Constructor
+     * @param dstore : Dstore sending the files
+     * @param timeout : time to wait for a receiving Dstore to connect and acknowledge (milliseconds)
+     * @param maxTransfers : maximum transfers running at once
+     * @param maxTransfersPerDstore : maximum transfers running at once to a single Dstore
+     * @param bytesPerSecond : maximum bytes sent per second, or 0 for no cap
+     */
+    public TransferEngine(Dstore dstore, int timeout, int maxTransfers, int maxTransfersPerDstore, long bytesPerSecond) {
+        this.dstore = dstore;
+        this.timeout = timeout;
+        this.maxTransfers = Math.max(1, maxTransfers);
+        this.maxTransfersPerDstore = Math.max(1, maxTransfersPerDstore);
+        this.rateLimiter = bytesPerSecond > 0 ? new ByteRateLimiter(bytesPerSecond) : null;
+    }
+
+    /**
+     * Method which sends every file to every Dstore it is to be sent to, and waits for all the transfers to finish
+     * @param filesToSend : files to send, each with the Dstore ports to send it to
+     * @return map of each file that could not be sent to all its Dstores, to the Dstore ports it was not sent to
+     */
+    public LinkedHashMap<String, ArrayList<Integer>> sendAll(ArrayList<FileToSend> filesToSend) {
+        //Transfers waiting to start, queued by the Dstore receiving them
+        LinkedHashMap<Integer, ArrayDeque<String>> queued = new LinkedHashMap<>();
+        int remaining = 0;
+        for (FileToSend file : filesToSend) {
+            for (int port : file.dStores) {
+                queued.computeIfAbsent(port, p -> new ArrayDeque<>()).add(file.filename);
+                remaining += 1;
+            }
+        }
+        Batch batch = new Batch(remaining);
+        synchronized (batch) {
+            try {
+                while (batch.remaining > 0) {
+                    //Starts a transfer to each Dstore with a free slot in turn, while there are free slots overall
+                    boolean started = false;
+                    for (Integer port : queued.keySet()) {
+                        ArrayDeque<String> files = queued.get(port);
+                        if (batch.running < this.maxTransfers && !files.isEmpty()
+                                && batch.runningTo.getOrDefault(port, 0) < this.maxTransfersPerDstore) {
+                            this.start(batch, files.poll(), port);
+                            started = true;
+                        }
+                    }
+                    if (!started) {
+                        //Woken when a transfer finishes
+                        batch.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return batch.failed;
+    }
+
+    /**
+     * Class holding the state of one call to sendAll. Its monitor guards all of its fields
+     */
+    private static class Batch {
+        private int remaining;
+        private int running;
+        private final HashMap<Integer, Integer> runningTo;
+        private final LinkedHashMap<String, ArrayList<Integer>> failed;
+
+        private Batch(int remaining) {
+            this.remaining = remaining;
+            this.running = 0;
+            this.runningTo = new HashMap<>();
+            this.failed = new LinkedHashMap<>();
+        }
+    }
+
+    /**
+     * Starts a single transfer. Called with the batch's monitor held
+     */
+    private void start(Batch batch, String filename, int port) {
+        batch.running += 1;
+        batch.runningTo.merge(port, 1, Integer::sum);
+        ConnectionExecutor.execute(() -> {
+            boolean sent = this.send(filename, port);
+            synchronized (batch) {
+                batch.running -= 1;
+                batch.runningTo.merge(port, -1, Integer::sum);
+                batch.remaining -= 1;
+                if (!sent) {
+                    batch.failed.computeIfAbsent(filename, f -> new ArrayList<>()).add(port);
+                }
+                batch.notifyAll();
+            }
+        });
+    }
+
+    /**
+     * Sends a single file to a single Dstore
+     * @param filename : file to send
+     * @param port : port of the Dstore to send it to
+     * @return true if the whole file was sent
+     */
+    private boolean send(String filename, int port) {
+        long filesize = this.dstore.getFilesize(filename);
+        if (filesize == -1) {
+            System.out.println("### ERROR ###   File " + filename + " to send when rebalancing does not exist");
+            return false;
+        }
+        try (Socket s = new Socket(InetAddress.getLocalHost(), port);
+             InputStream fileIn = this.dstore.openStoredFile(filename)) {
+            s.setSoTimeout(this.timeout);
+            PrintWriter storeOutText = new PrintWriter(new BufferedOutputStream(s.getOutputStream()));
+            BufferedReader storeInText = new BufferedReader(new InputStreamReader(s.getInputStream()));
+            OutputStream storeOutData = s.getOutputStream();
+
+            long checksum = this.dstore.getChecksum(filename);
+            String hash = this.dstore.getHash(filename);
+            String rebalanceStoreMessage = Protocol.REBALANCE_STORE_TOKEN + " " + filename + " " + filesize
+                    + (checksum == Protocol.NO_CHECKSUM ? "" : " " + Tokenizer.checksumToString(checksum)
+                    + (hash == null ? "" : " " + hash));
+            storeOutText.println(rebalanceStoreMessage);
+            storeOutText.flush();
+            DstoreLogger.getInstance().messageSent(s, rebalanceStoreMessage);
+
+            String reply = storeInText.readLine();
+            if (reply == null) {
+                System.out.println("### ERROR ###   Dstore (port: " + port + ") closed connection before ACK when rebalancing");
+                return false;
+            }
+            DstoreLogger.getInstance().messageReceived(s, reply);
+            Token replyToken = Tokenizer.getToken(reply);
+            if (replyToken instanceof ContentPresentToken) {
+                //The Dstore already held the contents, and has stored the file without them being sent
+                return true;
+            }
+            if (!(replyToken instanceof AckToken)) {
+                return false;
+            }
+            byte[] chunk = new byte[CHUNK_SIZE];
+            int read;
+            while ((read = fileIn.read(chunk)) != -1) {
+                if (this.rateLimiter != null) {
+                    this.rateLimiter.acquire(read);
+                }
+                storeOutData.write(chunk, 0, read);
+            }
+            storeOutData.flush();
+            return true;
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not send " + filename + " to Dstore (port: " + port
+                    + ") when rebalancing : " + e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
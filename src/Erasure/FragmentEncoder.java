@@ -0,0 +1,63 @@
+package Erasure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Class which splits a file into its erasure coded fragments, writing every fragment at once as the file is read.
+ * The file is read once, a stripe at a time, so the memory used is one stripe however large the file is.
+ */
+public class FragmentEncoder {
+
+    private final FragmentHeader header;
+    private final ReedSolomon code;
+
+    /**
+     * Constructor
+     * @param header : header of the file's first fragment (see FragmentHeader.forFile)
+     */
+    public FragmentEncoder(FragmentHeader header) {
+        this.header = header;
+        this.code = new ReedSolomon(header.dataFragments, header.parityFragments);
+    }
+
+    /**
+     * Reads the file and writes all of its fragments
+     * @param file : stream to read the file from (only filesize bytes are read)
+     * @param fragments : stream to write each fragment to, in fragment order
+     * @throws IOException if the file ends early or a fragment cannot be written
+     */
+    public void encode(InputStream file, OutputStream[] fragments) throws IOException {
+        int k = this.header.dataFragments;
+        int chunkSize = this.header.chunkSize;
+        for (int i = 0; i < fragments.length; i++) {
+            this.header.withIndex(i).write(fragments[i]);
+        }
+        byte[][] shards = new byte[fragments.length][chunkSize];
+        CRC32C crc = new CRC32C();
+        long remaining = this.header.filesize;
+        for (long stripe = 0; stripe < this.header.getStripes(); stripe++) {
+            for (int i = 0; i < k; i++) {
+                int length = (int) Math.min(chunkSize, remaining);
+                if (file.readNBytes(shards[i], 0, length) != length) {
+                    throw new IOException("file is shorter than " + this.header.filesize + " bytes");
+                }
+                crc.update(shards[i], 0, length);
+                Arrays.fill(shards[i], length, chunkSize, (byte) 0);
+                remaining -= length;
+            }
+            this.code.encode(shards, chunkSize);
+            for (int i = 0; i < fragments.length; i++) {
+                fragments[i].write(shards[i], 0, chunkSize);
+            }
+        }
+        byte[] trailer = FragmentHeader.trailer(crc.getValue());
+        for (OutputStream fragment : fragments) {
+            fragment.write(trailer);
+            fragment.flush();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package Erasure;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Class describing a single fragment of an erasure coded file. Every fragment starts with this header, so a fragment
+ * can be used without knowing which Dstore it came from.
+ * <p>
+ * A fragment is laid out as:
+ * <pre>
+ *     magic (4 bytes) k (1) m (1) index (1) 0 (1) filesize (8) chunk size (4)   - the header
+ *     one chunk of every stripe                                              - chunk size bytes per stripe
+ *     CRC32C of the whole file (4 bytes)                                     - the trailer
+ * </pre>
+ * The file is split into stripes of k chunks each, in order, the last stripe padded with zeros. Data fragment i holds
+ * chunk i of every stripe, and parity fragment k+j holds parity chunk j of every stripe. So the file is rebuilt a
+ * stripe at a time, from the start, whichever k fragments it is rebuilt from.
+ */
+public class FragmentHeader {
+
+    public static final int MAGIC = 0x52534631;
+    public static final int HEADER_SIZE = 20;
+    public static final int TRAILER_SIZE = 4;
+    // Largest chunk of a stripe. The chunk size is picked so the file fills its stripes almost exactly, so no file is
+    // padded by more than a byte per chunk
+    public static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    public final int dataFragments;
+    public final int parityFragments;
+    public final int index;
+    public final long filesize;
+    public final int chunkSize;
+
+    public FragmentHeader(int dataFragments, int parityFragments, int index, long filesize, int chunkSize) {
+        this.dataFragments = dataFragments;
+        this.parityFragments = parityFragments;
+        this.index = index;
+        this.filesize = filesize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return header of the first fragment of a file
+     */
+    public static FragmentHeader forFile(long filesize, int dataFragments, int parityFragments) {
+        long maxStripeSize = (long) dataFragments * MAX_CHUNK_SIZE;
+        long stripes = Math.max(1, (filesize + maxStripeSize - 1) / maxStripeSize);
+        long chunkSize = Math.max(1, (filesize + stripes * dataFragments - 1) / (stripes * dataFragments));
+        return new FragmentHeader(dataFragments, parityFragments, 0, filesize, (int) chunkSize);
+    }
+
+    /**
+     * @return header of another fragment of the same file
+     */
+    public FragmentHeader withIndex(int index) {
+        return new FragmentHeader(this.dataFragments, this.parityFragments, index, this.filesize, this.chunkSize);
+    }
+
+    public long getStripes() {
+        long stripeSize = (long) this.dataFragments * this.chunkSize;
+        return (this.filesize + stripeSize - 1) / stripeSize;
+    }
+
+    /**
+     * @return size of each fragment of the file, header and trailer included
+     */
+    public long getFragmentSize() {
+        return HEADER_SIZE + this.getStripes() * this.chunkSize + TRAILER_SIZE;
+    }
+
+    public void write(OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(this.dataFragments);
+        data.writeByte(this.parityFragments);
+        data.writeByte(this.index);
+        data.writeByte(0);
+        data.writeLong(this.filesize);
+        data.writeInt(this.chunkSize);
+        data.flush();
+    }
+
+    /**
+     * Reads a fragment's header
+     * @throws IOException if the stream ends first, or what it holds is not a fragment header
+     */
+    public static FragmentHeader read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("not an erasure coded fragment");
+        }
+        int dataFragments = data.readUnsignedByte();
+        int parityFragments = data.readUnsignedByte();
+        int index = data.readUnsignedByte();
+        data.readUnsignedByte();
+        long filesize = data.readLong();
+        int chunkSize = data.readInt();
+        if (dataFragments < 1 || index >= dataFragments + parityFragments || filesize < 0 || chunkSize < 1
+                || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IOException("malformed fragment header");
+        }
+        return new FragmentHeader(dataFragments, parityFragments, index, filesize, chunkSize);
+    }
+
+    /**
+     * @return the trailer of every fragment of a file, its CRC32C
+     */
+    public static byte[] trailer(long checksum) {
+        return new byte[]{(byte) (checksum >>> 24), (byte) (checksum >>> 16), (byte) (checksum >>> 8), (byte) checksum};
+    }
+
+    /**
+     * @return the file's CRC32C, from a fragment's trailer
+     */
+    public static long readTrailer(InputStream in) throws IOException {
+        return new DataInputStream(in).readInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * @return true if the other header is for another fragment of the same file
+     */
+    public boolean sameFile(FragmentHeader other) {
+        return this.dataFragments == other.dataFragments && this.parityFragments == other.parityFragments
+                && this.filesize == other.filesize && this.chunkSize == other.chunkSize;
+    }
+}
@@ -0,0 +1,96 @@
+package Erasure;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32C;
+
+/**
+ * Stream of an erasure coded file's contents, rebuilt a stripe at a time from k of its fragments as it is read.
+ * Once the last byte has been read the file's checksum is checked, and if it does not match the read fails rather
+ * than reporting the end of the file. Skipping part of the file still reads it from the fragments, so the checksum
+ * is only checked if the whole file is read.
+ */
+public class FragmentInputStream extends InputStream {
+
+    private final FragmentSet fragments;
+    private final byte[][] shards;
+    private final CRC32C crc;
+    // Bytes of the file not yet read, and whether any of it was skipped
+    private long remaining;
+    private boolean skipped;
+    // Position in the current stripe, and the bytes of the file it holds
+    private int position;
+    private int stripeLength;
+
+    /**
+     * @param fragments : at least k fragments of the file, none read beyond their headers
+     */
+    public FragmentInputStream(FragmentSet fragments) {
+        this.fragments = fragments;
+        this.shards = fragments.newStripe();
+        this.crc = new CRC32C();
+        this.remaining = fragments.getHeader().filesize;
+        this.skipped = false;
+        this.position = 0;
+        this.stripeLength = 0;
+    }
+
+    public long getFilesize() {
+        return this.fragments.getHeader().filesize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (this.position == this.stripeLength) {
+            if (this.remaining == 0) {
+                return -1;
+            }
+            this.nextStripe();
+        }
+        int chunkSize = this.fragments.getHeader().chunkSize;
+        int read = 0;
+        while (read < len && this.position < this.stripeLength) {
+            int chunk = this.position / chunkSize;
+            int inChunk = this.position % chunkSize;
+            int n = Math.min(len - read, Math.min(chunkSize - inChunk, this.stripeLength - this.position));
+            System.arraycopy(this.shards[chunk], inChunk, b, off + read, n);
+            this.crc.update(b, off + read, n);
+            read += n;
+            this.position += n;
+        }
+        if (this.position == this.stripeLength && this.remaining == 0 && !this.skipped) {
+            long expected = this.fragments.readChecksum();
+            if (this.crc.getValue() != expected) {
+                throw new IOException("rebuilt file does not match its checksum");
+            }
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n > 0) {
+            this.skipped = true;
+        }
+        return super.skip(n);
+    }
+
+    private void nextStripe() throws IOException {
+        if (!this.fragments.readStripe(this.shards)) {
+            throw new IOException("fragments ended before the end of the file");
+        }
+        long stripeSize = (long) this.fragments.getHeader().dataFragments * this.fragments.getHeader().chunkSize;
+        this.stripeLength = (int) Math.min(stripeSize, this.remaining);
+        this.remaining -= this.stripeLength;
+        this.position = 0;
+    }
+}
@@ -0,0 +1,108 @@
+package Erasure;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Class which rebuilds an erasure coded file a stripe at a time, from any k of its fragments.
+ * Fragments are added as they are opened (each positioned just after its header) until k different fragments of the
+ * same file have been added. Each stripe is then read from all k at once, and any data chunks missing are rebuilt
+ * from the parity chunks read.
+ */
+public class FragmentSet {
+
+    private FragmentHeader header;
+    private ReedSolomon code;
+    // Fragment streams by fragment index, null for fragments not being read
+    private InputStream[] sources;
+    private boolean[] present;
+    private int count;
+    private long stripesRead;
+
+    public FragmentSet() {
+        this.count = 0;
+        this.stripesRead = 0;
+    }
+
+    /**
+     * Adds a fragment to read from, unless k fragments have already been added or it is one already added
+     * @param header : the fragment's header, already read from the stream
+     * @param in : stream to read the rest of the fragment from
+     * @return true if the fragment will be read from
+     * @throws IOException if it is a fragment of a different file from those already added
+     */
+    public boolean add(FragmentHeader header, InputStream in) throws IOException {
+        if (this.header == null) {
+            this.header = header;
+            this.code = new ReedSolomon(header.dataFragments, header.parityFragments);
+            this.sources = new InputStream[header.dataFragments + header.parityFragments];
+            this.present = new boolean[this.sources.length];
+        } else if (!this.header.sameFile(header)) {
+            throw new IOException("fragments are of different files");
+        }
+        if (this.isComplete() || this.present[header.index]) {
+            return false;
+        }
+        this.sources[header.index] = in;
+        this.present[header.index] = true;
+        this.count += 1;
+        return true;
+    }
+
+    public boolean isComplete() {
+        return this.header != null && this.count == this.header.dataFragments;
+    }
+
+    /**
+     * @return header of the first fragment added (null if none has been)
+     */
+    public FragmentHeader getHeader() {
+        return this.header;
+    }
+
+    public ReedSolomon getCode() {
+        return this.code;
+    }
+
+    /**
+     * @return array of chunks to pass to readStripe, one for every fragment
+     */
+    public byte[][] newStripe() {
+        return new byte[this.sources.length][this.header.chunkSize];
+    }
+
+    /**
+     * Reads the next stripe, rebuilding any missing data chunks
+     * @param shards : chunks from newStripe. Every data chunk is filled in; parity chunks only if they were read
+     * @return false if every stripe has been read
+     */
+    public boolean readStripe(byte[][] shards) throws IOException {
+        if (!this.isComplete()) {
+            throw new IOException("only " + this.count + " fragments to rebuild from");
+        }
+        if (this.stripesRead == this.header.getStripes()) {
+            return false;
+        }
+        for (int i = 0; i < this.sources.length; i++) {
+            if (this.present[i] && this.sources[i].readNBytes(shards[i], 0, this.header.chunkSize) != this.header.chunkSize) {
+                throw new IOException("fragment " + i + " ended early");
+            }
+        }
+        this.code.reconstructData(shards, this.present, this.header.chunkSize);
+        this.stripesRead += 1;
+        return true;
+    }
+
+    /**
+     * Reads the file's checksum from the trailer of one of the fragments, once every stripe has been read
+     * @return CRC32C of the whole file
+     */
+    public long readChecksum() throws IOException {
+        for (int i = 0; i < this.sources.length; i++) {
+            if (this.present[i]) {
+                return FragmentHeader.readTrailer(this.sources[i]);
+            }
+        }
+        throw new IOException("no fragments to read from");
+    }
+}
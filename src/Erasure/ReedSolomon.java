@@ -0,0 +1,231 @@
+package Erasure;
+
+import java.util.Arrays;
+
+/**
+ * Systematic Reed-Solomon code over GF(2^8), splitting data into k data shards and adding m parity shards, such that
+ * any k of the k+m shards are enough to rebuild the rest.
+ * The data shards are kept as they are. Each parity shard is a linear combination of the data shards, with the
+ * coefficients taken from a Cauchy matrix, so that every k x k matrix made of rows of [I ; Cauchy] is invertible.
+ * Shards are byte arrays of equal length, and the code works byte by byte across them, so a shard can be processed
+ * a chunk at a time. Instances are not safe to share between threads.
+ */
+public class ReedSolomon {
+
+    // GF(2^8) with the polynomial x^8 + x^4 + x^3 + x^2 + 1
+    private static final int POLYNOMIAL = 0x11D;
+    private static final int[] EXP = new int[512];
+    private static final int[] LOG = new int[256];
+    // MULTIPLY[a][b] = a * b in GF(2^8)
+    private static final byte[][] MULTIPLY = new byte[256][256];
+
+    static {
+        int x = 1;
+        for (int i = 0; i < 255; i++) {
+            EXP[i] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if (x >= 256) {
+                x ^= POLYNOMIAL;
+            }
+        }
+        for (int i = 255; i < EXP.length; i++) {
+            EXP[i] = EXP[i - 255];
+        }
+        for (int a = 1; a < 256; a++) {
+            for (int b = 1; b < 256; b++) {
+                MULTIPLY[a][b] = (byte) EXP[LOG[a] + LOG[b]];
+            }
+        }
+    }
+
+    private final int dataShards;
+    private final int parityShards;
+    // Row i gives parity shard k+i as a combination of the data shards
+    private final byte[][] parityRows;
+    // Data shards the last decoding matrix was worked out for, and the matrix, as the same shards are usually
+    // missing for every chunk of a file
+    private int[] lastPresent;
+    private byte[][] lastDecoding;
+
+    /**
+     * Constructor
+     * @param dataShards : k, number of shards the data is split into
+     * @param parityShards : m, number of parity shards added (k + m must be at most 256)
+     */
+    public ReedSolomon(int dataShards, int parityShards) {
+        if (dataShards < 1 || parityShards < 0 || dataShards + parityShards > 256) {
+            throw new IllegalArgumentException("unsupported code " + dataShards + "+" + parityShards);
+        }
+        this.dataShards = dataShards;
+        this.parityShards = parityShards;
+        this.parityRows = new byte[parityShards][dataShards];
+        for (int i = 0; i < parityShards; i++) {
+            for (int j = 0; j < dataShards; j++) {
+                //x_i = k + i and y_j = j are all distinct, so x_i + y_j (xor) is never 0
+                this.parityRows[i][j] = (byte) inverse((dataShards + i) ^ j);
+            }
+        }
+    }
+
+    public int getDataShards() {
+        return this.dataShards;
+    }
+
+    public int getParityShards() {
+        return this.parityShards;
+    }
+
+    /**
+     * Works out every parity shard from the data shards
+     * @param shards : k + m shards, the first k holding the data
+     * @param length : number of bytes of each shard to use
+     */
+    public void encode(byte[][] shards, int length) {
+        for (int i = 0; i < this.parityShards; i++) {
+            combine(this.parityRows[i], shards, shards[this.dataShards + i], length);
+        }
+    }
+
+    /**
+     * Works out a single parity shard from the data shards
+     * @param shards : k + m shards, the first k holding the data
+     * @param index : index of the parity shard (k to k+m-1)
+     * @param length : number of bytes of each shard to use
+     */
+    public void encodeShard(byte[][] shards, int index, int length) {
+        combine(this.parityRows[index - this.dataShards], shards, shards[index], length);
+    }
+
+    /**
+     * Rebuilds the missing data shards from any k shards that are present
+     * @param shards : k + m shards
+     * @param present : which shards hold data (at least k must)
+     * @param length : number of bytes of each shard to use
+     */
+    public void reconstructData(byte[][] shards, boolean[] present, int length) {
+        int[] used = new int[this.dataShards];
+        int found = 0;
+        for (int i = 0; i < shards.length && found < this.dataShards; i++) {
+            if (present[i]) {
+                used[found++] = i;
+            }
+        }
+        if (found < this.dataShards) {
+            throw new IllegalArgumentException("only " + found + " of " + this.dataShards + " shards present");
+        }
+        if (used[this.dataShards - 1] == this.dataShards - 1) {
+            //Every data shard is present
+            return;
+        }
+        byte[][] decoding = this.getDecodingMatrix(used);
+        byte[][] inputs = new byte[this.dataShards][];
+        for (int i = 0; i < this.dataShards; i++) {
+            inputs[i] = shards[used[i]];
+        }
+        for (int i = 0; i < this.dataShards; i++) {
+            if (!present[i]) {
+                combine(decoding[i], inputs, shards[i], length);
+            }
+        }
+    }
+
+    /**
+     * @param used : the k shards being rebuilt from
+     * @return matrix giving each data shard as a combination of the shards used
+     */
+    private byte[][] getDecodingMatrix(int[] used) {
+        if (this.lastPresent != null && Arrays.equals(this.lastPresent, used)) {
+            return this.lastDecoding;
+        }
+        int k = this.dataShards;
+        //Rows of the encoding matrix for the shards used, then inverted
+        byte[][] matrix = new byte[k][];
+        for (int i = 0; i < k; i++) {
+            if (used[i] < k) {
+                matrix[i] = new byte[k];
+                matrix[i][used[i]] = 1;
+            } else {
+                matrix[i] = this.parityRows[used[i] - k].clone();
+            }
+        }
+        this.lastDecoding = invert(matrix);
+        this.lastPresent = used.clone();
+        return this.lastDecoding;
+    }
+
+    /**
+     * out = sum of coefficients[i] * inputs[i], byte by byte
+     */
+    private static void combine(byte[] coefficients, byte[][] inputs, byte[] out, int length) {
+        Arrays.fill(out, 0, length, (byte) 0);
+        for (int i = 0; i < coefficients.length; i++) {
+            int c = coefficients[i] & 0xFF;
+            if (c == 0) {
+                continue;
+            }
+            byte[] in = inputs[i];
+            if (c == 1) {
+                for (int b = 0; b < length; b++) {
+                    out[b] ^= in[b];
+                }
+            } else {
+                byte[] multiply = MULTIPLY[c];
+                for (int b = 0; b < length; b++) {
+                    out[b] ^= multiply[in[b] & 0xFF];
+                }
+            }
+        }
+    }
+
+    /**
+     * Inverts a square matrix by Gauss-Jordan elimination
+     */
+    private static byte[][] invert(byte[][] matrix) {
+        int n = matrix.length;
+        byte[][] work = new byte[n][];
+        byte[][] result = new byte[n][n];
+        for (int i = 0; i < n; i++) {
+            work[i] = matrix[i].clone();
+            result[i][i] = 1;
+        }
+        for (int column = 0; column < n; column++) {
+            int pivot = column;
+            while (pivot < n && work[pivot][column] == 0) {
+                pivot++;
+            }
+            if (pivot == n) {
+                throw new IllegalStateException("decoding matrix is singular");
+            }
+            byte[] swap = work[column];
+            work[column] = work[pivot];
+            work[pivot] = swap;
+            swap = result[column];
+            result[column] = result[pivot];
+            result[pivot] = swap;
+            int scale = inverse(work[column][column] & 0xFF);
+            scaleRow(work[column], scale);
+            scaleRow(result[column], scale);
+            for (int row = 0; row < n; row++) {
+                int factor = work[row][column] & 0xFF;
+                if (row != column && factor != 0) {
+                    for (int j = 0; j < n; j++) {
+                        work[row][j] ^= MULTIPLY[factor][work[column][j] & 0xFF];
+                        result[row][j] ^= MULTIPLY[factor][result[column][j] & 0xFF];
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    private static void scaleRow(byte[] row, int scale) {
+        for (int j = 0; j < row.length; j++) {
+            row[j] = MULTIPLY[scale][row[j] & 0xFF];
+        }
+    }
+
+    private static int inverse(int a) {
+        return EXP[255 - LOG[a]];
+    }
+}
@@ -1,26 +1,31 @@
 package IndexManager;
 
+import Loggers.Protocol;
+
 import java.util.ArrayList;
 
 public class DstoreFile {
 
     private final String filename;
-    private final int filesize;
+    private final long filesize;
     private State state;
     private ArrayList<Integer> DstoresStoredOn;
+    // CRC32C of the file's contents as first reported by a Dstore storing it, or Protocol.NO_CHECKSUM if not known
+    private long checksum;
 
-    public DstoreFile(String filename, int filesize, State state) {
+    public DstoreFile(String filename, long filesize, State state) {
         this.filename = filename;
         this.filesize = filesize;
         this.state = state;
         this.DstoresStoredOn = new ArrayList<>();
+        this.checksum = Protocol.NO_CHECKSUM;
     }
 
     public String getFilename() {
         return this.filename;
     }
 
-    public int getFilesize() {
+    public long getFilesize() {
         return this.filesize;
     }
 
@@ -36,6 +41,14 @@ public class DstoreFile {
         return this.DstoresStoredOn;
     }
 
+    public long getChecksum() {
+        return this.checksum;
+    }
+
+    public void setChecksum(long checksum) {
+        this.checksum = checksum;
+    }
+
     public void setDstoresStoredOn(ArrayList<Integer> dstoresStoredOn) {
         this.DstoresStoredOn = dstoresStoredOn;
     }
@@ -0,0 +1,308 @@
+package IndexManager;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import Loggers.Protocol;
+import Tokenizer.Tokenizer;
+
+/**
+ * Class which makes the Controller's file index survive a restart.
+ * Every change to the index is appended to a log as a single line, before or as it is made:
+ * <ul>
+ *     <li>PUT filename filesize state - a file is added to the index (STORE started, or found by a rebalance)</li>
+ *     <li>STATE filename state - a file's state changes (e.g. STORE complete)</li>
+ *     <li>DROP filename - a file is removed from the index</li>
+ *     <li>SUM filename checksum - a file's checksum is recorded</li>
+ *     <li>LINK filename port / UNLINK filename port - a Dstore is added to / removed from the Dstores storing a file</li>
+ *     <li>LOST port - a Dstore is removed from every file</li>
+ * </ul>
+ * The log is split into numbered segments (index.N.log). Every snapshotEvery records a new segment is started and a
+ * compacted snapshot of the whole index (a header line "first_segment v2", then one line per file: filename filesize
+ * state checksum ports..., with "-" for a checksum not known) is written in the background, after which the older
+ * segments are deleted. On startup the snapshot is loaded and the segments written after it are replayed on top.
+ * Replaying records is idempotent, so records written while the snapshot was being taken can safely be replayed
+ * onto a snapshot that already includes them. A snapshot whose header has no version was written before checksums
+ * were kept, and its lines have no checksum field (filename filesize state ports...).
+ */
+public class IndexJournal {
+
+    private static final String SNAPSHOT_FILE = "index.snapshot";
+    private static final String SEGMENT_PREFIX = "index.";
+    private static final String SEGMENT_SUFFIX = ".log";
+    // Version written in the snapshot's header, after the number of the first segment
+    private static final String SNAPSHOT_VERSION = "v2";
+
+    private final Path dir;
+    private final int snapshotEvery;
+    // Single background thread which writes snapshots
+    private final ExecutorService snapshotWriter;
+    private IndexManager index;
+    private BufferedWriter writer;
+    // Number of the segment currently being appended to
+    private long segment;
+    private int recordsSinceSnapshot;
+    private boolean ifSnapshotting;
+
+    /**
+     * Constructor
+     * @param dir : directory holding the snapshot and log segments (created if it does not exist)
+     * @param snapshotEvery : number of records appended between snapshots
+     */
+    public IndexJournal(Path dir, int snapshotEvery) throws IOException {
+        this.dir = dir;
+        this.snapshotEvery = snapshotEvery;
+        this.snapshotWriter = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "index-snapshot");
+            t.setDaemon(true);
+            return t;
+        });
+        this.segment = 0;
+        this.recordsSinceSnapshot = 0;
+        this.ifSnapshotting = false;
+        Files.createDirectories(dir);
+    }
+
+    /**
+     * Method which rebuilds the index from the snapshot and the log segments written after it.
+     * Must be called before the journal is attached to the index, so replaying does not log the records again
+     * @param index : index to rebuild (expected to be empty)
+     * @return number of log records replayed
+     */
+    public int replay(IndexManager index) throws IOException {
+        long firstSegment = 0;
+        Path snapshot = this.dir.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (BufferedReader in = Files.newBufferedReader(snapshot, StandardCharsets.UTF_8)) {
+                StringTokenizer header = new StringTokenizer(in.readLine());
+                firstSegment = Long.parseLong(header.nextToken());
+                boolean ifChecksums = header.hasMoreTokens() && header.nextToken().equals(SNAPSHOT_VERSION);
+                String line;
+                while ((line = in.readLine()) != null) {
+                    this.loadSnapshotLine(index, line, ifChecksums);
+                }
+            }
+        }
+        int replayed = 0;
+        for (Long number : this.listSegments().keySet()) {
+            this.segment = Math.max(this.segment, number);
+            if (number < firstSegment) {
+                continue;
+            }
+            try (BufferedReader in = Files.newBufferedReader(this.segmentPath(number), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    this.replayRecord(index, line);
+                    replayed += 1;
+                }
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * Method which starts logging the index's changes to a new segment, and takes a snapshot straight away so the
+     * segments just replayed are compacted
+     * @param index : index being logged
+     */
+    public synchronized void start(IndexManager index) throws IOException {
+        this.index = index;
+        this.segment += 1;
+        this.writer = this.openSegment(this.segment);
+        this.ifSnapshotting = true;
+        long fromSegment = this.segment;
+        this.snapshotWriter.execute(() -> this.writeSnapshot(fromSegment));
+    }
+
+    public void put(DstoreFile file) {
+        this.append("PUT " + file.getFilename() + " " + file.getFilesize() + " " + file.getState());
+    }
+
+    public void state(DstoreFile file) {
+        this.append("STATE " + file.getFilename() + " " + file.getState());
+    }
+
+    public void checksum(DstoreFile file) {
+        this.append("SUM " + file.getFilename() + " " + Tokenizer.checksumToString(file.getChecksum()));
+    }
+
+    public void drop(String filename) {
+        this.append("DROP " + filename);
+    }
+
+    public void link(String filename, int port) {
+        this.append("LINK " + filename + " " + port);
+    }
+
+    public void unlink(String filename, int port) {
+        this.append("UNLINK " + filename + " " + port);
+    }
+
+    public void lost(int port) {
+        this.append("LOST " + port);
+    }
+
+    /**
+     * Appends a record to the current segment. The record is flushed to the operating system before returning,
+     * so it survives the Controller process crashing
+     * @param record : line to append
+     */
+    private synchronized void append(String record) {
+        try {
+            this.writer.write(record);
+            this.writer.newLine();
+            this.writer.flush();
+            this.recordsSinceSnapshot += 1;
+            if (this.recordsSinceSnapshot >= this.snapshotEvery && !this.ifSnapshotting) {
+                //Records from here on go to a new segment, everything before it will be in the snapshot
+                this.ifSnapshotting = true;
+                this.writer.close();
+                this.segment += 1;
+                this.writer = this.openSegment(this.segment);
+                long fromSegment = this.segment;
+                this.snapshotWriter.execute(() -> this.writeSnapshot(fromSegment));
+            }
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not write to index journal : " + e);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the whole index, then deletes the segments it makes redundant.
+     * The snapshot is written to a temporary file and moved into place, so a crash part way through leaves the
+     * previous snapshot and segments intact
+     * @param fromSegment : first segment whose records may not be in the snapshot
+     */
+    private void writeSnapshot(long fromSegment) {
+        Path tmp = this.dir.resolve(SNAPSHOT_FILE + ".tmp");
+        try {
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(fromSegment + " " + SNAPSHOT_VERSION);
+                out.newLine();
+                for (DstoreFile file : this.index.getFileObjects()) {
+                    StringBuilder line = new StringBuilder();
+                    ArrayList<Integer> ports;
+                    synchronized (file) {
+                        line.append(file.getFilename()).append(" ").append(file.getFilesize()).append(" ")
+                                .append(file.getState()).append(" ").append(file.getChecksum() == Protocol.NO_CHECKSUM
+                                        ? "-" : Tokenizer.checksumToString(file.getChecksum()));
+                        ports = new ArrayList<>(file.getDstoresStoredOn());
+                    }
+                    for (Integer port : ports) {
+                        line.append(" ").append(port);
+                    }
+                    out.write(line.toString());
+                    out.newLine();
+                }
+            }
+            Files.move(tmp, this.dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            for (Long number : this.listSegments().headMap(fromSegment).keySet()) {
+                Files.deleteIfExists(this.segmentPath(number));
+            }
+        } catch (IOException e) {
+            System.out.println("### ERROR ###   Could not write index snapshot : " + e);
+        } finally {
+            synchronized (this) {
+                this.recordsSinceSnapshot = 0;
+                this.ifSnapshotting = false;
+            }
+        }
+    }
+
+    /**
+     * Loads a single file from the snapshot into the index
+     * @param ifChecksums : true if the line has a checksum field after the state (snapshots with a version header)
+     */
+    private void loadSnapshotLine(IndexManager index, String line, boolean ifChecksums) {
+        String[] parts = line.split(" ");
+        try {
+            ArrayList<Integer> ports = new ArrayList<>();
+            for (int i = ifChecksums ? 4 : 3; i < parts.length; i++) {
+                ports.add(Integer.parseInt(parts[i]));
+            }
+            index.addFile(parts[0], Long.parseLong(parts[1]), DstoreFile.State.valueOf(parts[2]), ports);
+            if (ifChecksums && !parts[3].equals("-")) {
+                index.recordChecksum(parts[0], Long.parseLong(parts[3], 16));
+            }
+        } catch (RuntimeException e) {
+            System.out.println("### ERROR ###   Malformed index snapshot line skipped : " + line);
+        }
+    }
+
+    private void replayRecord(IndexManager index, String record) {
+        String[] parts = record.split(" ");
+        try {
+            switch (parts[0]) {
+                case "PUT":
+                    index.addFile(parts[1], Long.parseLong(parts[2]), DstoreFile.State.valueOf(parts[3]),
+                            new ArrayList<>());
+                    break;
+                case "STATE":
+                    if (index.getFile(parts[1]) != null) {
+                        index.changeState(parts[1], DstoreFile.State.valueOf(parts[2]));
+                    }
+                    break;
+                case "SUM":
+                    index.recordChecksum(parts[1], Long.parseLong(parts[2], 16));
+                    break;
+                case "DROP":
+                    index.removeFileFromIndex(parts[1]);
+                    break;
+                case "LINK":
+                    index.addDstoreForFile(parts[1], Integer.parseInt(parts[2]));
+                    break;
+                case "UNLINK":
+                    index.removeDstoreForFile(parts[1], Integer.parseInt(parts[2]));
+                    break;
+                case "LOST":
+                    index.removeDstore(Integer.parseInt(parts[1]));
+                    break;
+                default:
+                    throw new IllegalArgumentException(parts[0]);
+            }
+        } catch (RuntimeException e) {
+            //Most likely the last record of a segment, only partly written when the Controller stopped
+            System.out.println("### ERROR ###   Malformed index journal record skipped : " + record);
+        }
+    }
+
+    /**
+     * @return the log segments in the directory, ordered by number
+     */
+    private TreeMap<Long, Path> listSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())), path);
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        return segments;
+    }
+
+    private Path segmentPath(long number) {
+        return this.dir.resolve(SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    private BufferedWriter openSegment(long number) throws IOException {
+        return Files.newBufferedWriter(this.segmentPath(number), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+}
@@ -1,21 +1,82 @@
 package IndexManager;
 
 import Tokenizer.*;
+import Loggers.Protocol;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.NavigableMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class IndexManager {
 
-    private volatile ConcurrentHashMap<String, ArrayList<Integer>> expectedStoreAcksMap;
-    private volatile ConcurrentHashMap<String, ArrayList<Integer>> expectedRemoveAcksMap;
-    private volatile ConcurrentHashMap<String, DstoreFile> files;
+    private volatile ConcurrentHashMap<String, PendingAcks> expectedStoreAcksMap;
+    private volatile ConcurrentHashMap<String, PendingAcks> expectedRemoveAcksMap;
+    // Kept in filename order, so LIST can be served a page at a time without walking the whole index
+    private volatile ConcurrentSkipListMap<String, DstoreFile> files;
     //  private volatile ConcurrentHashMap<String, ArrayList<Integer>> fileToDstoreMap;
-
+    // Single thread which expires STORE/REMOVE operations whose acks do not all arrive within the timeout
+    private final ScheduledExecutorService ackTimeoutScheduler;
+    // Live count of files and bytes on each Dstore, used to pick the Dstores to store new files on
+    private final PlacementIndex placement;
+    // Log every change to the index is written to, so it can be recovered after a restart (null if not persisted)
+    private volatile IndexJournal journal;
+    // Files a rebalance is copying, moving or removing, each with a future completed when the rebalance is done with it
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> rebalanceLocks;
+    // Cached LIST reply, and the log of recent changes to the available files
+    private final ListCache listCache;
 
     public IndexManager() {
-        this.files = new ConcurrentHashMap<>();
+        this(100000);
+    }
+
+    /**
+     * Constructor
+     * @param listChanges : number of most recent changes to the available files kept, to tell clients what has
+     *                    changed since the generation of the list they last saw
+     */
+    public IndexManager(int listChanges) {
+        this.files = new ConcurrentSkipListMap<>();
         this.expectedStoreAcksMap = new ConcurrentHashMap<>();
         this.expectedRemoveAcksMap = new ConcurrentHashMap<>();
+        this.ackTimeoutScheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ack-timeouts");
+            t.setDaemon(true);
+            return t;
+        });
+        this.placement = new PlacementIndex();
+        this.rebalanceLocks = new ConcurrentHashMap<>();
+        this.listCache = new ListCache(listChanges);
+    }
+
+    /**
+     * Method which makes the index persistent. The index is first rebuilt from whatever the journal directory
+     * already holds, then every later change is logged to it.
+     * Files which were mid store when the Controller stopped are dropped (the client was never told they were
+     * stored), and files which were mid remove are made available again (the client was never told they were removed)
+     * @param dir : directory to keep the journal in
+     * @param snapshotEvery : number of changes logged between compacted snapshots
+     */
+    public void openJournal(Path dir, int snapshotEvery) throws IOException {
+        IndexJournal journalToOpen = new IndexJournal(dir, snapshotEvery);
+        int replayed = journalToOpen.replay(this);
+        for (DstoreFile file : this.getFileObjects()) {
+            if (file.getState() == DstoreFile.State.STORE_IN_PROGRESS) {
+                this.dropFile(file.getFilename());
+            } else if (file.getState() == DstoreFile.State.REMOVE_IN_PROGRESS) {
+                this.setFileState(file, DstoreFile.State.AVAILABLE);
+            }
+        }
+        this.journal = journalToOpen;
+        journalToOpen.start(this);
+        System.out.println("--- INDEX ---   Recovered " + this.files.size() + " files from " + dir
+                + " (" + replayed + " journal records replayed)");
     }
 
     public DstoreFile getFile(String filename) {
@@ -25,36 +86,71 @@ public class IndexManager {
     public void addDstoreForFile(String filename, Integer dstore) {
         DstoreFile fileToUpdate = this.files.get(filename);
         if (fileToUpdate != null) {
-            fileToUpdate.getDstoresStoredOn().add(dstore);
+            this.linkDstore(fileToUpdate, dstore);
         }
     }
 
     public void removeDstoreForFile(String filename, Integer dstore) {
         DstoreFile fileToUpdate = this.files.get(filename);
         if (fileToUpdate != null) {
-            fileToUpdate.getDstoresStoredOn().remove(Integer.valueOf(dstore));
+            this.unlinkDstore(fileToUpdate, dstore);
         }
     }
 
-    public void addFile(String filename, int filesize, DstoreFile.State state, ArrayList<Integer> dstoresStoredOn) {
+    public void addFile(String filename, long filesize, DstoreFile.State state, ArrayList<Integer> dstoresStoredOn) {
         DstoreFile fileToAdd = new DstoreFile(filename, filesize, state);
-        fileToAdd.setDstoresStoredOn(dstoresStoredOn);
-        this.files.put(filename, fileToAdd);
-    }
-
-    public ArrayList<DstoreFile> getFileObjects() {
-        return new ArrayList<>(this.files.values());
+        this.putFile(fileToAdd);
+        for (Integer dstore : dstoresStoredOn) {
+            this.linkDstore(fileToAdd, dstore);
+        }
     }
 
-    public boolean checkIfAllAvailable() {
-        boolean ifAllAvailable = true;
-        for (DstoreFile file : this.files.values()) {
-            if (file.getState() != DstoreFile.State.AVAILABLE) {
-                ifAllAvailable = false;
-                break;
+    /**
+     * Method which records a file's checksum. The first checksum reported for a file is kept, and every later one must
+     * match it
+     * @param filename : file the checksum is for
+     * @param checksum : CRC32C of the file's contents
+     * @return true if the checksum was recorded or matches the one recorded, false if it differs (or the file is not
+     * in the index)
+     */
+    public boolean recordChecksum(String filename, long checksum) {
+        DstoreFile file = this.files.get(filename);
+        if (file == null) {
+            return false;
+        }
+        synchronized (file) {
+            if (file.getChecksum() == Protocol.NO_CHECKSUM) {
+                file.setChecksum(checksum);
+                if (this.journal != null) {
+                    this.journal.checksum(file);
+                }
+                return true;
             }
+            return file.getChecksum() == checksum;
         }
-        return ifAllAvailable;
+    }
+
+    /**
+     * Method which picks the Dstores to store a new file on, the least loaded (by number of files, then bytes) first
+     * The file counts towards the Dstores' loads from now until awaitStoreAcks finishes
+     * @param n : number of Dstores wanted
+     * @param filename : file being stored, Dstores already holding it are not picked
+     * @return up to n Dstore ports
+     */
+    public ArrayList<Integer> getDstoresForStore(int n, String filename) {
+        return this.placement.reserveLeastLoaded(n, new ArrayList<>(this.getDstoresStoringFile(filename)));
+    }
+
+    /**
+     * Method which adds a newly joined Dstore to those that files can be stored on
+     * @param port
+     */
+    public void addDstore(Integer port) {
+        this.placement.dstoreJoined(port);
+    }
+
+    public ArrayList<DstoreFile> getFileObjects() {
+        return new ArrayList<>(this.files.values());
     }
 
     /**
@@ -64,39 +160,115 @@ public class IndexManager {
      */
     public ArrayList<String> getStoredFilenames() {
         ArrayList<String> storedFiles = new ArrayList<>();
-        for (String file : this.files.keySet()) {
-            if (this.files.get(file).getState() == DstoreFile.State.AVAILABLE) {
-                storedFiles.add(file);
+        for (DstoreFile file : this.files.values()) {
+            String listedName = getListedName(file.getFilename());
+            if (file.getState() == DstoreFile.State.AVAILABLE && listedName != null) {
+                storedFiles.add(listedName);
             }
         }
         return storedFiles;
     }
 
+    /**
+     * Method which gets the name a file is listed under.
+     * A file stored in blocks is listed once, under its own name, by its manifest (block 0), and its other blocks
+     * are not listed. The manifest is stored after the other blocks and removed before them, so a file is only listed
+     * while all of it is stored
+     * @param filename : name of the file in the index
+     * @return name to list the file under, or null if it is not listed
+     */
+    public static String getListedName(String filename) {
+        int separator = filename.lastIndexOf(Protocol.BLOCK_SEPARATOR);
+        if (separator <= 0 || separator == filename.length() - 1) {
+            return filename;
+        }
+        for (int i = separator + 1; i < filename.length(); i++) {
+            if (!Character.isDigit(filename.charAt(i))) {
+                return filename;
+            }
+        }
+        return filename.substring(separator + 1).equals("0") ? filename.substring(0, separator) : null;
+    }
+
+    /**
+     * @return reply to LIST, built at most once each time the available files change
+     */
+    public ListCache.Snapshot getListSnapshot() {
+        return this.listCache.getSnapshot(this);
+    }
+
+    /**
+     * @param since : generation of the list the client last saw
+     * @return reply to LIST_GEN, saying what has changed in the available files since that generation
+     */
+    public String getListChanges(long since) {
+        return this.listCache.getChangesMessage(since, this);
+    }
+
+    /**
+     * Method which gets one page of the files that are fully stored on the system, in filename order.
+     * Only the part of the index the page covers is walked
+     * @param after : the page starts after this filename (null to start from the first file)
+     * @param prefix : only filenames starting with this are included ("" for every file)
+     * @param pageSize : maximum number of filenames to return
+     * @return up to pageSize filenames
+     */
+    public ArrayList<String> getStoredFilenamesPage(String after, String prefix, int pageSize) {
+        ArrayList<String> page = new ArrayList<>();
+        NavigableMap<String, DstoreFile> from = after != null && after.compareTo(prefix) >= 0
+                ? this.files.tailMap(after, false)
+                : this.files.tailMap(prefix, true);
+        for (DstoreFile file : from.values()) {
+            if (page.size() >= pageSize || !file.getFilename().startsWith(prefix)) {
+                break;
+            }
+            //A manifest sorts after the name it is listed under, so it is skipped if the page starts after that name
+            String listedName = getListedName(file.getFilename());
+            if (file.getState() == DstoreFile.State.AVAILABLE && listedName != null
+                    && (after == null || listedName.compareTo(after) > 0)) {
+                page.add(listedName);
+            }
+        }
+        return page;
+    }
+
+    /**
+     * @param filename : file to check
+     * @return true if the file is in the index and fully stored
+     */
+    public boolean isStored(String filename) {
+        DstoreFile file = this.files.get(filename);
+        return file != null && file.getState() == DstoreFile.State.AVAILABLE;
+    }
+
     /**
      * Method which gets all Dstore ports which are storing the filename
      * @param filename: filename which we want to get Dstores for
-     * @return List of all Dstore ports
+     * @return List of all Dstore ports, a copy taken under the file's monitor so it is never seen part way through a
+     * change
      */
     public ArrayList<Integer> getDstoresStoringFile(String filename) {
-        try {
-            return this.files.get(filename).getDstoresStoredOn();
-        } catch (NullPointerException e) {
+        DstoreFile file = this.files.get(filename);
+        if (file == null) {
             return new ArrayList<>();
         }
+        synchronized (file) {
+            return new ArrayList<>(file.getDstoresStoredOn());
+        }
     }
 
     public synchronized void changeState(String filename, DstoreFile.State s) {
         try {
-            this.files.get(filename).setState(s);
+            this.setFileState(this.files.get(filename), s);
         } catch (NullPointerException ignored) {
             System.out.println("### ERROR ###   Could not change state of file :" + filename);
         }
     }
 
     public synchronized boolean startRemoving(String filename) {
-        if (this.files.containsKey(filename)) {
+        if (this.files.containsKey(filename) && !this.rebalanceLocks.containsKey(filename)) {
             if (this.files.get(filename).getState() == DstoreFile.State.AVAILABLE) {
-                this.files.get(filename).setState(DstoreFile.State.REMOVE_IN_PROGRESS);
+                this.setFileState(this.files.get(filename), DstoreFile.State.REMOVE_IN_PROGRESS);
                 return true;
             }
         }
@@ -108,11 +280,11 @@ public class IndexManager {
      * @param filename: Name of file we want to store
      * @return true if file does not already exist, false if it does
      */
-    public synchronized boolean startStoring(String filename, int filesize) {
+    public synchronized boolean startStoring(String filename, long filesize) {
         if (this.files.containsKey(filename)) {
             return false;
         } else {
-            this.files.put(filename, new DstoreFile(filename, filesize, DstoreFile.State.STORE_IN_PROGRESS));
+            this.putFile(new DstoreFile(filename, filesize, DstoreFile.State.STORE_IN_PROGRESS));
             return true;
         }
     }
@@ -122,8 +294,170 @@ public class IndexManager {
      * @param filename: Filename to remove from the index
      */
     public synchronized void removeFileFromIndex(String filename) {
-        if (this.files.containsKey(filename)) {
-            this.files.remove(filename);
+        this.dropFile(filename);
+    }
+
+    /**
+     * Method that removes a file from the index only if it is still the same, available file. Used by a rebalance to
+     * drop files it found on no Dstore, without dropping a file that was removed and stored again meanwhile
+     * @param file : file as it was when the rebalance started
+     */
+    public synchronized void removeFileIfUnchanged(DstoreFile file) {
+        if (this.files.get(file.getFilename()) == file && file.getState() == DstoreFile.State.AVAILABLE
+                && !this.rebalanceLocks.containsKey(file.getFilename())) {
+            this.dropFile(file.getFilename());
+        }
+    }
+
+    /*
+    Per file rebalance locks. A rebalance locks each file it decides to copy, move or remove, and only those files are
+    held back from clients until the rebalance has finished with them
+     */
+
+    /**
+     * Method which locks a file for the rebalance in progress. Only available files can be locked, and a locked file
+     * cannot start being removed
+     * @param filename : file the rebalance wants to copy, move or remove
+     * @return true if the file is locked (or was already), false if it is mid store or mid remove or not in the index
+     */
+    public synchronized boolean lockForRebalance(String filename) {
+        if (this.rebalanceLocks.containsKey(filename)) {
+            return true;
+        }
+        DstoreFile file = this.files.get(filename);
+        if (file == null || file.getState() != DstoreFile.State.AVAILABLE) {
+            return false;
+        }
+        this.rebalanceLocks.put(filename, new CompletableFuture<>());
+        return true;
+    }
+
+    /**
+     * Method which unlocks every file locked for the rebalance, running anything that was waiting on them
+     */
+    public void unlockAllForRebalance() {
+        ArrayList<CompletableFuture<Void>> locks;
+        synchronized (this) {
+            locks = new ArrayList<>(this.rebalanceLocks.values());
+            this.rebalanceLocks.clear();
+        }
+        for (CompletableFuture<Void> lock : locks) {
+            lock.complete(null);
+        }
+    }
+
+    /**
+     * @param filename : file to check
+     * @return future which completes when the file is unlocked (already complete if the file is not locked)
+     */
+    public CompletableFuture<Void> whenUnlocked(String filename) {
+        CompletableFuture<Void> lock = this.rebalanceLocks.get(filename);
+        return lock != null ? lock : CompletableFuture.completedFuture(null);
+    }
+
+    /*
+    Every change to which files are in the index, or to a file's state, goes through the three methods below so that
+    the list cache and the journal record the changes in the order they were made. They hold the index's own monitor,
+    which most of their callers already hold
+     */
+
+    private void putFile(DstoreFile file) {
+        DstoreFile replaced;
+        synchronized (this) {
+            replaced = this.files.put(file.getFilename(), file);
+            this.recordListChange(replaced, false);
+            this.recordListChange(file, true);
+            if (this.journal != null) {
+                this.journal.put(file);
+            }
+        }
+        this.unlinkAllDstores(replaced);
+    }
+
+    private void dropFile(String filename) {
+        DstoreFile dropped;
+        synchronized (this) {
+            dropped = this.files.remove(filename);
+            this.recordListChange(dropped, false);
+            if (dropped != null && this.journal != null) {
+                this.journal.drop(filename);
+            }
+        }
+        this.unlinkAllDstores(dropped);
+    }
+
+    private void setFileState(DstoreFile file, DstoreFile.State state) {
+        synchronized (this) {
+            this.recordListChange(file, false);
+            file.setState(state);
+            this.recordListChange(file, true);
+            if (this.journal != null) {
+                this.journal.state(file);
+            }
+        }
+    }
+
+    /**
+     * Records a file becoming available, or stopping being available, in the list cache
+     * @param file : file changed (ignored if null, or not available)
+     * @param ifAdded : true if the file has just been put in the index or into its state, false if just taken out
+     */
+    private void recordListChange(DstoreFile file, boolean ifAdded) {
+        String listedName = file == null ? null : getListedName(file.getFilename());
+        if (listedName != null && file.getState() == DstoreFile.State.AVAILABLE) {
+            if (ifAdded) {
+                this.listCache.fileAdded(listedName);
+            } else {
+                this.listCache.fileRemoved(listedName);
+            }
+        }
+    }
+
+    /*
+    Every change to the Dstores a file is stored on goes through the methods below so that the placement index
+    stays in step with the file index
+     */
+
+    private void linkDstore(DstoreFile file, Integer port) {
+        synchronized (file) {
+            if (file.getDstoresStoredOn().contains(port)) {
+                return;
+            }
+            file.getDstoresStoredOn().add(port);
+            if (this.journal != null) {
+                this.journal.link(file.getFilename(), port);
+            }
+        }
+        this.placement.fileAdded(port, file.getFilesize());
+    }
+
+    private void unlinkDstore(DstoreFile file, Integer port) {
+        synchronized (file) {
+            if (!file.getDstoresStoredOn().remove(port)) {
+                return;
+            }
+            if (this.journal != null) {
+                this.journal.unlink(file.getFilename(), port);
+            }
+        }
+        this.placement.fileRemoved(port, file.getFilesize());
+    }
+
+    /**
+     * Releases the placement counts of a file that has been dropped or replaced in the index. Not journaled, as the
+     * DROP or PUT record already covers it
+     */
+    private void unlinkAllDstores(DstoreFile file) {
+        if (file == null) {
+            return;
+        }
+        ArrayList<Integer> ports;
+        synchronized (file) {
+            ports = new ArrayList<>(file.getDstoresStoredOn());
+            file.getDstoresStoredOn().clear();
+        }
+        for (Integer port : ports) {
+            this.placement.fileRemoved(port, file.getFilesize());
         }
     }
 
@@ -133,99 +467,117 @@ public class IndexManager {
      */
     public void removeDstore(Integer port) {
         for (DstoreFile file : this.files.values()) {
-            file.getDstoresStoredOn().remove(port);
+            synchronized (file) {
+                file.getDstoresStoredOn().remove(port);
+            }
+        }
+        this.placement.dstoreLost(port);
+        if (this.journal != null) {
+            this.journal.lost(port);
         }
     }
 
     public void addStoreAcksForFile(String filename, ArrayList<Integer> ports) {
-        //We do this roundabout method of adding the list of ports to the map so that the array list passed in (ports)
-        //is not linked by reference to the list in the map, because we remove stuff from the list in the map
-        //but we want the list passed in to remain the same
-        ArrayList<Integer> portsExpected = new ArrayList<>(ports);
-        this.expectedStoreAcksMap.put(filename,portsExpected);
+        //PendingAcks takes its own copy of the ports, so the list passed in is not altered as acks come in
+        this.expectedStoreAcksMap.put(filename, new PendingAcks(ports));
     }
 
     public void addRemoveAcksForFile(String filename, ArrayList<Integer> ports) {
-        this.expectedRemoveAcksMap.put(filename,ports);
+        this.expectedRemoveAcksMap.put(filename, new PendingAcks(ports));
     }
 
     /**
-     * Method which loops and waits to see if we receive all store acks within a timeout period.
+     * Method which waits to see if we receive all store acks within a timeout period.
+     * Nothing is blocked while waiting: the returned future is completed by storeAckReceived when the last ack
+     * arrives, or by the ack timeout scheduler once the timeout has passed. The index is updated before it completes
      * @param filename
      * @param timeout
      * @param ports
-     * @return
+     * @return future completing with true if all acks were received before the timeout
      */
-    public boolean listenForStoreAcks(String filename, int timeout, ArrayList<Integer> ports) {
-        double timeoutStamp = System.currentTimeMillis() + timeout;
-        while (this.expectedStoreAcksMap.get(filename).size() != 0) {
-            if (System.currentTimeMillis() >= timeoutStamp) {
+    public CompletableFuture<Boolean> awaitStoreAcks(String filename, int timeout, ArrayList<Integer> ports) {
+        return this.expireAfter(this.expectedStoreAcksMap.get(filename), timeout).thenApply(allReceived -> {
+            this.expectedStoreAcksMap.remove(filename);
+            this.placement.storeFinished(ports);
+            if (!allReceived) {
                 System.out.println("--- TIMEOUT ---   Controller timed out waiting for STORE_ACKs");
-                this.expectedStoreAcksMap.remove(filename);
-                this.files.remove(filename);
+                this.dropFile(filename);
                 return false;
             }
-        }
-        this.expectedStoreAcksMap.remove(filename);
-        this.changeState(filename, DstoreFile.State.AVAILABLE);
-        //We add to a different map here, which maps a filename to the ports/dstores it is stored on
-        this.files.get(filename).setDstoresStoredOn(ports);
-        return true;
+            //The Dstores the file is stored on have already been recorded as each ack arrived
+            this.changeState(filename, DstoreFile.State.AVAILABLE);
+            return true;
+        });
     }
 
     /**
-     *
+     * Method which waits to see if we receive all remove acks within a timeout period. Whether or not they all
+     * arrive, the file is removed from the index once the returned future completes
      * @param filename
      * @param timeout
      * @param ports
-     * @return
+     * @return future completing with true once the file has been removed from the index
      */
-    public boolean listenForRemoveAcks(String filename, int timeout, ArrayList<Integer> ports) {
-        double timeoutStamp = System.currentTimeMillis() + timeout;
-        while (this.expectedRemoveAcksMap.get(filename).size() != 0) {
-            if (System.currentTimeMillis() >= timeoutStamp) {
+    public CompletableFuture<Boolean> awaitRemoveAcks(String filename, int timeout, ArrayList<Integer> ports) {
+        return this.expireAfter(this.expectedRemoveAcksMap.get(filename), timeout).thenApply(allReceived -> {
+            if (!allReceived) {
                 System.out.println("--- TIMEOUT ---   Controller timed out waiting for REMOVE_ACKs");
-                break;
             }
+            this.expectedRemoveAcksMap.remove(filename);
+            this.dropFile(filename);
+            return true;
+        });
+    }
+
+    /**
+     * Schedules the expiry of a pending operation after the timeout
+     * @param pending : acks expected for the operation (null if none were registered)
+     * @param timeout : time to wait (milliseconds)
+     * @return future completing with true if all acks were received, false if timed out
+     */
+    private CompletableFuture<Boolean> expireAfter(PendingAcks pending, int timeout) {
+        if (pending == null) {
+            return CompletableFuture.completedFuture(false);
         }
-        this.expectedRemoveAcksMap.remove(filename);
-        this.files.remove(filename);
-        return true;
+        ScheduledFuture<?> expiry = this.ackTimeoutScheduler.schedule(pending::expire, timeout, TimeUnit.MILLISECONDS);
+        return pending.getCompletion().whenComplete((allReceived, e) -> expiry.cancel(false));
     }
 
     /**
-     * Method which handles the receiving of an acknowledgment. It updates the map containing filename mapped to port
-     * numbers we expect an ack on. I.e. If we receive an ack on a port we expected to receive one on for the specific
-     * filename, we remove that port from the map value for that filename. Elsewhere, we check if the number of of ports
-     * left to receive acks on is 0, and if it is, we have received all acks
+     * Method which handles the receiving of an acknowledgment. It updates the pending acks for the filename,
+     * i.e. If we receive an ack on a port we expected to receive one on for the specific filename, we remove that
+     * port from the ports still expected. When no ports are left, the operation's completion future is completed,
+     * which runs whatever is waiting on it
      * @param ackToken
      * @param portOfDstore
      * @return
      */
-    public synchronized boolean storeAckReceived(StoreAckToken ackToken, Integer portOfDstore) {
-        if (this.expectedStoreAcksMap.containsKey(ackToken.filename)) {
-            if (this.expectedStoreAcksMap.get(ackToken.filename).contains(portOfDstore)) {
-                this.expectedStoreAcksMap.get(ackToken.filename).remove(portOfDstore);
-                return true;
-            } else {
-                return false;
-            }
-        } else {
+    public boolean storeAckReceived(StoreAckToken ackToken, Integer portOfDstore) {
+        PendingAcks pending = this.expectedStoreAcksMap.get(ackToken.filename);
+        if (pending == null || !pending.isExpected(portOfDstore)) {
             return false;
         }
+        //Every Dstore worked out the checksum from the file as it arrived, so a Dstore whose checksum differs from
+        //the others was sent something else. Its ack is not counted, so the store times out rather than completing
+        //with copies that differ
+        if (ackToken.checksum != Protocol.NO_CHECKSUM && !this.recordChecksum(ackToken.filename, ackToken.checksum)) {
+            System.out.println("### ERROR ###   Dstore (port: " + portOfDstore + ") stored " + ackToken.filename
+                    + " with checksum " + Tokenizer.checksumToString(ackToken.checksum) + ", other Dstores with "
+                    + Tokenizer.checksumToString(this.getFile(ackToken.filename).getChecksum()));
+            return false;
+        }
+        //The Dstore is recorded as storing the file before the ack is counted, so the file is fully indexed by the
+        //time the last ack completes the store
+        this.addDstoreForFile(ackToken.filename, portOfDstore);
+        return pending.ackReceived(portOfDstore);
     }
 
-    public synchronized boolean removeAckReceived(RemoveAckToken ackToken, Integer portOfDstore) {
-        //  System.out.println("PORTS EXP : " + this.expectedRemoveAcksMap);
-        if (this.expectedRemoveAcksMap.containsKey(ackToken.filename)) {
-            if (this.expectedRemoveAcksMap.get(ackToken.filename).contains(portOfDstore)) {
-                this.expectedRemoveAcksMap.get(ackToken.filename).remove(portOfDstore);
-                return true;
-            } else {
-                return false;
-            }
-        } else {
+    public boolean removeAckReceived(RemoveAckToken ackToken, Integer portOfDstore) {
+        PendingAcks pending = this.expectedRemoveAcksMap.get(ackToken.filename);
+        if (pending == null || !pending.ackReceived(portOfDstore)) {
             return false;
         }
+        this.removeDstoreForFile(ackToken.filename, portOfDstore);
+        return true;
     }
 }
@@ -0,0 +1,163 @@
+package IndexManager;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import Loggers.Protocol;
+
+/**
+ * Class which caches the reply to LIST, and versions the set of available files so clients can ask what has changed.
+ * The generation goes up by one every time a file becomes available or stops being available. It starts from the
+ * time the Controller started, so a generation a client was given before a restart is never taken for a current one.
+ * The LIST reply is built at most once per generation, the first time it is asked for, and kept already encoded.
+ * The most recent changes are kept in a bounded log, so a client which sends the generation it last saw can be told
+ * only what has changed since.
+ */
+public class ListCache {
+
+    /**
+     * Class for the LIST reply as of one generation. Never changed once built
+     */
+    public static class Snapshot {
+        public final long generation;
+        // LIST file1 file2 ..., and the same line encoded ready to send, with its line terminator
+        public final String message;
+        public final byte[] encodedLine;
+
+        private Snapshot(long generation, String message) {
+            this.generation = generation;
+            this.message = message;
+            this.encodedLine = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Class for a single change to the available files
+     */
+    private static class Change {
+        private final long generation;
+        private final String filename;
+        private final boolean ifAdded;
+
+        private Change(long generation, String filename, boolean ifAdded) {
+            this.generation = generation;
+            this.filename = filename;
+            this.ifAdded = ifAdded;
+        }
+    }
+
+    private final int maxChanges;
+    private final ArrayDeque<Change> changes;
+    private long generation;
+    // Oldest generation changes can be given from (the generation just before the first change in the log)
+    private long oldestGeneration;
+    private volatile Snapshot snapshot;
+    // Held while a snapshot is built, so LISTs arriving together wait for one build rather than each building one
+    private final Object buildLock;
+
+    /**
+     * Constructor
+     * @param maxChanges : number of most recent changes to keep
+     */
+    public ListCache(int maxChanges) {
+        this.maxChanges = maxChanges;
+        this.changes = new ArrayDeque<>();
+        this.generation = System.currentTimeMillis() << 20;
+        this.oldestGeneration = this.generation;
+        this.buildLock = new Object();
+    }
+
+    /**
+     * Called when a file becomes available
+     */
+    public void fileAdded(String filename) {
+        this.record(filename, true);
+    }
+
+    /**
+     * Called when a file stops being available (it is being removed, or has been dropped from the index)
+     */
+    public void fileRemoved(String filename) {
+        this.record(filename, false);
+    }
+
+    private synchronized void record(String filename, boolean ifAdded) {
+        this.generation += 1;
+        this.changes.addLast(new Change(this.generation, filename, ifAdded));
+        if (this.changes.size() > this.maxChanges) {
+            this.oldestGeneration = this.changes.removeFirst().generation;
+        }
+    }
+
+    public synchronized long getGeneration() {
+        return this.generation;
+    }
+
+    /**
+     * Method which gets the LIST reply for the current generation, building it if the available files have changed
+     * since it was last built
+     * @param index : index to build the reply from
+     * @return LIST reply
+     */
+    public Snapshot getSnapshot(IndexManager index) {
+        Snapshot current = this.snapshot;
+        if (current != null && current.generation == this.getGeneration()) {
+            return current;
+        }
+        synchronized (this.buildLock) {
+            current = this.snapshot;
+            //The generation is read before the index is walked. Any change it counts is already in the index, and
+            //changes made while walking will be given again to a client asking for changes since this generation,
+            //which it can safely apply twice
+            long buildGeneration = this.getGeneration();
+            if (current != null && current.generation == buildGeneration) {
+                return current;
+            }
+            StringBuilder message = new StringBuilder(Protocol.LIST_TOKEN);
+            for (String file : index.getStoredFilenames()) {
+                message.append(" ").append(file);
+            }
+            current = new Snapshot(buildGeneration, message.toString());
+            this.snapshot = current;
+            return current;
+        }
+    }
+
+    /**
+     * Method to build the reply to a LIST_GEN request
+     * Only the last change to each file is included, as that alone decides if the file is available
+     * @param since : generation the client last saw
+     * @param index : index to build a full list from, if the changes are no longer in the log
+     * @return LIST_UNCHANGED, LIST_GEN_DELTA or LIST_GEN_FULL message
+     */
+    public String getChangesMessage(long since, IndexManager index) {
+        synchronized (this) {
+            if (since == this.generation) {
+                return Protocol.LIST_UNCHANGED_TOKEN + " " + this.generation;
+            }
+            if (since >= this.oldestGeneration && since < this.generation) {
+                //Walks back from the newest change, so the first change seen for a file is its last
+                LinkedHashMap<String, Boolean> lastChanges = new LinkedHashMap<>();
+                Iterator<Change> newestFirst = this.changes.descendingIterator();
+                while (newestFirst.hasNext()) {
+                    Change change = newestFirst.next();
+                    if (change.generation <= since) {
+                        break;
+                    }
+                    lastChanges.putIfAbsent(change.filename, change.ifAdded);
+                }
+                StringBuilder message = new StringBuilder(Protocol.LIST_GEN_DELTA_TOKEN);
+                message.append(" ").append(since).append(" ").append(this.generation);
+                for (Map.Entry<String, Boolean> change : lastChanges.entrySet()) {
+                    message.append(" ").append(change.getValue() ? "+" : "-").append(change.getKey());
+                }
+                return message.toString();
+            }
+        }
+        Snapshot full = this.getSnapshot(index);
+        return Protocol.LIST_GEN_FULL_TOKEN + " " + full.generation + full.message.substring(Protocol.LIST_TOKEN.length());
+    }
+}
@@ -0,0 +1,64 @@
+package IndexManager;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Class to hold the acknowledgements still expected for a single STORE or REMOVE operation.
+ * The completion future is completed with true as soon as the last expected ack arrives, or with false
+ * if the operation is expired (timed out) first. Whichever happens first wins, the other is ignored.
+ */
+public class PendingAcks {
+
+    // Ports of the Dstores we are still waiting on an ack from
+    private final Set<Integer> remaining;
+    // Completed when all acks have been received (true) or when the operation times out (false)
+    private final CompletableFuture<Boolean> completion;
+
+    /**
+     * Constructor
+     * @param ports : ports of the Dstores we expect an ack from
+     */
+    public PendingAcks(Collection<Integer> ports) {
+        this.remaining = new HashSet<>(ports);
+        this.completion = new CompletableFuture<>();
+        if (this.remaining.isEmpty()) {
+            this.completion.complete(true);
+        }
+    }
+
+    /**
+     * Method called when an ack is received from a Dstore
+     * @param port : port of the Dstore the ack came from
+     * @return true if the ack was expected, false if not
+     */
+    public synchronized boolean ackReceived(Integer port) {
+        if (!this.remaining.remove(port)) {
+            return false;
+        }
+        if (this.remaining.isEmpty()) {
+            this.completion.complete(true);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if an ack is still expected from the Dstore on the port
+     */
+    public synchronized boolean isExpected(Integer port) {
+        return this.remaining.contains(port);
+    }
+
+    /**
+     * Marks the operation as timed out. Has no effect if all acks have already been received
+     */
+    public void expire() {
+        this.completion.complete(false);
+    }
+
+    public CompletableFuture<Boolean> getCompletion() {
+        return this.completion;
+    }
+}
@@ -0,0 +1,147 @@
+package IndexManager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+
+/**
+ * Class which keeps a live count of how many files (and bytes) each Dstore stores, so the least loaded Dstores can
+ * be picked for a STORE without walking the whole file index.
+ * It is kept up to date by the IndexManager every time a Dstore is added to or removed from a file's list of
+ * Dstores (STORE_ACK, REMOVE, rebalance) and when Dstores join or are lost.
+ * Picking the n least loaded Dstores costs O(n log D) for D Dstores.
+ */
+public class PlacementIndex {
+
+    /**
+     * Class holding the load on a single Dstore
+     */
+    private static class DstoreLoad {
+        private final int port;
+        private int files;
+        private long bytes;
+        // Files it has been picked to store which have not yet finished storing
+        private int storing;
+
+        private DstoreLoad(int port) {
+            this.port = port;
+            this.files = 0;
+            this.bytes = 0;
+            this.storing = 0;
+        }
+    }
+
+    // Orders Dstores from least to most loaded, by number of files (counting those being stored), then bytes stored,
+    // then port
+    private static final Comparator<DstoreLoad> LEAST_LOADED_FIRST = Comparator
+            .comparingInt((DstoreLoad l) -> l.files + l.storing)
+            .thenComparingLong(l -> l.bytes)
+            .thenComparingInt(l -> l.port);
+
+    // Load of every Dstore files are recorded on, whether or not it is currently connected
+    private final HashMap<Integer, DstoreLoad> loads;
+    // Loads of the connected Dstores only, ordered least loaded first. Only these are picked for a STORE
+    private final TreeSet<DstoreLoad> connected;
+
+    public PlacementIndex() {
+        this.loads = new HashMap<>();
+        this.connected = new TreeSet<>(LEAST_LOADED_FIRST);
+    }
+
+    public synchronized void dstoreJoined(int port) {
+        this.connected.add(this.getLoad(port));
+    }
+
+    public synchronized void dstoreLost(int port) {
+        DstoreLoad load = this.loads.remove(port);
+        if (load != null) {
+            this.connected.remove(load);
+        }
+    }
+
+    public synchronized void fileAdded(int port, long filesize) {
+        this.update(this.getLoad(port), 1, filesize, 0);
+    }
+
+    public synchronized void fileRemoved(int port, long filesize) {
+        DstoreLoad load = this.loads.get(port);
+        if (load != null) {
+            this.update(load, -1, -filesize, 0);
+        }
+    }
+
+    /**
+     * Method to pick the least loaded connected Dstores for a new file, and count the file against them until
+     * storeFinished is called. Stores started together (e.g. the blocks of one large file) are then spread over
+     * different Dstores, rather than all being sent to whichever were least loaded before any of them finished
+     * @param n : number of Dstores wanted
+     * @param exclude : Dstores that must not be picked (e.g. ones already storing the file)
+     * @return up to n Dstore ports, least loaded first
+     */
+    public synchronized ArrayList<Integer> reserveLeastLoaded(int n, Collection<Integer> exclude) {
+        ArrayList<Integer> ports = this.leastLoaded(n, exclude);
+        for (Integer port : ports) {
+            this.update(this.getLoad(port), 0, 0, 1);
+        }
+        return ports;
+    }
+
+    /**
+     * Called once a store reserved with reserveLeastLoaded has finished, whether or not it succeeded
+     * @param ports : Dstores the file was to be stored on
+     */
+    public synchronized void storeFinished(Collection<Integer> ports) {
+        for (Integer port : ports) {
+            DstoreLoad load = this.loads.get(port);
+            if (load != null && load.storing > 0) {
+                this.update(load, 0, 0, -1);
+            }
+        }
+    }
+
+    /**
+     * Method to pick the least loaded connected Dstores
+     * @param n : number of Dstores wanted
+     * @param exclude : Dstores that must not be picked (e.g. ones already storing the file)
+     * @return up to n Dstore ports, least loaded first
+     */
+    public synchronized ArrayList<Integer> leastLoaded(int n, Collection<Integer> exclude) {
+        ArrayList<Integer> ports = new ArrayList<>(n);
+        for (DstoreLoad load : this.connected) {
+            if (ports.size() == n) {
+                break;
+            }
+            if (!exclude.contains(load.port)) {
+                ports.add(load.port);
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * @return number of files recorded on the Dstore
+     */
+    public synchronized int getFileCount(int port) {
+        DstoreLoad load = this.loads.get(port);
+        return load == null ? 0 : load.files;
+    }
+
+    private DstoreLoad getLoad(int port) {
+        return this.loads.computeIfAbsent(port, DstoreLoad::new);
+    }
+
+    /**
+     * Changes a Dstore's load. The load is taken out of the ordered set and put back, as its position changes
+     */
+    private void update(DstoreLoad load, int files, long bytes, int storing) {
+        boolean ifConnected = this.connected.remove(load);
+        load.files += files;
+        load.bytes += bytes;
+        load.storing += storing;
+        if (ifConnected) {
+            this.connected.add(load);
+        }
+    }
+}
@@ -5,17 +5,30 @@ public class Protocol {
 	// messages from Clients
 	public final static String LIST_TOKEN = "LIST"; // also from Controller and Dstores
 	public final static String STORE_TOKEN = "STORE"; // also from Dstores
+	public final static String STORE_CHAIN_TOKEN = "STORE_CHAIN"; // also from Dstores
 	public final static String LOAD_TOKEN = "LOAD";
 	public final static String LOAD_DATA_TOKEN = "LOAD_DATA";
+	public final static String LOAD_RANGE_TOKEN = "LOAD_RANGE";
+	public final static String LOAD_DATA_RANGE_TOKEN = "LOAD_DATA_RANGE";
+	public final static String LOAD_DATA_COMPRESSED_TOKEN = "LOAD_DATA_COMPRESSED";
 	public final static String RELOAD_TOKEN = "RELOAD";
 	public final static String REMOVE_TOKEN = "REMOVE"; // also from Controller
+	public final static String LIST_PAGE_TOKEN = "LIST_PAGE";
+	public final static String LIST_GEN_TOKEN = "LIST_GEN";
 	
 	// messages from Controller
 	public final static String STORE_TO_TOKEN = "STORE_TO";
 	public final static String STORE_COMPLETE_TOKEN = "STORE_COMPLETE";
 	public final static String LOAD_FROM_TOKEN = "LOAD_FROM";
+	public final static String STORE_FRAGMENTS_TOKEN = "STORE_FRAGMENTS"; // erasure coded clusters, instead of STORE_TO
+	public final static String LOAD_FRAGMENTS_TOKEN = "LOAD_FRAGMENTS"; // erasure coded clusters, instead of LOAD_FROM
 	public final static String REMOVE_COMPLETE_TOKEN = "REMOVE_COMPLETE";
 	public final static String REBALANCE_TOKEN = "REBALANCE";
+	public final static String LIST_SINCE_TOKEN = "LIST_SINCE";
+	public final static String LIST_PAGE_RESULT_TOKEN = "LIST_PAGE_RESULT";
+	public final static String LIST_UNCHANGED_TOKEN = "LIST_UNCHANGED";
+	public final static String LIST_GEN_DELTA_TOKEN = "LIST_GEN_DELTA";
+	public final static String LIST_GEN_FULL_TOKEN = "LIST_GEN_FULL";
 	public final static String ERROR_FILE_DOES_NOT_EXIST_TOKEN = "ERROR_FILE_DOES_NOT_EXIST"; // also from Dstores
 	public final static String ERROR_FILE_ALREADY_EXISTS_TOKEN = "ERROR_FILE_ALREADY_EXISTS";
 	public final static String ERROR_NOT_ENOUGH_DSTORES_TOKEN = "ERROR_NOT_ENOUGH_DSTORES";
@@ -28,4 +41,32 @@ public class Protocol {
 	public final static String JOIN_TOKEN = "JOIN";
 	public final static String REBALANCE_STORE_TOKEN = "REBALANCE_STORE";
 	public final static String REBALANCE_COMPLETE_TOKEN = "REBALANCE_COMPLETE";
+	public final static String LIST_FULL_TOKEN = "LIST_FULL";
+	public final static String LIST_DELTA_TOKEN = "LIST_DELTA";
+	public final static String CORRUPT_TOKEN = "CORRUPT";
+	public final static String COMPRESSED_TOKEN = "COMPRESSED"; // reply to LOAD_DATA_COMPRESSED, before the file's bytes
+	public final static String CONTENT_PRESENT_TOKEN = "CONTENT_PRESENT"; // reply to REBALANCE_STORE instead of ACK, the file is not sent
+	public final static String LOAD_SERVED_TOKEN = "LOAD_SERVED"; // to the Controller, once a LOAD_DATA has been sent
+	public final static String LOAD_FAILED_TOKEN = "LOAD_FAILED"; // to the Controller, for a LOAD_DATA of a file not held
+	public final static String REPAIR_LOAD_DATA_TOKEN = "REPAIR_LOAD_DATA"; // to Dstores, a LOAD_DATA not reported
+
+	// cursors of LIST_PAGE and LIST_PAGE_RESULT
+	public final static String LIST_PAGE_FIRST = "^"; // first page
+	public final static String LIST_PAGE_END = "$"; // no more pages
+	public final static String LIST_PAGE_AFTER = ">"; // followed by the filename the next page starts after
+
+	// block files (see Client.BlockedFile): block N of a file is stored as filename#N, block 0 holding the manifest
+	public final static String BLOCK_SEPARATOR = "#";
+
+	// CRC32C checksums of files, sent after STORE_ACK, LOAD_FROM and REBALANCE_STORE as 8 hex digits (see
+	// Tokenizer.checksumToString). A message without one is from a Dstore or Controller that does not know it
+	public final static long NO_CHECKSUM = -1;
+
+	// SHA-256 hashes of files' contents, sent after the checksum in REBALANCE_STORE as 64 hex digits (see
+	// DStore.BlobStore). A Dstore which already holds a file with the same hash replies CONTENT_PRESENT
+	public final static int CONTENT_HASH_LENGTH = 64;
+
+	// codecs a Dstore may store a file with, named in the COMPRESSED reply to LOAD_DATA_COMPRESSED
+	public final static String CODEC_NONE = "none"; // stored as it arrived
+	public final static String CODEC_DEFLATE = "deflate"; // java.util.zip Deflater, with a zlib header and trailer
 }
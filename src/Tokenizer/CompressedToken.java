@@ -0,0 +1,14 @@
+package Tokenizer;
+
+public class CompressedToken extends Token{
+    // Codec the bytes that follow are compressed with ("none" if they are not)
+    public String codec;
+    // Number of bytes that follow
+    public long storedSize;
+
+    public CompressedToken(String req, String codec, long storedSize) {
+        this.req = req;
+        this.codec = codec;
+        this.storedSize = storedSize;
+    }
+}
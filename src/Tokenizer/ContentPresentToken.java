@@ -0,0 +1,8 @@
+package Tokenizer;
+
+public class ContentPresentToken extends Token{
+
+    public ContentPresentToken(String req) {
+        this.req = req;
+    }
+}
@@ -0,0 +1,16 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+
+/**
+ * Token representing message CORRUPT filename..., sent by a Dstore whose copies of files no longer match their
+ * checksums, once for every check of its files which finds any
+ */
+public class CorruptToken extends Token{
+    public ArrayList<String> filenames;
+
+    public CorruptToken(String req, ArrayList<String> filenames) {
+        this.req = req;
+        this.filenames = filenames;
+    }
+}
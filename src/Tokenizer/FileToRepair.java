@@ -0,0 +1,17 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+
+public class FileToRepair {
+
+    public String filename;
+    // Which of the file's missing fragments to rebuild (0 for the lowest numbered missing fragment, and so on)
+    public int slot;
+    public ArrayList<Integer> dStores;
+
+    public FileToRepair(String filename, int slot, ArrayList<Integer> dStores) {
+        this.filename = filename;
+        this.slot = slot;
+        this.dStores = dStores;
+    }
+}
@@ -0,0 +1,36 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Token representing command LIST_DELTA epoch from_seq to_seq changes
+ * The changes to a Dstore's files between two inventory versions. Each change is a filename prefixed with
+ * '+' (file added) or '-' (file removed)
+ */
+public class ListDeltaToken extends Token{
+    public long epoch;
+    public long fromSeq;
+    public long toSeq;
+    public ArrayList<String> added;
+    public ArrayList<String> removed;
+
+    public ListDeltaToken(String req, long epoch, long fromSeq, long toSeq, StringTokenizer stringTokenizer) {
+        this.req = req;
+        this.epoch = epoch;
+        this.fromSeq = fromSeq;
+        this.toSeq = toSeq;
+        this.added = new ArrayList<>();
+        this.removed = new ArrayList<>();
+        while (stringTokenizer.hasMoreTokens()) {
+            String change = stringTokenizer.nextToken();
+            if (change.charAt(0) == '+') {
+                this.added.add(change.substring(1));
+            } else if (change.charAt(0) == '-') {
+                this.removed.add(change.substring(1));
+            } else {
+                throw new IllegalArgumentException(change);
+            }
+        }
+    }
+}
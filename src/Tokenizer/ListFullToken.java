@@ -0,0 +1,24 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Token representing command LIST_FULL epoch seq file_list
+ * A Dstore's whole file list, as of inventory version (epoch, seq)
+ */
+public class ListFullToken extends Token{
+    public long epoch;
+    public long seq;
+    public ArrayList<String> fileList;
+
+    public ListFullToken(String req, long epoch, long seq, StringTokenizer stringTokenizer) {
+        this.req = req;
+        this.epoch = epoch;
+        this.seq = seq;
+        this.fileList = new ArrayList<>();
+        while (stringTokenizer.hasMoreTokens()) {
+            this.fileList.add(stringTokenizer.nextToken());
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package Tokenizer;
+
+/**
+ * Token representing command LIST_GEN generation
+ * Sent by a client to ask what has changed in the stored files since the generation of the list it last saw
+ * (0 if it has not seen one)
+ */
+public class ListGenToken extends Token{
+    public long generation;
+
+    public ListGenToken(String req, long generation) {
+        this.req = req;
+        this.generation = generation;
+    }
+}
@@ -0,0 +1,24 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+import java.util.StringTokenizer;
+
+/**
+ * Token representing command LIST_PAGE_RESULT next_cursor file_list
+ * Sent by the Controller in reply to a LIST_PAGE. next_cursor is $ if this is the last page, or the cursor to send in
+ * the next LIST_PAGE
+ */
+public class ListPageResultToken extends Token{
+    // Cursor for the next page (null if this is the last page)
+    public String next;
+    public ArrayList<String> fileList;
+
+    public ListPageResultToken(String req, String next, StringTokenizer stringTokenizer) {
+        this.req = req;
+        this.next = next;
+        this.fileList = new ArrayList<>();
+        while (stringTokenizer.hasMoreTokens()) {
+            this.fileList.add(stringTokenizer.nextToken());
+        }
+    }
+}
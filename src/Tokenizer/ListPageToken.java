@@ -0,0 +1,21 @@
+package Tokenizer;
+
+/**
+ * Token representing command LIST_PAGE cursor page_size [prefix]
+ * Sent by a client to list one page of the stored files, in filename order.
+ * cursor is ^ for the first page, or >filename for the page starting after filename
+ */
+public class ListPageToken extends Token{
+    // Filename the page starts after (null for the first page)
+    public String after;
+    public int pageSize;
+    // Only filenames starting with the prefix are listed ("" for every file)
+    public String prefix;
+
+    public ListPageToken(String req, String after, int pageSize, String prefix) {
+        this.req = req;
+        this.after = after;
+        this.pageSize = pageSize;
+        this.prefix = prefix;
+    }
+}
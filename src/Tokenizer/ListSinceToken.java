@@ -0,0 +1,16 @@
+package Tokenizer;
+
+/**
+ * Token representing command LIST_SINCE epoch seq
+ * Sent by the Controller to ask a Dstore for the changes to its files since the given inventory version
+ */
+public class ListSinceToken extends Token{
+    public long epoch;
+    public long seq;
+
+    public ListSinceToken(String req, long epoch, long seq) {
+        this.req = req;
+        this.epoch = epoch;
+        this.seq = seq;
+    }
+}
@@ -0,0 +1,10 @@
+package Tokenizer;
+
+public class LoadDataCompressedToken extends Token{
+    public String filename;
+
+    public LoadDataCompressedToken(String req, String filename) {
+        this.req = req;
+        this.filename = filename;
+    }
+}
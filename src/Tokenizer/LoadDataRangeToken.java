@@ -0,0 +1,19 @@
+package Tokenizer;
+
+/**
+ * Token representing command LOAD_DATA_RANGE filename offset length
+ * Sent by a client to a Dstore to be sent length bytes of a file, starting offset bytes in (fewer if the file ends
+ * first)
+ */
+public class LoadDataRangeToken extends Token{
+    public String filename;
+    public long offset;
+    public long length;
+
+    public LoadDataRangeToken(String req, String filename, long offset, long length) {
+        this.req = req;
+        this.filename = filename;
+        this.offset = offset;
+        this.length = length;
+    }
+}
@@ -2,9 +2,12 @@ package Tokenizer;
 
 public class LoadDataToken extends Token{
     public String filename;
+    // False for a REPAIR_LOAD_DATA, which the Dstore does not report to the Controller as it was not sent by a client
+    public boolean ifReported;
 
-    public LoadDataToken(String req, String filename) {
+    public LoadDataToken(String req, String filename, boolean ifReported) {
         this.req = req;
         this.filename = filename;
+        this.ifReported = ifReported;
     }
 }
@@ -0,0 +1,11 @@
+package Tokenizer;
+
+/**
+ * Token representing message LOAD_FAILED, sent by a Dstore asked with LOAD_DATA for a file it does not hold
+ */
+public class LoadFailedToken extends Token{
+
+    public LoadFailedToken(String req) {
+        this.req = req;
+    }
+}
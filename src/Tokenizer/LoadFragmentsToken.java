@@ -0,0 +1,18 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+
+public class LoadFragmentsToken extends Token{
+    // Number of fragments (k) needed to rebuild the file
+    public int dataFragments;
+    public long filesize;
+    // Dstores storing a fragment of the file, best first
+    public ArrayList<Integer> ports;
+
+    public LoadFragmentsToken(String req, int dataFragments, long filesize, ArrayList<Integer> ports) {
+        this.req = req;
+        this.dataFragments = dataFragments;
+        this.filesize = filesize;
+        this.ports = ports;
+    }
+}
@@ -2,11 +2,14 @@ package Tokenizer;
 
 public class LoadFromToken extends Token{
     public int port;
-    public int filesize;
+    public long filesize;
+    // Checksum the loaded file should have, or Protocol.NO_CHECKSUM if the Controller does not know it
+    public long checksum;
 
-    public LoadFromToken(String req, int port, int filesize) {
+    public LoadFromToken(String req, int port, long filesize, long checksum) {
         this.req = req;
         this.port = port;
         this.filesize = filesize;
+        this.checksum = checksum;
     }
 }
@@ -0,0 +1,18 @@
+package Tokenizer;
+
+/**
+ * Token representing command LOAD_RANGE filename offset length
+ * Sent by a client to the Controller to be told a Dstore to load part of a file from
+ */
+public class LoadRangeToken extends Token{
+    public String filename;
+    public long offset;
+    public long length;
+
+    public LoadRangeToken(String req, String filename, long offset, long length) {
+        this.req = req;
+        this.filename = filename;
+        this.offset = offset;
+        this.length = length;
+    }
+}
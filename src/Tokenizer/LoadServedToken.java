@@ -0,0 +1,17 @@
+package Tokenizer;
+
+/**
+ * Token representing message LOAD_SERVED bytes nanos, sent by a Dstore once it has sent a client a file (or part of
+ * one) it asked for with LOAD_DATA
+ */
+public class LoadServedToken extends Token{
+    // Number of bytes sent, and how long the Dstore took to send them from receiving the request
+    public long bytes;
+    public long nanos;
+
+    public LoadServedToken(String req, long bytes, long nanos) {
+        this.req = req;
+        this.bytes = bytes;
+        this.nanos = nanos;
+    }
+}
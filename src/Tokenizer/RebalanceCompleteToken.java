@@ -1,8 +1,17 @@
 package Tokenizer;
 
+import java.util.ArrayList;
+
+/**
+ * Token representing command REBALANCE_COMPLETE, optionally followed by the files the Dstore failed to send
+ * (in the same files_to_send form as the REBALANCE command)
+ */
 public class RebalanceCompleteToken extends Token{
 
-    public RebalanceCompleteToken(String req) {
+    public ArrayList<FileToSend> filesFailedToSend;
+
+    public RebalanceCompleteToken(String req, ArrayList<FileToSend> filesFailedToSend) {
         this.req = req;
+        this.filesFailedToSend = filesFailedToSend;
     }
 }
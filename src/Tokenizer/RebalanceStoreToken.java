@@ -2,12 +2,17 @@ package Tokenizer;
 
 public class RebalanceStoreToken extends Token{
     public String filename;
-    public int filesize;
+    public long filesize;
+    // Checksum the sending Dstore has for the file, or Protocol.NO_CHECKSUM
+    public long checksum;
+    // SHA-256 of the file's contents, or null if the sending Dstore did not send one
+    public String hash;
 
-    public RebalanceStoreToken(String req, String filename, int filesize) {
+    public RebalanceStoreToken(String req, String filename, long filesize, long checksum, String hash) {
         this.req = req;
         this.filename = filename;
         this.filesize = filesize;
+        this.checksum = checksum;
+        this.hash = hash;
     }
 }
-
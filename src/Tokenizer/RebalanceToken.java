@@ -9,12 +9,15 @@ public class RebalanceToken extends Token{
     public int numberOfFilesToRemove;
     public ArrayList<FileToSend> filesToSend;
     public ArrayList<String> filesToRemove;
+    // Erasure coded fragments to rebuild from the Dstores storing the others (empty if not erasure coded)
+    public ArrayList<FileToRepair> filesToRepair;
 
-    public RebalanceToken(String req, int numberOfFilesToSend, int numberOfFilesToRemove, ArrayList<FileToSend> filesToSend, ArrayList<String> filesToRemove) {
+    public RebalanceToken(String req, int numberOfFilesToSend, int numberOfFilesToRemove, ArrayList<FileToSend> filesToSend, ArrayList<String> filesToRemove, ArrayList<FileToRepair> filesToRepair) {
         this.req = req;
         this.numberOfFilesToSend = numberOfFilesToSend;
         this.numberOfFilesToRemove = numberOfFilesToRemove;
         this.filesToSend = filesToSend;
         this.filesToRemove = filesToRemove;
+        this.filesToRepair = filesToRepair;
     }
 }
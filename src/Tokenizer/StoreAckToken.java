@@ -2,10 +2,12 @@ package Tokenizer;
 
 public class StoreAckToken extends Token{
     public String filename;
+    // Checksum of the file as the Dstore stored it, or Protocol.NO_CHECKSUM
+    public long checksum;
 
-    public StoreAckToken(String req, String filename) {
+    public StoreAckToken(String req, String filename, long checksum) {
         this.req = req;
         this.filename = filename;
+        this.checksum = checksum;
     }
 }
-
@@ -0,0 +1,22 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+
+/**
+ * Token representing command STORE_CHAIN filename filesize port1 port2 ...
+ * Sent by a client (or a Dstore further up the chain) to the first Dstore of a chain to store a file on. The Dstore
+ * stores the file and forwards it, as it arrives, to the Dstores listed, the next of which forwards it to the rest
+ */
+public class StoreChainToken extends Token{
+    public String filename;
+    public long filesize;
+    // Ports of the Dstores the file is forwarded to after this one, in order
+    public ArrayList<Integer> chain;
+
+    public StoreChainToken(String req, String filename, long filesize, ArrayList<Integer> chain) {
+        this.req = req;
+        this.filename = filename;
+        this.filesize = filesize;
+        this.chain = chain;
+    }
+}
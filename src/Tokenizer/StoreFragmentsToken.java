@@ -0,0 +1,16 @@
+package Tokenizer;
+
+import java.util.ArrayList;
+
+public class StoreFragmentsToken extends Token{
+    // Number of data fragments (k); the rest of the ports get parity fragments
+    public int dataFragments;
+    // Dstore to store each fragment on, in fragment order
+    public ArrayList<Integer> ports;
+
+    public StoreFragmentsToken(String req, int dataFragments, ArrayList<Integer> ports) {
+        this.req = req;
+        this.dataFragments = dataFragments;
+        this.ports = ports;
+    }
+}
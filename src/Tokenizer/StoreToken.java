@@ -2,9 +2,9 @@ package Tokenizer;
 
 public class StoreToken extends Token{
     public String filename;
-    public int filesize;
+    public long filesize;
 
-    public StoreToken(String req, String filename, int filesize) {
+    public StoreToken(String req, String filename, long filesize) {
         this.req = req;
         this.filename = filename;
         this.filesize = filesize;
@@ -2,6 +2,8 @@ package Tokenizer;
 
 import Loggers.Protocol;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 import java.util.StringTokenizer;
@@ -15,6 +17,14 @@ public class Tokenizer {
     public Tokenizer() { ; }
 
 
+    /**
+     * Parses a request held in a buffer, as framed by a selector based connection.
+     * The buffer holds exactly one line, without its line terminator
+     */
+    public static Token getToken(ByteBuffer line) {
+        return getToken(StandardCharsets.UTF_8.decode(line).toString());
+    }
+
     /**
      * Parses requests.
      */
@@ -40,7 +50,26 @@ public class Tokenizer {
                 //If we cannot convert the second element (i.e. filesize) to an integer, must be invalid input
                 //so we return a null if this fails
                 try {
-                    return new StoreToken(command, sTokenizer.nextToken(), Integer.parseInt(sTokenizer.nextToken()));
+                    return new StoreToken(command, sTokenizer.nextToken(), Long.parseLong(sTokenizer.nextToken()));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'STORE_CHAIN filename filesize port1 port2 ...' command, generating StoreChainToken
+        if (firstToken.equals(Protocol.STORE_CHAIN_TOKEN)) {
+            if (sTokenizer.countTokens() >= 2) {
+                try {
+                    String filename = sTokenizer.nextToken();
+                    long filesize = Long.parseLong(sTokenizer.nextToken());
+                    ArrayList<Integer> chain = new ArrayList<>();
+                    while (sTokenizer.hasMoreTokens()) {
+                        chain.add(Integer.parseInt(sTokenizer.nextToken()));
+                    }
+                    return new StoreChainToken(command, filename, filesize, chain);
                 } catch (NumberFormatException e) {
                     return null;
                 }
@@ -61,7 +90,72 @@ public class Tokenizer {
         //Matches 'LOAD_DATA filename' command, generating LoadDataToken
         if (firstToken.equals(Protocol.LOAD_DATA_TOKEN)) {
             if (sTokenizer.countTokens() == 1) {
-                return new LoadDataToken(command, sTokenizer.nextToken());
+                return new LoadDataToken(command, sTokenizer.nextToken(), true);
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'REPAIR_LOAD_DATA filename' command, generating LoadDataToken
+        if (firstToken.equals(Protocol.REPAIR_LOAD_DATA_TOKEN)) {
+            if (sTokenizer.countTokens() == 1) {
+                return new LoadDataToken(command, sTokenizer.nextToken(), false);
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LOAD_RANGE filename offset length' command, generating LoadRangeToken
+        if (firstToken.equals(Protocol.LOAD_RANGE_TOKEN)) {
+            if (sTokenizer.countTokens() == 3) {
+                try {
+                    String filename = sTokenizer.nextToken();
+                    long offset = Long.parseLong(sTokenizer.nextToken());
+                    long length = Long.parseLong(sTokenizer.nextToken());
+                    return offset < 0 || length < 0 ? null : new LoadRangeToken(command, filename, offset, length);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LOAD_DATA_RANGE filename offset length' command, generating LoadDataRangeToken
+        if (firstToken.equals(Protocol.LOAD_DATA_RANGE_TOKEN)) {
+            if (sTokenizer.countTokens() == 3) {
+                try {
+                    String filename = sTokenizer.nextToken();
+                    long offset = Long.parseLong(sTokenizer.nextToken());
+                    long length = Long.parseLong(sTokenizer.nextToken());
+                    return offset < 0 || length < 0 ? null : new LoadDataRangeToken(command, filename, offset, length);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LOAD_DATA_COMPRESSED filename' command, generating LoadDataCompressedToken
+        if (firstToken.equals(Protocol.LOAD_DATA_COMPRESSED_TOKEN)) {
+            if (sTokenizer.countTokens() == 1) {
+                return new LoadDataCompressedToken(command, sTokenizer.nextToken());
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'COMPRESSED codec stored_size' reply, generating CompressedToken
+        if (firstToken.equals(Protocol.COMPRESSED_TOKEN)) {
+            if (sTokenizer.countTokens() == 2) {
+                try {
+                    String codec = sTokenizer.nextToken();
+                    long storedSize = Long.parseLong(sTokenizer.nextToken());
+                    return storedSize < 0 ? null : new CompressedToken(command, codec, storedSize);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
             } else {
                 return null;
             }
@@ -103,12 +197,45 @@ public class Tokenizer {
             }
         }
 
-        //Matches 'LOAD_FROM port filesize' command, generating LoadFromToken
+        //Matches 'LOAD_FROM port filesize [checksum]' command, generating LoadFromToken
         if (firstToken.equals(Protocol.LOAD_FROM_TOKEN)) {
-            if (sTokenizer.countTokens() == 2) {
+            if (sTokenizer.countTokens() == 2 || sTokenizer.countTokens() == 3) {
                 try {
                     return new LoadFromToken(command, Integer.parseInt(sTokenizer.nextToken()),
-                                             Integer.parseInt(sTokenizer.nextToken()));
+                                             Long.parseLong(sTokenizer.nextToken()), parseChecksum(sTokenizer));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'STORE_FRAGMENTS k port1 port2 ... port(k+m)' command, generating StoreFragmentsToken
+        if (firstToken.equals(Protocol.STORE_FRAGMENTS_TOKEN)) {
+            if (sTokenizer.countTokens() >= 2) {
+                try {
+                    int dataFragments = Integer.parseInt(sTokenizer.nextToken());
+                    ArrayList<Integer> ports = parsePorts(sTokenizer);
+                    return dataFragments < 1 || dataFragments > ports.size() ? null
+                            : new StoreFragmentsToken(command, dataFragments, ports);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LOAD_FRAGMENTS k filesize port1 port2 ...' command, generating LoadFragmentsToken
+        if (firstToken.equals(Protocol.LOAD_FRAGMENTS_TOKEN)) {
+            if (sTokenizer.countTokens() >= 3) {
+                try {
+                    int dataFragments = Integer.parseInt(sTokenizer.nextToken());
+                    long filesize = Long.parseLong(sTokenizer.nextToken());
+                    ArrayList<Integer> ports = parsePorts(sTokenizer);
+                    return dataFragments < 1 || dataFragments > ports.size() ? null
+                            : new LoadFragmentsToken(command, dataFragments, filesize, ports);
                 } catch (NumberFormatException e) {
                     return null;
                 }
@@ -178,10 +305,59 @@ public class Tokenizer {
             }
         }
 
-        //Matches 'STORE_ACK filename' acknowledgement, generating StoreAckToken
+        //Matches 'CONTENT_PRESENT' reply to REBALANCE_STORE, generating ContentPresentToken
+        if (firstToken.equals(Protocol.CONTENT_PRESENT_TOKEN)) {
+            if (!(sTokenizer.hasMoreTokens())) {
+                return new ContentPresentToken(command);
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'STORE_ACK filename [checksum]' acknowledgement, generating StoreAckToken
         if (firstToken.equals(Protocol.STORE_ACK_TOKEN)) {
-            if (sTokenizer.countTokens() == 1) {
-                return new StoreAckToken(command, sTokenizer.nextToken());
+            if (sTokenizer.countTokens() == 1 || sTokenizer.countTokens() == 2) {
+                try {
+                    return new StoreAckToken(command, sTokenizer.nextToken(), parseChecksum(sTokenizer));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LOAD_SERVED bytes nanos' message, generating LoadServedToken
+        if (firstToken.equals(Protocol.LOAD_SERVED_TOKEN)) {
+            if (sTokenizer.countTokens() == 2) {
+                try {
+                    return new LoadServedToken(command, Long.parseLong(sTokenizer.nextToken()),
+                            Long.parseLong(sTokenizer.nextToken()));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LOAD_FAILED' message, generating LoadFailedToken
+        if (firstToken.equals(Protocol.LOAD_FAILED_TOKEN)) {
+            if (!(sTokenizer.hasMoreTokens())) {
+                return new LoadFailedToken(command);
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'CORRUPT filename...' message, generating CorruptToken
+        if (firstToken.equals(Protocol.CORRUPT_TOKEN)) {
+            if (sTokenizer.hasMoreTokens()) {
+                ArrayList<String> filenames = new ArrayList<>();
+                while (sTokenizer.hasMoreTokens()) {
+                    filenames.add(sTokenizer.nextToken());
+                }
+                return new CorruptToken(command, filenames);
             } else {
                 return null;
             }
@@ -205,11 +381,92 @@ public class Tokenizer {
             }
         }
 
-        //Matches 'REBALANCE_STORE filename filesize' command, generating RebalanceStoreToken
+        //Matches 'REBALANCE_STORE filename filesize [checksum [hash]]' command, generating RebalanceStoreToken
         if (firstToken.equals(Protocol.REBALANCE_STORE_TOKEN)) {
+            if (sTokenizer.countTokens() >= 2 && sTokenizer.countTokens() <= 4) {
+                try {
+                    return new RebalanceStoreToken(command, sTokenizer.nextToken(), Long.parseLong(sTokenizer.nextToken()),
+                                                   parseChecksum(sTokenizer), parseHash(sTokenizer));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LIST_SINCE epoch seq' command, generating ListSinceToken
+        if (firstToken.equals(Protocol.LIST_SINCE_TOKEN)) {
             if (sTokenizer.countTokens() == 2) {
                 try {
-                    return new RebalanceStoreToken(command, sTokenizer.nextToken(), Integer.parseInt(sTokenizer.nextToken()));
+                    return new ListSinceToken(command, Long.parseLong(sTokenizer.nextToken()),
+                                              Long.parseLong(sTokenizer.nextToken()));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LIST_FULL epoch seq file_list' command, generating ListFullToken
+        if (firstToken.equals(Protocol.LIST_FULL_TOKEN)) {
+            if (sTokenizer.countTokens() >= 2) {
+                try {
+                    return new ListFullToken(command, Long.parseLong(sTokenizer.nextToken()),
+                                             Long.parseLong(sTokenizer.nextToken()), sTokenizer);
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LIST_DELTA epoch from_seq to_seq changes' command, generating ListDeltaToken
+        if (firstToken.equals(Protocol.LIST_DELTA_TOKEN)) {
+            if (sTokenizer.countTokens() >= 3) {
+                try {
+                    return new ListDeltaToken(command, Long.parseLong(sTokenizer.nextToken()),
+                            Long.parseLong(sTokenizer.nextToken()), Long.parseLong(sTokenizer.nextToken()), sTokenizer);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LIST_PAGE cursor page_size' and 'LIST_PAGE cursor page_size prefix' commands, generating ListPageToken
+        if (firstToken.equals(Protocol.LIST_PAGE_TOKEN)) {
+            int count = sTokenizer.countTokens();
+            if (count == 2 || count == 3) {
+                String cursor = sTokenizer.nextToken();
+                try {
+                    int pageSize = Integer.parseInt(sTokenizer.nextToken());
+                    String prefix = sTokenizer.hasMoreTokens() ? sTokenizer.nextToken() : "";
+                    if (pageSize <= 0) {
+                        return null;
+                    } else if (cursor.equals(Protocol.LIST_PAGE_FIRST)) {
+                        return new ListPageToken(command, null, pageSize, prefix);
+                    } else if (cursor.startsWith(Protocol.LIST_PAGE_AFTER) && cursor.length() > 1) {
+                        return new ListPageToken(command, cursor.substring(1), pageSize, prefix);
+                    } else {
+                        return null;
+                    }
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'LIST_GEN generation' command, generating ListGenToken
+        if (firstToken.equals(Protocol.LIST_GEN_TOKEN)) {
+            if (sTokenizer.countTokens() == 1) {
+                try {
+                    return new ListGenToken(command, Long.parseLong(sTokenizer.nextToken()));
                 } catch (NumberFormatException e) {
                     return null;
                 }
@@ -218,12 +475,34 @@ public class Tokenizer {
             }
         }
 
-        //Matches 'REBALANCE_COMPLETE' acknowledgement, generating RebalanceCompleteToken
+        //Matches 'LIST_PAGE_RESULT next_cursor file_list' command, generating ListPageResultToken
+        if (firstToken.equals(Protocol.LIST_PAGE_RESULT_TOKEN)) {
+            if (sTokenizer.hasMoreTokens()) {
+                String cursor = sTokenizer.nextToken();
+                if (cursor.equals(Protocol.LIST_PAGE_END)) {
+                    return new ListPageResultToken(command, null, sTokenizer);
+                } else if (cursor.startsWith(Protocol.LIST_PAGE_AFTER) && cursor.length() > 1) {
+                    return new ListPageResultToken(command, cursor, sTokenizer);
+                } else {
+                    return null;
+                }
+            } else {
+                return null;
+            }
+        }
+
+        //Matches 'REBALANCE_COMPLETE' and 'REBALANCE_COMPLETE files_failed_to_send' acknowledgements,
+        //generating RebalanceCompleteToken
         if (firstToken.equals(Protocol.REBALANCE_COMPLETE_TOKEN)) {
             if (!(sTokenizer.hasMoreTokens())) {
-                return new RebalanceCompleteToken(command);
+                return new RebalanceCompleteToken(command, new ArrayList<>());
             } else {
-                return null;
+                try {
+                    ArrayList<FileToSend> filesFailedToSend = generateFilesToSend(sTokenizer);
+                    return sTokenizer.hasMoreTokens() ? null : new RebalanceCompleteToken(command, filesFailedToSend);
+                } catch (NumberFormatException | NoSuchElementException e) {
+                    return null;
+                }
             }
         }
 
@@ -242,26 +521,11 @@ public class Tokenizer {
      */
     private static RebalanceToken generateRebalanceToken(StringTokenizer s, String command) {
         try {
-            ArrayList<FileToSend> filesToSend = new ArrayList<>();
             ArrayList<String> filesToRemove = new ArrayList<>();
 
-            //Gets the number of files to send
-            int numberOfFilesToSend = Integer.parseInt(s.nextToken());
-            //Loops through next x (= numberOfFilesToSend) values which we know must be files to send
-            for (int x = 0; x < numberOfFilesToSend; x++) {
-                    //Gets filename of a file to send
-                    String filenameToSend = s.nextToken();
-                        //Gets the number of DStores we are sending the file to
-                        int numberOfDStores = Integer.parseInt(s.nextToken());
-                        ArrayList<Integer> dStores = new ArrayList<>();
-                        //Loops through next y (= numberOfDStores) values which we know to be DStore ports
-                        for (int y = 0; y < numberOfDStores; y++) {
-                            //Gets the DStore ports
-                            dStores.add(Integer.parseInt(s.nextToken()));
-                        }
-                        //After each loop of outer for loop, we add a fileToSend to the arrayList
-                        filesToSend.add(new FileToSend(filenameToSend, numberOfDStores, dStores));
-                }
+            //Gets the files to send
+            ArrayList<FileToSend> filesToSend = generateFilesToSend(s);
+            int numberOfFilesToSend = filesToSend.size();
 
             //Gets all the files to remove
             int numberOfFilesToRemove = Integer.parseInt(s.nextToken());
@@ -269,20 +533,111 @@ public class Tokenizer {
                 filesToRemove.add(s.nextToken());
             }
 
+            //Gets the erasure coded fragments to rebuild, which only follow if there are any
+            ArrayList<FileToRepair> filesToRepair = new ArrayList<>();
+            if (s.hasMoreTokens()) {
+                int numberOfFilesToRepair = Integer.parseInt(s.nextToken());
+                for (int x = 0; x < numberOfFilesToRepair; x++) {
+                    String filename = s.nextToken();
+                    int slot = Integer.parseInt(s.nextToken());
+                    int numberOfDStores = Integer.parseInt(s.nextToken());
+                    ArrayList<Integer> dStores = new ArrayList<>();
+                    for (int y = 0; y < numberOfDStores; y++) {
+                        dStores.add(Integer.parseInt(s.nextToken()));
+                    }
+                    filesToRepair.add(new FileToRepair(filename, slot, dStores));
+                }
+            }
+
             //Returns the RebalancedToken
-            return new RebalanceToken(command, numberOfFilesToSend, numberOfFilesToRemove, filesToSend, filesToRemove);
+            return new RebalanceToken(command, numberOfFilesToSend, numberOfFilesToRemove, filesToSend, filesToRemove,
+                                      filesToRepair);
 
         //This catch means if there's any errors in the formatting of the command, a null value will be returned
         } catch (NumberFormatException | NoSuchElementException e) {
             return null;
         }
     }
-}
-
-
-
 
+    /**
+     * Method which reads the rest of a message as a list of ports
+     * @throws NumberFormatException if any of them is not a number
+     */
+    private static ArrayList<Integer> parsePorts(StringTokenizer s) {
+        ArrayList<Integer> ports = new ArrayList<>();
+        while (s.hasMoreTokens()) {
+            ports.add(Integer.parseInt(s.nextToken()));
+        }
+        return ports;
+    }
 
+    /**
+     * Method which reads the optional checksum at the end of a message
+     * @param s: StringTokenizer positioned after the rest of the message
+     * @return the checksum, or Protocol.NO_CHECKSUM if the message has none
+     * @throws NumberFormatException if it is not a 32 bit hex number
+     */
+    private static long parseChecksum(StringTokenizer s) {
+        if (!s.hasMoreTokens()) {
+            return Protocol.NO_CHECKSUM;
+        }
+        long checksum = Long.parseLong(s.nextToken(), 16);
+        if (checksum < 0 || checksum > 0xFFFFFFFFL) {
+            throw new NumberFormatException("checksum out of range");
+        }
+        return checksum;
+    }
 
+    /**
+     * Reads an optional content hash (64 lower case hex digits) from the StringTokenizer
+     * @return the hash, or null if there are no more tokens
+     * @throws NumberFormatException if the next token is not a hash
+     */
+    private static String parseHash(StringTokenizer s) {
+        if (!s.hasMoreTokens()) {
+            return null;
+        }
+        String hash = s.nextToken();
+        if (hash.length() != Protocol.CONTENT_HASH_LENGTH || !hash.matches("[0-9a-f]+")) {
+            throw new NumberFormatException("malformed content hash");
+        }
+        return hash;
+    }
 
+    /**
+     * @return a CRC32C checksum as sent in messages, 8 hex digits
+     */
+    public static String checksumToString(long checksum) {
+        return String.format("%08x", checksum);
+    }
 
+    /**
+     * Method which reads a files_to_send list (as used in REBALANCE and REBALANCE_COMPLETE) from the StringTokenizer
+     * files_to_send = num_of_files_to_send file_to_send1 file_to_send2 ...
+     *         file_to_send = filename num_of_dstores_to_send_to dstore_port1 dstore_port2 ...
+     *
+     * @param s: StringTokenizer positioned at the start of the list
+     * @return list of files to send
+     */
+    private static ArrayList<FileToSend> generateFilesToSend(StringTokenizer s) {
+        ArrayList<FileToSend> filesToSend = new ArrayList<>();
+        //Gets the number of files to send
+        int numberOfFilesToSend = Integer.parseInt(s.nextToken());
+        //Loops through next x (= numberOfFilesToSend) values which we know must be files to send
+        for (int x = 0; x < numberOfFilesToSend; x++) {
+            //Gets filename of a file to send
+            String filenameToSend = s.nextToken();
+            //Gets the number of DStores we are sending the file to
+            int numberOfDStores = Integer.parseInt(s.nextToken());
+            ArrayList<Integer> dStores = new ArrayList<>();
+            //Loops through next y (= numberOfDStores) values which we know to be DStore ports
+            for (int y = 0; y < numberOfDStores; y++) {
+                //Gets the DStore ports
+                dStores.add(Integer.parseInt(s.nextToken()));
+            }
+            //After each loop of outer for loop, we add a fileToSend to the arrayList
+            filesToSend.add(new FileToSend(filenameToSend, numberOfDStores, dStores));
+        }
+        return filesToSend;
+    }
+}